@@ -0,0 +1,64 @@
+package com.nchhillar.jlox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Many small scripts run the old way, a `java Jlox script` process each, against one BatchRunner
+// running them all in this JVM. Spawning a JVM per script takes long enough that only a sample is
+// spawned, and the time per script is scaled up to the whole batch.
+// Usage: BatchBenchmark [scripts] [spawned sample]
+public class BatchBenchmark {
+    private static final String SCRIPT =
+        "class Counter { init() { this.n = 0; } add(k) { this.n = this.n + k; return this; } }\n" +
+        "fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }\n" +
+        "var c = Counter();\n" +
+        "for (var i = 0; i < %1$d; i = i + 1) c.add(i);\n" +
+        "print \"script %2$d: \" + \"done\";\n" +
+        "print c.n + fib(%3$d);\n";
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int sample = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        Path directory = Files.createTempDirectory("jlox-batch");
+        List<Path> scripts = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Path script = directory.resolve(String.format("script%05d.lox", i));
+            Files.write(script, String.format(SCRIPT, 500 + i % 1000, i, 10 + i % 8).getBytes(StandardCharsets.UTF_8));
+            scripts.add(script);
+        }
+
+        String java = ProcessHandle.current().info().command().orElse("java");
+        String classPath = System.getProperty("java.class.path");
+        long start = System.nanoTime();
+        for (int i = 0; i < sample; i++) {
+            Process process = new ProcessBuilder(java, "-cp", classPath, "com.nchhillar.jlox.Jlox", scripts.get(i).toString())
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+            if (process.waitFor() != 0) throw new IllegalStateException("Script " + i + " failed.");
+        }
+        double perProcess = (System.nanoTime() - start) / 1e6 / sample;
+
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        int threads = Runtime.getRuntime().availableProcessors();
+        start = System.nanoTime();
+        int status = new BatchRunner(threads, 0).run(scripts, discard, discard);
+        double batch = (System.nanoTime() - start) / 1e6;
+        if (status != 0) throw new IllegalStateException("Batch failed with " + status + ".");
+
+        System.out.printf("process per script: %7.1f ms each, %9.0f ms for %d scripts (from %d spawned)%n",
+            perProcess, perProcess * count, count, sample);
+        System.out.printf("batch on %d threads: %7.3f ms each, %9.0f ms for %d scripts  %.0fx%n",
+            threads, batch / count, batch, count, perProcess * count / batch);
+
+        for (Path script : scripts) Files.delete(script);
+        Files.delete(directory);
+    }
+}
@@ -0,0 +1,70 @@
+package com.nchhillar.jlox;
+
+import java.util.Arrays;
+
+// Times method calls, constructor calls and function calls from sites that see one receiver
+// class (monomorphic), three, and more than InlineCache.MAX_ENTRIES (megamorphic). Each loop
+// runs in a function, so its counters are locals.
+// Usage: CallSiteBenchmark [calls per script]
+public class CallSiteBenchmark {
+    private static final String CLASSES =
+        "class Shape { init(n) { this.n = n; } area() { return this.n; } }\n" +
+        "class Square < Shape { area() { return this.n * this.n; } }\n" +
+        "class Circle < Shape { area() { return 3 * this.n * this.n; } }\n" +
+        "class Tri < Shape { area() { return this.n / 2; } }\n" +
+        "class Hex < Shape { area() { return 6 * this.n; } }\n" +
+        "class Pent < Shape { area() { return 5 * this.n; } }\n" +
+        "fun add(a, b) { return a + b; }\n";
+
+    private static final String[] NAMES = { "monomorphic", "polymorphic", "megamorphic", "construct", "function" };
+
+    private static final String[] LOOPS = {
+        "var s = Square(3); var t = 0;\n" +
+        "for (var i = 0; i < %1$d; i = i + 1) t = t + s.area();\n" +
+        "print t;\n",
+
+        "var a = Square(3); var b = Circle(2); var c = Tri(4); var t = 0;\n" +
+        "for (var i = 0; i < %1$d; i = i + 3) t = t + a.area() + b.area() + c.area();\n" +
+        "print t;\n",
+
+        "fun area(s) { return s.area(); }\n" +
+        "var a = Square(1); var b = Circle(1); var c = Tri(1); var d = Hex(1); var e = Pent(1); var f = Shape(1);\n" +
+        "var t = 0;\n" +
+        "for (var i = 0; i < %1$d; i = i + 6) {\n" +
+        "    t = t + area(a) + area(b) + area(c) + area(d) + area(e) + area(f);\n" +
+        "}\n" +
+        "print t;\n",
+
+        "var t = 0;\n" +
+        "for (var i = 0; i < %1$d; i = i + 1) t = t + Square(i).n;\n" +
+        "print t;\n",
+
+        "var t = 0;\n" +
+        "for (var i = 0; i < %1$d; i = i + 1) t = add(t, i);\n" +
+        "print t;\n",
+    };
+
+    public static void main(String[] args) {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Program[] programs = new Program[LOOPS.length];
+        for (int i = 0; i < LOOPS.length; i++) {
+            programs[i] = Program.compile(CLASSES + "fun run() {\n" + String.format(LOOPS[i], calls) + "}\nrun();\n");
+        }
+
+        long[] best = new long[programs.length];
+        Arrays.fill(best, Long.MAX_VALUE);
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < programs.length; i++) {
+                long start = System.nanoTime();
+                InterpreterPool.Result result = InterpreterPool.run(programs[i]);
+                best[i] = Math.min(best[i], System.nanoTime() - start);
+                if (result.output.isEmpty()) throw new IllegalStateException(NAMES[i] + " printed nothing.");
+            }
+        }
+
+        // Timings vary a lot from round to round, so the best is what gets compared.
+        for (int i = 0; i < programs.length; i++) {
+            System.out.printf("%-12s %6.1f ns per call%n", NAMES[i], (double)best[i] / calls);
+        }
+    }
+}
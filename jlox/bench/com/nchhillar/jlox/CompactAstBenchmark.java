@@ -0,0 +1,86 @@
+package com.nchhillar.jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+// Compares a cache of compiled programs held as trees with the same cache held compacted:
+// retained heap, and the cost of getting a runnable tree back (compiling versus materializing).
+// Usage: CompactAstBenchmark [programs]
+public class CompactAstBenchmark {
+    private static final String SCRIPT =
+        "class Account {\n" +
+        "    init(owner, balance) { this.owner = owner; this.balance = balance; }\n" +
+        "    deposit(amount) { if (amount > 0) this.balance = this.balance + amount; return this; }\n" +
+        "    report() { print this.owner + \": \" + \"ok\"; }\n" +
+        "}\n" +
+        "class Savings < Account {\n" +
+        "    init(owner, balance, rate) { super.init(owner, balance); this.rate = rate; }\n" +
+        "    accrue() { this.balance = this.balance * (1 + this.rate / 100); }\n" +
+        "}\n" +
+        "fun counter() { var count = 0; fun next() { count = count + 1; return count; } return next; }\n" +
+        "fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }\n" +
+        "var tick = counter();\n" +
+        "var accounts = 0;\n" +
+        "for (var i = 0; i < 10; i = i + 1) {\n" +
+        "    var a = Savings(\"tenant\", i * 100, 5);\n" +
+        "    a.deposit(fib(10)).accrue();\n" +
+        "    if (a.balance > 500 and !(a.balance == 0)) accounts = accounts + tick();\n" +
+        "}\n" +
+        "print accounts;\n";
+
+    public static void main(String[] args) {
+        int programs = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        Program sample = Program.compile(SCRIPT);
+        String expected = InterpreterPool.run(sample).output;
+        if (!InterpreterPool.run(sample.compact()).output.equals(expected)) {
+            throw new IllegalStateException("Compacted program printed something else.");
+        }
+
+        long trees = retained(() -> compileAll(programs, false));
+        long compact = retained(() -> compileAll(programs, true));
+        System.out.printf("%d programs: trees %.1f MB  compact %.1f MB  (%.1fx smaller)%n",
+            programs, trees / 1e6, compact / 1e6, (double)trees / compact);
+
+        Program compacted = sample.compact();
+        CompactAst encoded = CompactAst.encode(sample.statements());
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < programs; i++) Program.compile(SCRIPT);
+            long compile = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < programs; i++) encoded.materialize();
+            long materialize = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < programs; i++) compacted.compact().statements();
+            long cached = System.nanoTime() - start;
+
+            System.out.printf("round %d per program: compile %6.1f us  materialize %6.1f us" +
+                    "  soft-cached tree %5.2f us%n",
+                round, compile / 1e3 / programs, materialize / 1e3 / programs, cached / 1e3 / programs);
+        }
+    }
+
+    private static List<Program> compileAll(int programs, boolean compact) {
+        List<Program> cache = new ArrayList<>(programs);
+        for (int i = 0; i < programs; i++) {
+            Program program = Program.compile(SCRIPT);
+            cache.add(compact ? program.compact() : program);
+        }
+        return cache;
+    }
+
+    // Rough heap growth while the built structure is still reachable.
+    private static long retained(Supplier<Object> build) {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        long before = runtime.totalMemory() - runtime.freeMemory();
+        Object kept = build.get();
+        System.gc();
+        long after = runtime.totalMemory() - runtime.freeMemory();
+        if (kept.hashCode() == 42) System.out.println();
+        return after - before;
+    }
+}
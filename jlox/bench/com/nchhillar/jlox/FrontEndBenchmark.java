@@ -0,0 +1,80 @@
+package com.nchhillar.jlox;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+// Measures scan + parse + resolve throughput on generated scripts of doubling size.
+// If the front end is linear, ns per byte stays flat from the smallest size to the largest.
+// The whole source and its AST stay in memory, about 12 bytes of heap per byte of source, so
+// sizes near 1 GB need a matching -Xmx (e.g. -Xmx16g for 1024). Every surviving AST node is
+// copied by the young collections, so time spent in GC is shown apart from the rest.
+// Usage: FrontEndBenchmark [largest size in MB]
+public class FrontEndBenchmark {
+    // One unit of generated code; %1$d makes the names differ between units.
+    private static final String UNIT =
+        "// unit %1$d\n" +
+        "fun f%1$d(a, b) {\n" +
+        "    var sum = 0;\n" +
+        "    for (var i = 0; i < a; i = i + 1) {\n" +
+        "        var t = i * b - (a / 2);\n" +
+        "        if (t > 10 and !(t == 11)) { sum = sum + t; } else { sum = sum - 1; }\n" +
+        "    }\n" +
+        "    fun add(n) { return sum + n; }\n" +
+        "    return add;\n" +
+        "}\n" +
+        "class C%1$d < Base {\n" +
+        "    init(x) { this.x = x; }\n" +
+        "    get() { return super.get() + this.x; }\n" +
+        "}\n" +
+        "var v%1$d = f%1$d(%1$d, 2)(\"unit\");\n";
+
+    public static void main(String[] args) {
+        int largest = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+
+        // Warm up the JIT before taking any numbers.
+        String warmUp = generate(2 << 20);
+        for (int i = 0; i < 15; i++) compile(warmUp);
+
+        for (int megabytes = 1; megabytes <= largest; megabytes *= 2) {
+            String source = generate((long)megabytes << 20);
+            long best = Long.MAX_VALUE;
+            long bestWithoutGc = Long.MAX_VALUE;
+            for (int round = 0; round < 3; round++) {
+                System.gc();
+                long gc = gcMillis();
+                long nanos = compile(source);
+                best = Math.min(best, nanos);
+                bestWithoutGc = Math.min(bestWithoutGc, nanos - (gcMillis() - gc) * 1_000_000);
+            }
+            System.out.printf("%5d MB: %8.1f ms  %6.2f ns/byte  %6.1f MB/s  excluding GC %6.2f ns/byte%n",
+                megabytes, best / 1e6, (double)best / source.length(),
+                source.length() / 1e6 / (best / 1e9), (double)bestWithoutGc / source.length());
+        }
+    }
+
+    private static long compile(String source) {
+        long start = System.nanoTime();
+        Program program = Program.compile(source);
+        long nanos = System.nanoTime() - start;
+        if (program == null) throw new IllegalStateException("Generated script failed to compile.");
+        return nanos;
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += collector.getCollectionTime();
+        }
+        return total;
+    }
+
+    private static String generate(long bytes) {
+        StringBuilder source = new StringBuilder((int)Math.min(bytes + 1024, Integer.MAX_VALUE - 16));
+        source.append("class Base { get() { return 1; } }\n");
+        // Names repeat every 1000 units, as redefined globals, so the global table stays small.
+        for (int unit = 0; source.length() < bytes; unit++) {
+            source.append(String.format(UNIT, unit % 1000));
+        }
+        return source.toString();
+    }
+}
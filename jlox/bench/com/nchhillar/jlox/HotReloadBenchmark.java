@@ -0,0 +1,49 @@
+package com.nchhillar.jlox;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+// The edit loop with and without --watch: after changing one function of a large script, compare
+// running the whole script again with HotReload applying the edit to the running session.
+// The script is a prelude of many functions and a slow-to-build table, then a little main code.
+// Usage: HotReloadBenchmark [functions] [table size]
+public class HotReloadBenchmark {
+    public static void main(String[] args) {
+        int functions = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int tableSize = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+
+        for (int round = 0; round < 5; round++) {
+            String before = script(functions, tableSize, round * 2);
+            String after = script(functions, tableSize, round * 2 + 1);
+
+            long start = System.nanoTime();
+            Program program = Program.compile(after);
+            new Interpreter(discard, discard).interpret(program);
+            long full = System.nanoTime() - start;
+
+            HotReload session = new HotReload(new Interpreter(discard, discard));
+            session.load(before);
+            start = System.nanoTime();
+            if (!session.load(after)) throw new IllegalStateException("Reload failed.");
+            long reload = System.nanoTime() - start;
+
+            System.out.printf("round %d: full run %7.1f ms  reload %6.1f ms (%d recompiled)  %.0fx%n",
+                round, full / 1e6, reload / 1e6, session.recompiled, (double)full / reload);
+        }
+    }
+
+    // Every version is the same script but for the body of f0.
+    private static String script(int functions, int tableSize, int version) {
+        StringBuilder source = new StringBuilder();
+        source.append("fun f0(x) { return x + ").append(version).append("; }\n");
+        for (int i = 1; i < functions; i++) {
+            source.append("fun f").append(i).append("(x) { var y = x * 2; if (y > 10) { return f")
+                .append(i - 1).append("(y - 1); } return y; }\n");
+        }
+        source.append("fun build(n) { var table = list(); var i = 0; while (i < n) { table.push(i * i); i = i + 1; } return table; }\n");
+        source.append("var table = build(").append(tableSize).append(");\n");
+        source.append("print f").append(functions - 1).append("(3) + table.get(7);\n");
+        return source.toString();
+    }
+}
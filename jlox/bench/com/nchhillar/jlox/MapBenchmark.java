@@ -0,0 +1,74 @@
+package com.nchhillar.jlox;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+// Compares LoxMap with java.util.HashMap on number keys: put, get, remove, and retained heap.
+// Keys are passed as the boxed Doubles the interpreter already holds, so the difference is
+// HashMap's per-entry Node objects and pointer chasing versus LoxMap's flat unboxed key array.
+// Usage: MapBenchmark [entries]
+public class MapBenchmark {
+    public static void main(String[] args) {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Object[] keys = new Object[entries];
+        for (int i = 0; i < entries; i++) {
+            keys[i] = (double)(i * 7919L % entries);
+        }
+
+        for (int round = 0; round < 5; round++) {
+            long lox = timeLoxMap(keys);
+            long java = timeHashMap(keys);
+            System.out.printf("round %d: LoxMap %7.1f ms  HashMap %7.1f ms%n", round, lox / 1e6, java / 1e6);
+        }
+
+        System.out.printf("retained: LoxMap %.1f MB  HashMap %.1f MB%n",
+            retained(() -> fillLoxMap(keys)) / 1e6, retained(() -> fillHashMap(keys)) / 1e6);
+    }
+
+    private static long timeLoxMap(Object[] keys) {
+        long start = System.nanoTime();
+        LoxMap map = fillLoxMap(keys);
+        double sum = 0;
+        for (Object key : keys) sum += (double)map.get(key);
+        for (int i = 0; i < keys.length; i += 2) map.remove(keys[i]);
+        for (Object key : keys) if (map.containsKey(key)) sum++;
+        if (sum < 0) System.out.println(sum);
+        return System.nanoTime() - start;
+    }
+
+    private static long timeHashMap(Object[] keys) {
+        long start = System.nanoTime();
+        Map<Object, Object> map = fillHashMap(keys);
+        double sum = 0;
+        for (Object key : keys) sum += (double)map.get(key);
+        for (int i = 0; i < keys.length; i += 2) map.remove(keys[i]);
+        for (Object key : keys) if (map.containsKey(key)) sum++;
+        if (sum < 0) System.out.println(sum);
+        return System.nanoTime() - start;
+    }
+
+    private static LoxMap fillLoxMap(Object[] keys) {
+        LoxMap map = new LoxMap();
+        for (Object key : keys) map.put(key, key);
+        return map;
+    }
+
+    private static Map<Object, Object> fillHashMap(Object[] keys) {
+        Map<Object, Object> map = new HashMap<>();
+        for (Object key : keys) map.put(key, key);
+        return map;
+    }
+
+    // Rough heap growth while the built structure is still reachable.
+    private static long retained(Supplier<Object> build) {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        long before = runtime.totalMemory() - runtime.freeMemory();
+        Object kept = build.get();
+        System.gc();
+        long after = runtime.totalMemory() - runtime.freeMemory();
+        if (kept.hashCode() == 42) System.out.println();
+        return after - before;
+    }
+}
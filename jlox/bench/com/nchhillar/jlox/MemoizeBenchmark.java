@@ -0,0 +1,56 @@
+package com.nchhillar.jlox;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+// Scripts calling pure functions with repeated arguments, run as they are and with --memoize:
+// naive recursion, which memoizing turns from exponential to linear, and a loop calling a
+// costlier helper on a few distinct arguments.
+// Usage: MemoizeBenchmark [rounds]
+public class MemoizeBenchmark {
+    private static final String[] NAMES = { "fib(27)", "lookups" };
+
+    private static final String[] SCRIPTS = {
+        "fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }\n" +
+        "print fib(27);\n",
+
+        "fun digits(n) { var count = 0; while (n >= 1) { n = n / 10; count = count + 1; } return count; }\n" +
+        "fun weight(n) { var w = 0; for (var i = 0; i < 200; i = i + 1) w = w + digits(n * i + 1); return w; }\n" +
+        "var total = 0;\n" +
+        "for (var i = 0; i < 1000; i = i + 1) {\n" +
+        "    for (var k = 0; k < 16; k = k + 1) total = total + weight(k);\n" +
+        "}\n" +
+        "print total;\n",
+    };
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+
+        for (int i = 0; i < SCRIPTS.length; i++) {
+            Program program = Program.compile(SCRIPTS[i]);
+            long plain = Long.MAX_VALUE;
+            long memoized = Long.MAX_VALUE;
+            for (int round = 0; round < rounds; round++) {
+                plain = Math.min(plain, time(program, 0, discard));
+                memoized = Math.min(memoized, time(program, Memo.DEFAULT_CAPACITY, discard));
+            }
+            System.out.printf("%-8s plain %8.1f ms  memoized %8.1f ms  %.1fx%n",
+                NAMES[i], plain / 1e6, memoized / 1e6, (double)plain / memoized);
+        }
+
+        // What --memoize reports, for the last script.
+        Interpreter interpreter = new Interpreter(new OutputSink(OutputStream.nullOutputStream()), discard);
+        interpreter.memoize(Memo.DEFAULT_CAPACITY);
+        interpreter.interpret(Program.compile(SCRIPTS[SCRIPTS.length - 1]));
+        interpreter.reportMemos(System.out);
+    }
+
+    private static long time(Program program, int memoCapacity, PrintStream err) {
+        Interpreter interpreter = new Interpreter(new OutputSink(OutputStream.nullOutputStream()), err);
+        if (memoCapacity > 0) interpreter.memoize(memoCapacity);
+        long start = System.nanoTime();
+        if (!interpreter.interpret(program)) throw new IllegalStateException("Script failed.");
+        return System.nanoTime() - start;
+    }
+}
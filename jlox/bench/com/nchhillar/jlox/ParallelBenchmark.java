@@ -0,0 +1,41 @@
+package com.nchhillar.jlox;
+
+import java.util.concurrent.ForkJoinPool;
+
+// Compares a sequential Lox loop against parallelMap and parallelReduce on the same list.
+// Run with -Djava.util.concurrent.ForkJoinPool.common.parallelism=N to pin the worker count.
+// Usage: ParallelBenchmark [elements]
+public class ParallelBenchmark {
+    public static void main(String[] args) {
+        int elements = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        String script =
+            "fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }\n" +
+            "fun work(x) { return fib(15) + x; }\n" +
+            "fun add(a, b) { return a + b; }\n" +
+            "var xs = list();\n" +
+            "for (var i = 0; i < " + elements + "; i = i + 1) xs.push(i);\n" +
+            "var start = clock();\n" +
+            "var seq = list();\n" +
+            "for (var i = 0; i < xs.length(); i = i + 1) seq.push(work(xs.get(i)));\n" +
+            "var total = 0;\n" +
+            "for (var i = 0; i < seq.length(); i = i + 1) total = add(total, seq.get(i));\n" +
+            "print clock() - start;\n" +
+            "start = clock();\n" +
+            "var par = parallelReduce(parallelMap(xs, work), add, 0);\n" +
+            "print clock() - start;\n" +
+            "print total == par;\n";
+
+        Program program = Program.compile(script);
+        System.out.println("elements: " + elements + ", pool parallelism: " +
+            ForkJoinPool.getCommonPoolParallelism());
+
+        for (int round = 0; round < 5; round++) {
+            InterpreterPool.Result result = InterpreterPool.run(program);
+            String[] lines = result.output.split("\n");
+            double sequential = Double.parseDouble(lines[0]);
+            double parallel = Double.parseDouble(lines[1]);
+            System.out.printf("round %d: sequential %.3fs  parallel %.3fs  speedup %.2fx  same result: %s%n",
+                round, sequential, parallel, sequential / parallel, lines[2]);
+        }
+    }
+}
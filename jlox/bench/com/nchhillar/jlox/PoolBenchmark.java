@@ -0,0 +1,57 @@
+package com.nchhillar.jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+// Measures tenant throughput of InterpreterPool as the thread count grows.
+// One Program is compiled up front and every tenant run executes that same shared AST.
+// Usage: PoolBenchmark [runs per round]
+public class PoolBenchmark {
+    private static final String SCRIPT =
+        "fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }\n" +
+        "class Counter { init() { this.count = 0; } add(n) { this.count = this.count + n; } }\n" +
+        "var counter = Counter();\n" +
+        "for (var i = 0; i < 20; i = i + 1) { counter.add(fib(15)); }\n" +
+        "print counter.count;\n";
+
+    public static void main(String[] args) throws Exception {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        Program program = Program.compile(SCRIPT);
+        String expected = InterpreterPool.run(program).output;
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("cores: " + cores + ", runs per round: " + runs);
+
+        // Warm up the JIT before taking any numbers.
+        measure(program, cores, runs, expected);
+
+        double baseline = 0;
+        for (int threads = 1; threads <= cores * 2; threads *= 2) {
+            double perSecond = measure(program, threads, runs, expected);
+            if (threads == 1) baseline = perSecond;
+            System.out.printf("threads %3d: %10.1f runs/s  speedup %5.2fx%n",
+                threads, perSecond, perSecond / baseline);
+        }
+    }
+
+    private static double measure(Program program, int threads, int runs, String expected) throws Exception {
+        try (InterpreterPool pool = new InterpreterPool(threads)) {
+            List<Future<InterpreterPool.Result>> results = new ArrayList<>(runs);
+            long start = System.nanoTime();
+            for (int i = 0; i < runs; i++) {
+                results.add(pool.submit(program));
+            }
+
+            for (Future<InterpreterPool.Result> result : results) {
+                InterpreterPool.Result run = result.get();
+                if (!run.succeeded || !run.output.equals(expected)) {
+                    throw new IllegalStateException("Tenant run diverged: " + run.output + run.errors);
+                }
+            }
+
+            double seconds = (System.nanoTime() - start) / 1e9;
+            return runs / seconds;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.nchhillar.jlox;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+// Times a Lox loop printing numbers and strings through OutputSink, writing inline and with the
+// background writer, against the old path of one PrintStream.println(stringify(value)) per print.
+// Output goes to /dev/null by default so the numbers measure formatting and buffering, not a terminal.
+// Usage: PrintBenchmark [lines] [file]
+public class PrintBenchmark {
+    public static void main(String[] args) throws IOException {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        String path = args.length > 1 ? args[1] : "/dev/null";
+        Program program = Program.compile(
+            "for (var i = 0; i < " + lines + "; i = i + 1) { print i; print \"line\"; print i / 4; }");
+
+        for (int round = 0; round < 3; round++) {
+            try (OutputStream file = new FileOutputStream(path)) {
+                PrintStream stream = new PrintStream(new BufferedOutputStream(file), true);
+                long printStream = time(() -> {
+                    for (int i = 0; i < lines; i++) {
+                        stream.println(Interpreter.stringify((double)i));
+                        stream.println(Interpreter.stringify("line"));
+                        stream.println(Interpreter.stringify(i / 4.0));
+                    }
+                });
+                long inline = run(program, new OutputSink(file));
+                long background = run(program, new OutputSink(file, OutputSink.DEFAULT_THRESHOLD, 0, true));
+                System.out.printf("round %d: PrintStream (no interpreter) %6.0f ms  sink %6.0f ms  " +
+                    "sink + writer thread %6.0f ms%n", round, printStream / 1e6, inline / 1e6, background / 1e6);
+            }
+        }
+    }
+
+    private static long run(Program program, OutputSink sink) {
+        Interpreter interpreter = new Interpreter(sink, System.err);
+        return time(() -> interpreter.interpret(program));
+    }
+
+    private static long time(Runnable body) {
+        long start = System.nanoTime();
+        body.run();
+        return System.nanoTime() - start;
+    }
+}
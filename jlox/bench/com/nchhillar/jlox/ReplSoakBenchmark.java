@@ -0,0 +1,61 @@
+package com.nchhillar.jlox;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+// Soak test for a long-lived session: one Interpreter evaluates snippets the way the REPL does,
+// compiling each line on its own, and the heap left after a full GC is printed every so often.
+// The first snippets define what the session keeps (globals, closures, classes); after that the
+// retained heap must stay flat however many more snippets run, including ones that mention global
+// names never seen before. With "hosted" it is an embedding host instead: every snippet defines a
+// new global too, and a fresh Interpreter takes over every SESSION_LENGTH snippets, so what the
+// old sessions defined must go with them.
+// Usage: ReplSoakBenchmark [snippets] [hosted]
+public class ReplSoakBenchmark {
+    private static final String[] SNIPPETS = {
+        "var counter = 0;",
+        "fun make(n) { var total = n; fun add(k) { total = total + k; return total; } return add; }",
+        "var adder = make(%1$d);",
+        "counter = counter + adder(1);",
+        "class Point { init(x, y) { this.x = x; this.y = y; } sum() { return this.x + this.y; } }",
+        "var p = Point(%1$d, 2); print p.sum();",
+        "{ var s = \"line \" + \"%1$d\"; var i = 0; while (i < 3) { s = s + \"!\"; i = i + 1; } print s; }",
+        "fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); } print fib(10);",
+        "print undefinedName%1$d;",
+        "var = broken %1$d",
+    };
+    private static final int SESSION_LENGTH = 1000;
+
+    public static void main(String[] args) {
+        long snippets = args.length > 0 ? Long.parseLong(args[0]) : 2_000_000;
+        boolean hosted = args.length > 1 && args[1].equals("hosted");
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        Interpreter interpreter = new Interpreter(discard, discard);
+        PrintStream err = System.err;
+        System.setErr(discard);   // compile errors are reported there
+
+        long report = Math.max(snippets / 10, 1);
+        long start = System.nanoTime();
+        for (long i = 0; i < snippets; i++) {
+            String source = String.format(SNIPPETS[(int)(i % SNIPPETS.length)], i);
+            if (hosted) {
+                source += " var fresh" + i + " = " + i + ";";
+                if (i % SESSION_LENGTH == 0) interpreter = new Interpreter(discard, discard);
+            }
+            Program program = Program.compile(source);
+            if (program != null) interpreter.interpret(program);
+
+            if ((i + 1) % report == 0) {
+                System.out.printf("%,12d snippets  %8.1f us each  retained %7.2f MB%n", i + 1,
+                    (System.nanoTime() - start) / 1e3 / (i + 1), retainedMegabytes());
+            }
+        }
+        System.setErr(err);
+    }
+
+    private static double retainedMegabytes() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return (runtime.totalMemory() - runtime.freeMemory()) / 1e6;
+    }
+}
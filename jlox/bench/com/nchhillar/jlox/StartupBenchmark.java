@@ -0,0 +1,79 @@
+package com.nchhillar.jlox;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Wall time of a whole `java Jlox script` process for a short script: with class sharing off,
+// with only the JDK's own archive, with the jlox archive cds/archive.sh builds, and with that
+// archive running the script compiled ahead of time by --compile.
+// Usage: StartupBenchmark <jlox.jar> <jlox.jsa> [runs]
+public class StartupBenchmark {
+    private static final String SCRIPT =
+        "class Greeter { init(name) { this.name = name; } greet() { return \"hello \" + this.name; } }\n" +
+        "fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }\n" +
+        "var names = list(); names.push(\"lox\"); names.push(\"jvm\");\n" +
+        "for (var i = 0; i < names.length(); i = i + 1) print Greeter(names.get(i)).greet();\n" +
+        "print fib(15);\n";
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.out.println("Usage: StartupBenchmark <jlox.jar> <jlox.jsa> [runs]");
+            System.exit(64);
+        }
+        String jar = args[0];
+        String archive = args[1];
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        if (!Files.isRegularFile(Paths.get(archive))) throw new IllegalStateException("No archive " + archive + ".");
+
+        Path directory = Files.createTempDirectory("jlox-startup");
+        Path script = directory.resolve("startup.lox");
+        Path compiled = directory.resolve("startup" + Program.COMPILED_EXTENSION);
+        Files.write(script, SCRIPT.getBytes(StandardCharsets.UTF_8));
+
+        String java = ProcessHandle.current().info().command().orElse("java");
+        time(Arrays.asList(java, "-cp", jar, "com.nchhillar.jlox.Jlox", "--compile", script.toString()));
+
+        String[] names = { "no sharing", "JDK archive", "jlox archive", "archive + .loxc" };
+        List<List<String>> commands = new ArrayList<>();
+        commands.add(Arrays.asList(java, "-Xshare:off", "-cp", jar, "com.nchhillar.jlox.Jlox", script.toString()));
+        commands.add(Arrays.asList(java, "-cp", jar, "com.nchhillar.jlox.Jlox", script.toString()));
+        commands.add(Arrays.asList(java, "-Xshare:on", "-XX:SharedArchiveFile=" + archive, "-cp", jar,
+            "com.nchhillar.jlox.Jlox", script.toString()));
+        commands.add(Arrays.asList(java, "-Xshare:on", "-XX:SharedArchiveFile=" + archive, "-cp", jar,
+            "com.nchhillar.jlox.Jlox", compiled.toString()));
+
+        // Interleaved, so a change in machine load hits every configuration alike.
+        long[][] nanos = new long[commands.size()][runs];
+        for (int run = 0; run < runs; run++) {
+            for (int i = 0; i < commands.size(); i++) {
+                nanos[i][run] = time(commands.get(i));
+            }
+        }
+
+        for (int i = 0; i < commands.size(); i++) {
+            Arrays.sort(nanos[i]);
+            System.out.printf("%-16s median %6.1f ms  best %6.1f ms%n",
+                names[i], nanos[i][runs / 2] / 1e6, nanos[i][0] / 1e6);
+        }
+
+        Files.delete(compiled);
+        Files.delete(script);
+        Files.delete(directory);
+    }
+
+    private static long time(List<String> command) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+            .start();
+        if (process.waitFor() != 0) throw new IllegalStateException(String.join(" ", command) + " failed.");
+        return System.nanoTime() - start;
+    }
+}
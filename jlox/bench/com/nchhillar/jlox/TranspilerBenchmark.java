@@ -0,0 +1,128 @@
+package com.nchhillar.jlox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+// Runs each script with the interpreter and as a class compiled by JavaTranspiler, checks that
+// both print the same output and errors, and compares the best time of each.
+// Needs a JDK, for javac. The classes are defined in this package, so they can reach the runtime.
+// Usage: TranspilerBenchmark [scripts]
+public class TranspilerBenchmark {
+    private static final String[] NAMES = { "fib", "loops", "methods", "closures" };
+
+    private static final String[] SCRIPTS = {
+        "fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }\n" +
+        "print fib(27);\n",
+
+        "fun run() {\n" +
+        "    var sum = 0;\n" +
+        "    for (var i = 0; i < 3000000; i = i + 1) {\n" +
+        "        if (i / 2 > 100) sum = sum + i * 2; else sum = sum - 1;\n" +
+        "    }\n" +
+        "    return sum;\n" +
+        "}\n" +
+        "print run();\n",
+
+        "class Shape { init(n) { this.n = n; } area() { return this.n; } }\n" +
+        "class Square < Shape { area() { return this.n * this.n; } }\n" +
+        "class Circle < Shape { area() { return 3 * super.area() * this.n; } }\n" +
+        "fun run() {\n" +
+        "    var a = Square(3); var b = Circle(2); var t = 0;\n" +
+        "    for (var i = 0; i < 500000; i = i + 1) t = t + a.area() + b.area() + Square(i).n;\n" +
+        "    return t;\n" +
+        "}\n" +
+        "print run();\n",
+
+        "fun counter() { var count = 0; fun next() { count = count + 1; return count; } return next; }\n" +
+        "fun run() {\n" +
+        "    var t = 0;\n" +
+        "    for (var i = 0; i < 100000; i = i + 1) { var tick = counter(); tick(); t = t + tick(); }\n" +
+        "    return t;\n" +
+        "}\n" +
+        "print run();\n",
+    };
+
+    public static void main(String[] args) throws Exception {
+        List<String> names = new ArrayList<>();
+        List<String> sources = new ArrayList<>();
+        for (int i = 0; i < SCRIPTS.length; i++) {
+            names.add(NAMES[i]);
+            sources.add(SCRIPTS[i]);
+        }
+        for (String arg : args) {
+            names.add(arg);
+            sources.add(new String(Files.readAllBytes(Paths.get(arg)), Charset.defaultCharset()));
+        }
+
+        Path dir = Files.createTempDirectory("transpiled");
+        for (int i = 0; i < sources.size(); i++) {
+            Program program = Program.compile(sources.get(i));
+            if (program == null) throw new IllegalStateException(names.get(i) + " doesn't compile.");
+            Constructor<?> script = compile(dir, "Transpiled" + i, sources.get(i));
+
+            long interpreted = Long.MAX_VALUE;
+            long compiled = Long.MAX_VALUE;
+            for (int round = 0; round < 5; round++) {
+                long start = System.nanoTime();
+                InterpreterPool.Result expected = InterpreterPool.run(program);
+                interpreted = Math.min(interpreted, System.nanoTime() - start);
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ByteArrayOutputStream err = new ByteArrayOutputStream();
+                OutputSink sink = new OutputSink(out);
+                start = System.nanoTime();
+                boolean succeeded = ((CompiledScript)script.newInstance(sink, new PrintStream(err, true))).execute();
+                compiled = Math.min(compiled, System.nanoTime() - start);
+
+                if (succeeded != expected.succeeded || !out.toString().equals(expected.output) ||
+                        !err.toString().equals(expected.errors)) {
+                    throw new IllegalStateException(names.get(i) + " ran differently compiled:\n" +
+                        out + err + "\ninstead of:\n" + expected.output + expected.errors);
+                }
+            }
+            System.out.printf("%-12s interpreted %8.2f ms  compiled %8.2f ms  (%.1fx)%n",
+                names.get(i), interpreted / 1e6, compiled / 1e6, (double)interpreted / compiled);
+        }
+    }
+
+    // Transpiles, compiles and loads the script, returning its (OutputSink, PrintStream) constructor.
+    private static Constructor<?> compile(Path dir, String className, String source) throws Exception {
+        Path java = dir.resolve(className + ".java");
+        Files.write(java, JavaTranspiler.transpile(source, className).getBytes(Charset.forName("US-ASCII")));
+
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        int status = javac.run(null, null, null, "-nowarn", "-cp", System.getProperty("java.class.path"),
+            "-d", dir.toString(), java.toString());
+        if (status != 0) throw new IllegalStateException("javac failed on " + java + ".");
+
+        // The script class first: its closures' classes refer to it.
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        Path classes = dir.resolve("com/nchhillar/jlox");
+        Class<?> script = lookup.defineClass(Files.readAllBytes(classes.resolve(className + ".class")));
+        for (Path inner : innerClasses(classes, className)) {
+            lookup.defineClass(Files.readAllBytes(inner));
+        }
+        return script.getDeclaredConstructor(OutputSink.class, PrintStream.class);
+    }
+
+    private static List<Path> innerClasses(Path classes, String className) throws IOException {
+        try (Stream<Path> files = Files.list(classes)) {
+            return files.filter(file -> file.getFileName().toString().startsWith(className + "$"))
+                .sorted()
+                .collect(Collectors.toList());
+        }
+    }
+}
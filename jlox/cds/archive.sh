@@ -0,0 +1,38 @@
+#!/bin/sh
+# Builds an AppCDS archive of the jlox classes, so a short `jlox script` run maps them in ready
+# parsed and verified instead of loading each from the jar:
+#   cds/archive.sh jlox.jar jlox.jsa
+#   java -XX:SharedArchiveFile=jlox.jsa -cp jlox.jar com.nchhillar.jlox.Jlox script.lox
+# The classes archived are those training.lox loads compiling, running, and running compiled
+# (--compile, then the .loxc), listed by three training runs and dumped together. The archive
+# only matches the jar and the java it was built with; with any other, java warns and starts
+# without it. The jar has to be given the same way when running as here.
+set -e
+
+if [ $# -lt 1 ] || [ $# -gt 2 ]; then
+    echo "Usage: archive.sh <jlox.jar> [archive]"
+    exit 64
+fi
+jar=$1
+archive=${2:-jlox.jsa}
+java=${JAVA:-java}
+training=$(dirname "$0")/training.lox
+
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+cp "$training" "$work/training.lox"
+
+run() {
+    list=$1
+    shift
+    "$java" -Xshare:off -XX:DumpLoadedClassList="$work/$list.classlist" -cp "$jar" com.nchhillar.jlox.Jlox "$@" > /dev/null
+}
+run compile --compile "$work/training.lox"
+run interpret "$work/training.lox"
+run compiled "$work/training.loxc"
+# The lists number their classes, and the numbers differ from run to run: keep just the names.
+sed -e '/^[@#]/d' -e 's/ id: .*//' "$work"/*.classlist | sort -u > "$work/jlox.classlist"
+
+"$java" -Xshare:dump -XX:SharedClassListFile="$work/jlox.classlist" -XX:SharedArchiveFile="$archive" \
+    -cp "$jar" > "$work/dump.log" 2>&1 || { cat "$work/dump.log"; exit 1; }
+echo "Wrote $archive. Run with: $java -XX:SharedArchiveFile=$archive -cp $jar com.nchhillar.jlox.Jlox"
@@ -28,6 +28,51 @@ class AstPrinter implements Expr.Visitor<String> {
         return parenthesize(expr.operator.lexeme, expr.right);
     }
 
+    @Override
+    public String visitAssignExpr(Expr.Assign expr) {
+        return parenthesize("= " + expr.name.lexeme, expr.value);
+    }
+
+    @Override
+    public String visitCallExpr(Expr.Call expr) {
+        Expr[] parts = new Expr[expr.arguments.size() + 1];
+        parts[0] = expr.callee;
+        for (int i = 0; i < expr.arguments.size(); i++) {
+            parts[i + 1] = expr.arguments.get(i);
+        }
+        return parenthesize("call", parts);
+    }
+
+    @Override
+    public String visitGetExpr(Expr.Get expr) {
+        return parenthesize("." + expr.name.lexeme, expr.object);
+    }
+
+    @Override
+    public String visitLogicalExpr(Expr.Logical expr) {
+        return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+    }
+
+    @Override
+    public String visitSetExpr(Expr.Set expr) {
+        return parenthesize("= ." + expr.name.lexeme, expr.object, expr.value);
+    }
+
+    @Override
+    public String visitSuperExpr(Expr.Super expr) {
+        return "(super " + expr.method.lexeme + ")";
+    }
+
+    @Override
+    public String visitThisExpr(Expr.This expr) {
+        return "this";
+    }
+
+    @Override
+    public String visitVariableExpr(Expr.Variable expr) {
+        return expr.name.lexeme;
+    }
+
     // Helper: wrap name and sub-expressions in parentheses.
     // Example: parenthesize("+", 1, 2) -> "(+ 1 2)"
     private String parenthesize(String name, Expr... exprs) {
@@ -0,0 +1,185 @@
+package com.nchhillar.jlox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// --batch: runs many scripts in one JVM, so they share its startup and the interpreter code the
+// JIT has already compiled, instead of each paying for a java process of its own.
+// The scripts are the *.lox files of a directory, in name order, or the paths listed in a
+// manifest file, one per line ('#' starts a comment, relative paths are from the manifest's
+// directory). They run on a work-stealing pool, each compiled on its own and run by its own
+// Interpreter with its output captured, so none sees another's globals or output. The outputs
+// are written in the scripts' order, each under a header naming the script, as soon as the ones
+// before it are done; then a summary of the statuses and timings goes to err.
+final class BatchRunner {
+    private static final int SLOWEST_SHOWN = 10;
+
+    // What running one script came to. status is the exit code running it alone would give.
+    static final class Outcome {
+        final Path script;
+        final int status;
+        final String output;
+        final String errors;
+        final long nanos;      // reading, compiling and running it
+
+        Outcome(Path script, int status, String output, String errors, long nanos) {
+            this.script = script;
+            this.status = status;
+            this.output = output;
+            this.errors = errors;
+            this.nanos = nanos;
+        }
+    }
+
+    private final int threads;
+    private final int heapStackDepth;   // 0 to run on the Java stack
+
+    BatchRunner(int threads, int heapStackDepth) {
+        this.threads = threads;
+        this.heapStackDepth = heapStackDepth;
+    }
+
+    // The scripts a directory or manifest names.
+    static List<Path> scripts(Path source) throws IOException {
+        List<Path> scripts = new ArrayList<>();
+        if (Files.isDirectory(source)) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(source, "*.lox")) {
+                for (Path entry : entries) scripts.add(entry);
+            }
+            scripts.sort(Comparator.naturalOrder());
+            return scripts;
+        }
+
+        Path base = source.toAbsolutePath().getParent();
+        for (String line : Files.readAllLines(source, Charset.defaultCharset())) {
+            int comment = line.indexOf('#');
+            String entry = (comment == -1 ? line : line.substring(0, comment)).trim();
+            if (!entry.isEmpty()) scripts.add(base.resolve(entry));
+        }
+        return scripts;
+    }
+
+    // Runs every script, writing each output to out and errors to err as described above.
+    // Returns the highest status of any script: 0, 65 (compile error), 66 (unreadable) or 70
+    // (runtime error).
+    int run(List<Path> scripts, PrintStream out, PrintStream err) throws InterruptedException {
+        ExecutorService pool = Executors.newWorkStealingPool(threads);
+        long start = System.nanoTime();
+        List<Future<Outcome>> pending = new ArrayList<>(scripts.size());
+        for (Path script : scripts) {
+            pending.add(pool.submit(() -> run(script)));
+        }
+
+        Outcome[] outcomes = new Outcome[scripts.size()];
+        int status = 0;
+        try {
+            for (int i = 0; i < outcomes.length; i++) {
+                Outcome outcome = outcomes[i] = pending.get(i).get();
+                out.println("==> " + outcome.script + " <==");
+                out.print(outcome.output);
+                if (!outcome.errors.isEmpty()) {
+                    out.flush();
+                    err.println("==> " + outcome.script + " <==");
+                    err.print(outcome.errors);
+                    err.flush();
+                }
+                status = Math.max(status, outcome.status);
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Batch script failed.", e.getCause());
+        } finally {
+            pool.shutdownNow();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        out.flush();
+
+        summarize(outcomes, System.nanoTime() - start, err);
+        return status;
+    }
+
+    // Runs one script on the calling thread, as `jlox script` would.
+    Outcome run(Path script) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(output, false, StandardCharsets.UTF_8);
+        PrintStream err = new PrintStream(errors, false, StandardCharsets.UTF_8);
+
+        long start = System.nanoTime();
+        int status = run(script, out, err);
+        long nanos = System.nanoTime() - start;
+
+        out.flush();
+        err.flush();
+        return new Outcome(script, status,
+            output.toString(StandardCharsets.UTF_8),
+            errors.toString(StandardCharsets.UTF_8),
+            nanos);
+    }
+
+    private int run(Path script, PrintStream out, PrintStream err) {
+        String source;
+        try {
+            source = new String(Files.readAllBytes(script), Charset.defaultCharset());
+        } catch (IOException e) {
+            err.println("Cannot read " + script + ".");
+            return 66;
+        }
+
+        Program program = Program.compile(source, new ErrorReporter(err));
+        if (program == null) return 65;
+
+        Interpreter interpreter = new Interpreter(out, err);
+        if (heapStackDepth > 0) interpreter.useHeapStack(heapStackDepth);
+        return interpreter.interpret(program) ? 0 : 70;
+    }
+
+    private void summarize(Outcome[] outcomes, long wallNanos, PrintStream err) {
+        int[] counts = new int[71];
+        long[] nanos = new long[outcomes.length];
+        long total = 0;
+        for (int i = 0; i < outcomes.length; i++) {
+            counts[outcomes[i].status]++;
+            nanos[i] = outcomes[i].nanos;
+            total += nanos[i];
+        }
+        Arrays.sort(nanos);
+
+        err.printf("batch: %d scripts, %d ok, %d compile errors, %d runtime errors, %d unreadable%n",
+            outcomes.length, counts[0], counts[65], counts[70], counts[66]);
+        err.printf("time: %.1f ms wall, %.1f ms in scripts on %d threads%n",
+            wallNanos / 1e6, total / 1e6, threads);
+        if (outcomes.length == 0) return;
+
+        err.printf("per script: p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+            percentile(nanos, 50) / 1e6, percentile(nanos, 90) / 1e6,
+            percentile(nanos, 99) / 1e6, nanos[nanos.length - 1] / 1e6);
+
+        Outcome[] slowest = outcomes.clone();
+        Arrays.sort(slowest, Comparator.comparingLong((Outcome outcome) -> outcome.nanos).reversed());
+        err.println("slowest:");
+        for (int i = 0; i < Math.min(SLOWEST_SHOWN, slowest.length); i++) {
+            err.printf("%10.2f ms  %s%n", slowest[i].nanos / 1e6, slowest[i].script);
+        }
+    }
+
+    // Nearest-rank percentile of sorted values.
+    private static long percentile(long[] sorted, int percent) {
+        int rank = (int)Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+}
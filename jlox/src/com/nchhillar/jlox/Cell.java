@@ -0,0 +1,13 @@
+package com.nchhillar.jlox;
+
+// A local variable some closure captures. Its frame slot holds the Cell rather than the value, and
+// every closure that captures the variable holds the same Cell, so they all see each assignment.
+// Each execution of the declaration makes a new Cell: every pass through a loop body gets a fresh
+// binding even though the slot is reused.
+final class Cell {
+    Object value;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,671 @@
+package com.nchhillar.jlox;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A resolved AST flattened into three arrays, for keeping many compiled programs in memory.
+// Nodes are written in pre-order: kinds has one byte per node, with NONE standing in for a missing
+// child, and operands has each node's tokens, constants, list lengths and resolved slots in the
+// order its kind reads them back, as zigzag varints since nearly all of them are small. A token is
+// its type, lexeme and line; lexemes and literal values go in one deduplicated constant pool, so
+// a name used a thousand times is one String. Globals are kept by name and looked up again when
+// the tree is rebuilt, so nothing in the arrays depends on the process that compiled them.
+// The arrays can't be run as they are: materialize() rebuilds the Expr/Stmt tree, resolver
+// annotations and all, in one linear pass. write() and read() save them to a file and back, for
+// scripts compiled ahead of time (see Program.write).
+final class CompactAst {
+    private static final byte NONE = 0;
+    private static final byte ASSIGN = 1;
+    private static final byte BINARY = 2;
+    private static final byte CALL = 3;
+    private static final byte GET = 4;
+    private static final byte GROUPING = 5;
+    private static final byte LITERAL = 6;
+    private static final byte LOGICAL = 7;
+    private static final byte SET = 8;
+    private static final byte THIS = 9;
+    private static final byte SUPER = 10;
+    private static final byte UNARY = 11;
+    private static final byte VARIABLE = 12;
+    private static final byte BLOCK = 13;
+    private static final byte CLASS = 14;
+    private static final byte EXPRESSION = 15;
+    private static final byte FUNCTION = 16;
+    private static final byte IF = 17;
+    private static final byte PRINT = 18;
+    private static final byte RETURN = 19;
+    private static final byte VAR = 20;
+    private static final byte WHILE = 21;
+
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+    // Tags of the constants in a written pool.
+    private static final byte STRING = 0;
+    private static final byte NUMBER = 1;
+    private static final byte TRUE = 2;
+    private static final byte FALSE = 3;
+
+    private final byte[] kinds;
+    private final byte[] operands;
+    private final Object[] constants;
+    private final int statementCount;
+
+    private CompactAst(Encoder encoder, int statementCount) {
+        this.kinds = Arrays.copyOf(encoder.kinds, encoder.kindCount);
+        this.operands = Arrays.copyOf(encoder.operands, encoder.operandCount);
+        this.constants = encoder.constants.toArray();
+        this.statementCount = statementCount;
+    }
+
+    private CompactAst(byte[] kinds, byte[] operands, Object[] constants, int statementCount) {
+        this.kinds = kinds;
+        this.operands = operands;
+        this.constants = constants;
+        this.statementCount = statementCount;
+    }
+
+    static CompactAst encode(List<Stmt> statements) {
+        Encoder encoder = new Encoder();
+        for (Stmt statement : statements) {
+            encoder.stmt(statement);
+        }
+        return new CompactAst(encoder, statements.size());
+    }
+
+    // Builds a fresh tree; every call returns new nodes.
+    // Its functions hold the GlobalNames of the globals in it, as the Resolver's do; the top-level
+    // code relies on its Program holding them.
+    List<Stmt> materialize() {
+        return materialize(0);
+    }
+
+    // With every token's line moved by lines, for source that moved without changing.
+    List<Stmt> materialize(int lines) {
+        Decoder decoder = new Decoder(lines);
+        List<Stmt> statements = new ArrayList<>(statementCount);
+        for (int i = 0; i < statementCount; i++) {
+            statements.add(decoder.stmt());
+        }
+
+        Environment.GlobalName[] globals = decoder.globals.values().toArray(new Environment.GlobalName[0]);
+        for (Stmt.Function function : decoder.functions) {
+            function.globals = globals;
+        }
+        return statements;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(statementCount);
+        out.writeInt(kinds.length);
+        out.write(kinds);
+        out.writeInt(operands.length);
+        out.write(operands);
+        out.writeInt(constants.length);
+        for (Object constant : constants) {
+            if (constant instanceof String) {
+                // Not writeUTF(), which is limited to 64K bytes.
+                byte[] bytes = ((String)constant).getBytes(StandardCharsets.UTF_8);
+                out.writeByte(STRING);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            } else if (constant instanceof Double) {
+                out.writeByte(NUMBER);
+                out.writeDouble((double)constant);
+            } else {
+                out.writeByte((boolean)constant ? TRUE : FALSE);
+            }
+        }
+    }
+
+    // Only checks what it must to read the arrays; it trusts that they came from write().
+    static CompactAst read(DataInputStream in) throws IOException {
+        int statementCount = in.readInt();
+        byte[] kinds = new byte[in.readInt()];
+        in.readFully(kinds);
+        byte[] operands = new byte[in.readInt()];
+        in.readFully(operands);
+        Object[] constants = new Object[in.readInt()];
+        for (int i = 0; i < constants.length; i++) {
+            byte tag = in.readByte();
+            switch (tag) {
+                case STRING: {
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    constants[i] = new String(bytes, StandardCharsets.UTF_8).intern();
+                    break;
+                }
+                case NUMBER: constants[i] = in.readDouble(); break;
+                case TRUE: constants[i] = Boolean.TRUE; break;
+                case FALSE: constants[i] = Boolean.FALSE; break;
+                default: throw new IOException("Unknown constant tag " + tag + ".");
+            }
+        }
+        return new CompactAst(kinds, operands, constants, statementCount);
+    }
+
+    private static final class Encoder implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        byte[] kinds = new byte[256];
+        int kindCount = 0;
+        byte[] operands = new byte[1024];
+        int operandCount = 0;
+
+        final List<Object> constants = new ArrayList<>();
+        final Map<Object, Integer> constantIndexes = new HashMap<>();
+
+        void stmt(Stmt stmt) {
+            if (stmt == null) {
+                kind(NONE);
+            } else {
+                stmt.accept(this);
+            }
+        }
+
+        void expr(Expr expr) {
+            if (expr == null) {
+                kind(NONE);
+            } else {
+                expr.accept(this);
+            }
+        }
+
+        void statements(List<Stmt> statements) {
+            operand(statements.size());
+            for (Stmt statement : statements) {
+                stmt(statement);
+            }
+        }
+
+        // Whether a global index was resolved; the index itself is looked up again by name.
+        void global(int global) {
+            operand(global == -1 ? 0 : 1);
+        }
+
+        void flag(boolean value) {
+            operand(value ? 1 : 0);
+        }
+
+        void ints(int[] values) {
+            operand(values.length);
+            for (int value : values) {
+                operand(value);
+            }
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            kind(ASSIGN);
+            token(expr.name);
+            operand(expr.slot);
+            operand(expr.upvalue);
+            flag(expr.boxed);
+            global(expr.global);
+            expr(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            kind(BINARY);
+            token(expr.operator);
+            flag(expr.numeric);
+            expr(expr.left);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            kind(CALL);
+            token(expr.paren);
+            flag(expr.direct);
+            operand(expr.arguments.size());
+            expr(expr.callee);
+            for (Expr argument : expr.arguments) {
+                expr(argument);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            kind(GET);
+            token(expr.name);
+            flag(expr.onInstance);
+            expr(expr.object);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            kind(GROUPING);
+            expr(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            kind(LITERAL);
+            operand(expr.value == null ? -1 : constant(expr.value));
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            kind(LOGICAL);
+            token(expr.operator);
+            expr(expr.left);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            kind(SET);
+            token(expr.name);
+            flag(expr.onInstance);
+            expr(expr.object);
+            expr(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            kind(THIS);
+            token(expr.keyword);
+            operand(expr.slot);
+            operand(expr.upvalue);
+            flag(expr.boxed);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            kind(SUPER);
+            token(expr.keyword);
+            token(expr.method);
+            operand(expr.upvalue);
+            expr(expr.receiver);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            kind(UNARY);
+            token(expr.operator);
+            flag(expr.numeric);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            kind(VARIABLE);
+            token(expr.name);
+            operand(expr.slot);
+            operand(expr.upvalue);
+            flag(expr.boxed);
+            global(expr.global);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            kind(BLOCK);
+            statements(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            kind(CLASS);
+            token(stmt.name);
+            operand(stmt.slot);
+            global(stmt.global);
+            flag(stmt.captured);
+            operand(stmt.superSlot);
+            operand(stmt.methods.size());
+            expr(stmt.superclass);
+            for (Stmt.Function method : stmt.methods) {
+                stmt(method);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            kind(EXPRESSION);
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            kind(FUNCTION);
+            token(stmt.name);
+            operand(stmt.slot);
+            global(stmt.global);
+            flag(stmt.captured);
+            operand(stmt.locals);
+            ints(stmt.upvalues);
+            ints(stmt.boxedParameters);
+            flag(stmt.pure);
+            operand(stmt.params.size());
+            for (Token param : stmt.params) {
+                token(param);
+            }
+            statements(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            kind(IF);
+            expr(stmt.condition);
+            stmt(stmt.thenBranch);
+            stmt(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            kind(PRINT);
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            kind(RETURN);
+            token(stmt.keyword);
+            expr(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            kind(VAR);
+            token(stmt.name);
+            operand(stmt.slot);
+            global(stmt.global);
+            flag(stmt.captured);
+            expr(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            kind(WHILE);
+            expr(stmt.condition);
+            stmt(stmt.body);
+            return null;
+        }
+
+        private void kind(byte kind) {
+            if (kindCount == kinds.length) kinds = Arrays.copyOf(kinds, kindCount * 2);
+            kinds[kindCount++] = kind;
+        }
+
+        // Zigzag, so -1 is as short as 1, then seven bits per byte, low bits first.
+        private void operand(int value) {
+            int bits = (value << 1) ^ (value >> 31);
+            if (operandCount + 5 > operands.length) operands = Arrays.copyOf(operands, operands.length * 2);
+            while ((bits & ~0x7f) != 0) {
+                operands[operandCount++] = (byte)((bits & 0x7f) | 0x80);
+                bits >>>= 7;
+            }
+            operands[operandCount++] = (byte)bits;
+        }
+
+        private void token(Token token) {
+            operand(token.type.ordinal());
+            operand(constant(token.lexeme));
+            operand(token.line);
+        }
+
+        // Strings are interned, so names common to many cached programs are stored once in all.
+        private int constant(Object value) {
+            Integer index = constantIndexes.get(value);
+            if (index == null) {
+                index = constants.size();
+                constants.add(value instanceof String ? ((String)value).intern() : value);
+                constantIndexes.put(value, index);
+            }
+            return index;
+        }
+    }
+
+    // Reads the arrays back in the order Encoder wrote them.
+    private final class Decoder {
+        private final int lines;
+        private int kind = 0;
+        private int operand = 0;
+        final Map<String, Environment.GlobalName> globals = new HashMap<>();
+        final List<Stmt.Function> functions = new ArrayList<>();
+
+        Decoder(int lines) {
+            this.lines = lines;
+        }
+
+        Stmt stmt() {
+            switch (kinds[kind++]) {
+                case NONE:
+                    return null;
+                case BLOCK:
+                    return new Stmt.Block(statements());
+                case CLASS: {
+                    Token name = token();
+                    int slot = next();
+                    int global = global(name);
+                    boolean captured = next() == 1;
+                    int superSlot = next();
+                    int count = next();
+                    Expr.Variable superclass = (Expr.Variable)expr();
+                    List<Stmt.Function> methods = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        methods.add((Stmt.Function)stmt());
+                    }
+
+                    Stmt.Class stmt = new Stmt.Class(name, superclass, methods);
+                    stmt.slot = slot;
+                    stmt.global = global;
+                    stmt.captured = captured;
+                    stmt.superSlot = superSlot;
+                    return stmt;
+                }
+                case EXPRESSION:
+                    return new Stmt.Expression(expr());
+                case FUNCTION: {
+                    Token name = token();
+                    int slot = next();
+                    int global = global(name);
+                    boolean captured = next() == 1;
+                    int locals = next();
+                    int[] upvalues = ints();
+                    int[] boxedParameters = ints();
+                    boolean pure = next() == 1;
+                    int count = next();
+                    List<Token> params = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        params.add(token());
+                    }
+
+                    Stmt.Function stmt = new Stmt.Function(name, params, statements());
+                    stmt.slot = slot;
+                    stmt.global = global;
+                    stmt.captured = captured;
+                    stmt.locals = locals;
+                    stmt.upvalues = upvalues;
+                    stmt.boxedParameters = boxedParameters;
+                    stmt.pure = pure;
+                    functions.add(stmt);
+                    return stmt;
+                }
+                case IF:
+                    return new Stmt.If(expr(), stmt(), stmt());
+                case PRINT:
+                    return new Stmt.Print(expr());
+                case RETURN:
+                    return new Stmt.Return(token(), expr());
+                case VAR: {
+                    Token name = token();
+                    int slot = next();
+                    int global = global(name);
+                    boolean captured = next() == 1;
+                    Stmt.Var stmt = new Stmt.Var(name, expr());
+                    stmt.slot = slot;
+                    stmt.global = global;
+                    stmt.captured = captured;
+                    return stmt;
+                }
+                case WHILE:
+                    return new Stmt.While(expr(), stmt());
+            }
+
+            throw new IllegalStateException("Corrupt compact AST at node " + (kind - 1) + ".");
+        }
+
+        Expr expr() {
+            switch (kinds[kind++]) {
+                case NONE:
+                    return null;
+                case ASSIGN: {
+                    Token name = token();
+                    int slot = next();
+                    int upvalue = next();
+                    boolean boxed = next() == 1;
+                    int global = global(name);
+                    Expr.Assign expr = new Expr.Assign(name, expr());
+                    expr.slot = slot;
+                    expr.upvalue = upvalue;
+                    expr.boxed = boxed;
+                    expr.global = global;
+                    return expr;
+                }
+                case BINARY: {
+                    Token operator = token();
+                    boolean numeric = next() == 1;
+                    Expr left = expr();
+                    Expr.Binary expr = new Expr.Binary(left, operator, expr());
+                    expr.numeric = numeric;
+                    return expr;
+                }
+                case CALL: {
+                    Token paren = token();
+                    boolean direct = next() == 1;
+                    int count = next();
+                    Expr callee = expr();
+                    List<Expr> arguments = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        arguments.add(expr());
+                    }
+                    Expr.Call expr = new Expr.Call(callee, paren, arguments);
+                    expr.direct = direct;
+                    return expr;
+                }
+                case GET: {
+                    Token name = token();
+                    boolean onInstance = next() == 1;
+                    Expr.Get expr = new Expr.Get(expr(), name);
+                    expr.onInstance = onInstance;
+                    return expr;
+                }
+                case GROUPING:
+                    return new Expr.Grouping(expr());
+                case LITERAL: {
+                    int index = next();
+                    return new Expr.Literal(index == -1 ? null : constants[index]);
+                }
+                case LOGICAL: {
+                    Token operator = token();
+                    Expr left = expr();
+                    return new Expr.Logical(left, operator, expr());
+                }
+                case SET: {
+                    Token name = token();
+                    boolean onInstance = next() == 1;
+                    Expr object = expr();
+                    Expr.Set expr = new Expr.Set(object, name, expr());
+                    expr.onInstance = onInstance;
+                    return expr;
+                }
+                case THIS: {
+                    Expr.This expr = new Expr.This(token());
+                    expr.slot = next();
+                    expr.upvalue = next();
+                    expr.boxed = next() == 1;
+                    return expr;
+                }
+                case SUPER: {
+                    Expr.Super expr = new Expr.Super(token(), token());
+                    expr.upvalue = next();
+                    expr.receiver = (Expr.This)expr();
+                    return expr;
+                }
+                case UNARY: {
+                    Token operator = token();
+                    boolean numeric = next() == 1;
+                    Expr.Unary expr = new Expr.Unary(operator, expr());
+                    expr.numeric = numeric;
+                    return expr;
+                }
+                case VARIABLE: {
+                    Expr.Variable expr = new Expr.Variable(token());
+                    expr.slot = next();
+                    expr.upvalue = next();
+                    expr.boxed = next() == 1;
+                    expr.global = global(expr.name);
+                    return expr;
+                }
+            }
+
+            throw new IllegalStateException("Corrupt compact AST at node " + (kind - 1) + ".");
+        }
+
+        private List<Stmt> statements() {
+            int count = next();
+            List<Stmt> statements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                statements.add(stmt());
+            }
+            return statements;
+        }
+
+        private int next() {
+            int bits = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = operands[operand++];
+                bits |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            return (bits >>> 1) ^ -(bits & 1);
+        }
+
+        private int global(Token name) {
+            if (next() == 0) return -1;
+            return globals.computeIfAbsent(name.lexeme, Environment::global).index;
+        }
+
+        private int[] ints() {
+            int[] values = new int[next()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = next();
+            }
+            return values;
+        }
+
+        private Token token() {
+            TokenType type = TOKEN_TYPES[next()];
+            String lexeme = (String)constants[next()];
+            return new Token(type, lexeme, null, next() + lines);
+        }
+    }
+}
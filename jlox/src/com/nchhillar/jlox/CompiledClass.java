@@ -0,0 +1,72 @@
+package com.nchhillar.jlox;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A Lox class compiled by JavaTranspiler. A compiled class never changes once created, so its
+// method table already holds the inherited methods, and finding a method is one lookup.
+final class CompiledClass implements LoxCallable {
+    final String name;
+    private final Map<String, CompiledFunction> methods;
+    private final CompiledFunction initializer;
+
+    CompiledClass(String name, CompiledClass superclass, CompiledFunction... methods) {
+        this.name = name;
+        this.methods = superclass == null ? new HashMap<>() : new HashMap<>(superclass.methods);
+        for (CompiledFunction method : methods) {
+            this.methods.put(method.name, method);
+        }
+        this.initializer = this.methods.get("init");
+    }
+
+    CompiledFunction findMethod(String name) {
+        return methods.get(name);
+    }
+
+    @Override
+    public int arity() {
+        return initializer == null ? 0 : initializer.arity;
+    }
+
+    // Only called when the argument count matches arity(), so with arguments there is an initializer.
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        CompiledInstance instance = new CompiledInstance(this);
+        if (initializer != null) initializer.invoke(instance, arguments);
+        return instance;
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        CompiledInstance instance = new CompiledInstance(this);
+        if (initializer != null) initializer.invoke0(instance);
+        return instance;
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        CompiledInstance instance = new CompiledInstance(this);
+        initializer.invoke1(instance, a);
+        return instance;
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        CompiledInstance instance = new CompiledInstance(this);
+        initializer.invoke2(instance, a, b);
+        return instance;
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        CompiledInstance instance = new CompiledInstance(this);
+        initializer.invoke3(instance, a, b, c);
+        return instance;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,135 @@
+package com.nchhillar.jlox;
+
+import java.util.List;
+
+// A Lox function or method compiled to Java by JavaTranspiler: each declaration becomes an
+// anonymous subclass overriding the invoke method for its arity, and its closure is whatever the
+// Java class captures. A method takes its receiver as self; a plain function is passed null.
+// Methods are only handed out bound (see Bound), so any CompiledFunction a script can get hold of
+// as a value is a plain function.
+abstract class CompiledFunction implements LoxCallable {
+    final String name;
+    final int arity;
+    final boolean isMethod;
+
+    CompiledFunction(String name, int arity, boolean isMethod) {
+        this.name = name;
+        this.arity = arity;
+        this.isMethod = isMethod;
+    }
+
+    // The one matching arity is overridden, or invoke(Object, Object[]) above three parameters.
+    Object invoke0(Object self) {
+        throw new IllegalStateException("Not a function of 0 parameters.");
+    }
+
+    Object invoke1(Object self, Object a) {
+        throw new IllegalStateException("Not a function of 1 parameter.");
+    }
+
+    Object invoke2(Object self, Object a, Object b) {
+        throw new IllegalStateException("Not a function of 2 parameters.");
+    }
+
+    Object invoke3(Object self, Object a, Object b, Object c) {
+        throw new IllegalStateException("Not a function of 3 parameters.");
+    }
+
+    Object invoke(Object self, Object[] arguments) {
+        throw new IllegalStateException("Not a function of " + arguments.length + " parameters.");
+    }
+
+    // Arguments already checked against arity.
+    Object invoke(Object self, List<Object> arguments) {
+        switch (arity) {
+            case 0: return invoke0(self);
+            case 1: return invoke1(self, arguments.get(0));
+            case 2: return invoke2(self, arguments.get(0), arguments.get(1));
+            case 3: return invoke3(self, arguments.get(0), arguments.get(1), arguments.get(2));
+            default: return invoke(self, arguments.toArray());
+        }
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    // Natives calling back into the script, like spawn() and the parallel list methods, come in
+    // through these.
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        return invoke(null, arguments);
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return invoke0(null);
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        return invoke1(null, a);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        return invoke2(null, a, b);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        return invoke3(null, a, b, c);
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + name + ">";
+    }
+
+    // A method together with the instance it was looked up on, as instance.method evaluates to.
+    static final class Bound implements LoxCallable {
+        private final CompiledFunction method;
+        private final Object receiver;
+
+        Bound(CompiledFunction method, Object receiver) {
+            this.method = method;
+            this.receiver = receiver;
+        }
+
+        @Override
+        public int arity() {
+            return method.arity;
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            return method.invoke(receiver, arguments);
+        }
+
+        @Override
+        public Object call0(Interpreter interpreter) {
+            return method.invoke0(receiver);
+        }
+
+        @Override
+        public Object call1(Interpreter interpreter, Object a) {
+            return method.invoke1(receiver, a);
+        }
+
+        @Override
+        public Object call2(Interpreter interpreter, Object a, Object b) {
+            return method.invoke2(receiver, a, b);
+        }
+
+        @Override
+        public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+            return method.invoke3(receiver, a, b, c);
+        }
+
+        @Override
+        public String toString() {
+            return method.toString();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.nchhillar.jlox;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// An instance of a CompiledClass. Fields are kept as LoxInstance keeps them.
+final class CompiledInstance {
+    final CompiledClass klass;
+    private final Map<String, Object> fields = new ConcurrentHashMap<>();
+
+    CompiledInstance(CompiledClass klass) {
+        this.klass = klass;
+    }
+
+    // What instance.name(...) calls: the field's value, else the method unbound, since the call
+    // passes the instance itself.
+    Object callee(Token name) {
+        Object value = fields.get(name.lexeme);
+        if (value != null) return Environment.unwrap(value);
+
+        CompiledFunction method = klass.findMethod(name.lexeme);
+        if (method != null) return method;
+
+        throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+    }
+
+    Object get(Token name) {
+        Object value = callee(name);
+        if (value instanceof CompiledFunction && ((CompiledFunction)value).isMethod) {
+            return new CompiledFunction.Bound((CompiledFunction)value, this);
+        }
+        return value;
+    }
+
+    void set(Token name, Object value) {
+        fields.put(name.lexeme, Environment.wrap(value));
+    }
+
+    @Override
+    public String toString() {
+        return klass.name + " instance";
+    }
+}
@@ -0,0 +1,339 @@
+package com.nchhillar.jlox;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+// Base of the classes JavaTranspiler generates: a script's top-level code becomes run(), its
+// globals fields, and everything the interpreter checks at runtime one of the helpers below,
+// reporting errors exactly as the Interpreter does. Natives are the Interpreter's own: each
+// script has an Interpreter for them to run with, and to call back into compiled functions.
+// Compiled code doesn't count steps or allocations, so it runs without ExecutionLimits.
+abstract class CompiledScript {
+    // The value of a global the script hasn't defined yet.
+    static final Object UNDEFINED = new Object();
+
+    final OutputSink out;
+    final PrintStream err;
+    final Interpreter interpreter;
+
+    // Output as Jlox does it.
+    CompiledScript() {
+        this(new OutputSink(System.out, OutputSink.DEFAULT_THRESHOLD, 100, false), System.err);
+    }
+
+    CompiledScript(OutputSink out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+        this.interpreter = new Interpreter(out, err);
+    }
+
+    // The script's top-level code.
+    abstract void run();
+
+    // The generated main(): runs the script as `jlox script` would, with the same exit status.
+    static void launch(CompiledScript script) {
+        Runtime.getRuntime().addShutdownHook(new Thread(script.out::flush));
+        if (!script.execute()) System.exit(70);
+    }
+
+    // Returns false if a runtime error stopped the script; see Interpreter.interpret.
+    boolean execute() {
+        try {
+            run();
+            return true;
+        } catch (RuntimeError error) {
+            out.flush();
+            if (error.token == null) {
+                err.println(error.getMessage());
+            } else {
+                err.println(error.getMessage() + "\n[line " + error.token.line + "]");
+            }
+            return false;
+        } finally {
+            out.flush();
+        }
+    }
+
+    // What a global holds before the script defines it: one of the natives, or nothing.
+    Object global(String name) {
+        Object value = interpreter.globals.lookUp(Environment.global(name).index);
+        return value == null ? UNDEFINED : value;
+    }
+
+    // The token of a property name, for the Tokens natives and instances report errors with.
+    static Token name(String lexeme, int line) {
+        return new Token(TokenType.IDENTIFIER, lexeme, null, line);
+    }
+
+    // Errors at a line of the script, for operations whose token compiled code doesn't keep.
+    static RuntimeError error(int line, String message) {
+        return new RuntimeError(new Token(TokenType.EOF, "", null, line), message);
+    }
+
+    static Object defined(Object value, String name, int line) {
+        if (value == UNDEFINED) throw error(line, "Undefined variable '" + name + "'.");
+        return value;
+    }
+
+    // Assigning value to a global whose current value is current; value was evaluated first, as
+    // the Interpreter evaluates it before looking the variable up.
+    static Object assigned(Object current, Object value, String name, int line) {
+        if (current == UNDEFINED) throw error(line, "Undefined variable '" + name + "'.");
+        return value;
+    }
+
+    void print(Object value) {
+        out.println(value);
+    }
+
+    // Evaluates an expression statement whose value isn't used.
+    static void discard(Object value) {
+    }
+
+    static void discard(double value) {
+    }
+
+    static void discard(boolean value) {
+    }
+
+    static boolean isTruthy(Object value) {
+        return Interpreter.isTruthy(value);
+    }
+
+    static boolean isEqual(Object a, Object b) {
+        return Interpreter.isEqual(a, b);
+    }
+
+    // Operators whose operands weren't proven numbers: the checks Interpreter.binary() makes.
+
+    static Object add(Object a, Object b, int line) {
+        if (a instanceof Double && b instanceof Double) return (double)a + (double)b;
+        if (a instanceof String && b instanceof String) return (String)a + (String)b;
+        throw error(line, "Operands must be two numbers or two strings.");
+    }
+
+    static double subtract(Object a, Object b, int line) {
+        checkNumbers(a, b, line);
+        return (double)a - (double)b;
+    }
+
+    static double multiply(Object a, Object b, int line) {
+        checkNumbers(a, b, line);
+        return (double)a * (double)b;
+    }
+
+    static double divide(Object a, Object b, int line) {
+        checkNumbers(a, b, line);
+        return (double)a / (double)b;
+    }
+
+    static boolean greater(Object a, Object b, int line) {
+        checkNumbers(a, b, line);
+        return (double)a > (double)b;
+    }
+
+    static boolean greaterEqual(Object a, Object b, int line) {
+        checkNumbers(a, b, line);
+        return (double)a >= (double)b;
+    }
+
+    static boolean less(Object a, Object b, int line) {
+        checkNumbers(a, b, line);
+        return (double)a < (double)b;
+    }
+
+    static boolean lessEqual(Object a, Object b, int line) {
+        checkNumbers(a, b, line);
+        return (double)a <= (double)b;
+    }
+
+    static double negate(Object a, int line) {
+        if (a instanceof Double) return -(double)a;
+        throw error(line, "Operand must be a number.");
+    }
+
+    private static void checkNumbers(Object a, Object b, int line) {
+        if (a instanceof Double && b instanceof Double) return;
+        throw error(line, "Operands must be numbers.");
+    }
+
+    // Properties.
+
+    static Object get(Object object, Token name) {
+        if (object instanceof CompiledInstance) return ((CompiledInstance)object).get(name);
+        if (object instanceof NativeInstance) return ((NativeInstance)object).get(name);
+        throw new RuntimeError(name, "Only instances have properties.");
+    }
+
+    // The callee of object.name(...): a method comes back unbound, for callMethod to run on object.
+    static Object method(Object object, Token name) {
+        if (object instanceof CompiledInstance) return ((CompiledInstance)object).callee(name);
+        return get(object, name);
+    }
+
+    // The instance object.name = value sets a field of, checked before value is evaluated.
+    static CompiledInstance owner(Object object, Token name) {
+        if (object instanceof CompiledInstance) return (CompiledInstance)object;
+        throw new RuntimeError(name, "Only instance have fields.");
+    }
+
+    static Object set(CompiledInstance object, Token name, Object value) {
+        object.set(name, value);
+        return value;
+    }
+
+    static CompiledFunction superMethod(Object superclass, Token name) {
+        CompiledFunction method = ((CompiledClass)superclass).findMethod(name.lexeme);
+        if (method == null) throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+        return method;
+    }
+
+    static Object bind(Object receiver, CompiledFunction method) {
+        return new CompiledFunction.Bound(method, receiver);
+    }
+
+    static CompiledClass superclass(Object superclass, int line) {
+        if (superclass instanceof CompiledClass) return (CompiledClass)superclass;
+        throw error(line, "Superclass must be a class.");
+    }
+
+    // Calls, with the arguments already evaluated. As in the Interpreter, a runtime error from a
+    // native is reported at the call, and so is running out of stack.
+
+    Object apply0(Object callee, int line) {
+        try {
+            if (callee instanceof CompiledFunction && ((CompiledFunction)callee).arity == 0) {
+                return ((CompiledFunction)callee).invoke0(null);
+            }
+            return check(callee, 0, line).call0(interpreter);
+        } catch (StackOverflowError error) {
+            throw error(line, "Stack overflow.");
+        } catch (RuntimeError error) {
+            throw atCallSite(error, line);
+        }
+    }
+
+    Object apply1(Object callee, Object a, int line) {
+        try {
+            if (callee instanceof CompiledFunction && ((CompiledFunction)callee).arity == 1) {
+                return ((CompiledFunction)callee).invoke1(null, a);
+            }
+            return check(callee, 1, line).call1(interpreter, a);
+        } catch (StackOverflowError error) {
+            throw error(line, "Stack overflow.");
+        } catch (RuntimeError error) {
+            throw atCallSite(error, line);
+        }
+    }
+
+    Object apply2(Object callee, Object a, Object b, int line) {
+        try {
+            if (callee instanceof CompiledFunction && ((CompiledFunction)callee).arity == 2) {
+                return ((CompiledFunction)callee).invoke2(null, a, b);
+            }
+            return check(callee, 2, line).call2(interpreter, a, b);
+        } catch (StackOverflowError error) {
+            throw error(line, "Stack overflow.");
+        } catch (RuntimeError error) {
+            throw atCallSite(error, line);
+        }
+    }
+
+    Object apply3(Object callee, Object a, Object b, Object c, int line) {
+        try {
+            if (callee instanceof CompiledFunction && ((CompiledFunction)callee).arity == 3) {
+                return ((CompiledFunction)callee).invoke3(null, a, b, c);
+            }
+            return check(callee, 3, line).call3(interpreter, a, b, c);
+        } catch (StackOverflowError error) {
+            throw error(line, "Stack overflow.");
+        } catch (RuntimeError error) {
+            throw atCallSite(error, line);
+        }
+    }
+
+    Object apply(Object callee, Object[] arguments, int line) {
+        try {
+            if (callee instanceof CompiledFunction && ((CompiledFunction)callee).arity == arguments.length) {
+                return ((CompiledFunction)callee).invoke(null, arguments);
+            }
+            return check(callee, arguments.length, line).call(interpreter, Arrays.asList(arguments));
+        } catch (StackOverflowError error) {
+            throw error(line, "Stack overflow.");
+        } catch (RuntimeError error) {
+            throw atCallSite(error, line);
+        }
+    }
+
+    // object.name(...) and super.name(...), with callee from method() or superMethod().
+
+    Object applyMethod0(Object receiver, Object callee, int line) {
+        if (!isMethod(callee, 0, line)) return apply0(callee, line);
+        try {
+            return ((CompiledFunction)callee).invoke0(receiver);
+        } catch (StackOverflowError error) {
+            throw error(line, "Stack overflow.");
+        }
+    }
+
+    Object applyMethod1(Object receiver, Object callee, Object a, int line) {
+        if (!isMethod(callee, 1, line)) return apply1(callee, a, line);
+        try {
+            return ((CompiledFunction)callee).invoke1(receiver, a);
+        } catch (StackOverflowError error) {
+            throw error(line, "Stack overflow.");
+        }
+    }
+
+    Object applyMethod2(Object receiver, Object callee, Object a, Object b, int line) {
+        if (!isMethod(callee, 2, line)) return apply2(callee, a, b, line);
+        try {
+            return ((CompiledFunction)callee).invoke2(receiver, a, b);
+        } catch (StackOverflowError error) {
+            throw error(line, "Stack overflow.");
+        }
+    }
+
+    Object applyMethod3(Object receiver, Object callee, Object a, Object b, Object c, int line) {
+        if (!isMethod(callee, 3, line)) return apply3(callee, a, b, c, line);
+        try {
+            return ((CompiledFunction)callee).invoke3(receiver, a, b, c);
+        } catch (StackOverflowError error) {
+            throw error(line, "Stack overflow.");
+        }
+    }
+
+    Object applyMethod(Object receiver, Object callee, Object[] arguments, int line) {
+        if (!isMethod(callee, arguments.length, line)) return apply(callee, arguments, line);
+        try {
+            return ((CompiledFunction)callee).invoke(receiver, arguments);
+        } catch (StackOverflowError error) {
+            throw error(line, "Stack overflow.");
+        }
+    }
+
+    private static boolean isMethod(Object callee, int count, int line) {
+        if (!(callee instanceof CompiledFunction) || !((CompiledFunction)callee).isMethod) return false;
+        int arity = ((CompiledFunction)callee).arity;
+        if (arity != count) throw error(line, "Expected " + arity + " arguments but got " + count + ".");
+        return true;
+    }
+
+    private static LoxCallable check(Object callee, int count, int line) {
+        if (!(callee instanceof LoxCallable)) {
+            throw error(line, "Can only call functions and classes.");
+        }
+
+        LoxCallable function = (LoxCallable)callee;
+        if (count != function.arity()) {
+            throw error(line, "Expected " + function.arity() + " arguments but got " + count + ".");
+        }
+        return function;
+    }
+
+    private static RuntimeError atCallSite(RuntimeError error, int line) {
+        if (error instanceof LimitExceededError) return error;
+        if (error.token == null) return error(line, error.getMessage());
+        return error;
+    }
+}
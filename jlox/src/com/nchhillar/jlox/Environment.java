@@ -1,63 +1,204 @@
 package com.nchhillar.jlox;
 
-import java.util.HashMap;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-
+import java.util.concurrent.ConcurrentHashMap;
+
+// Variables in scope while code runs. A frame holds one function call's locals in a slot array
+// whose indexes the Resolver worked out, next to the Cells its closure captured, so a lookup is an
+// array load and nothing links one frame to the next.
+// Globals are indexed too: every global name gets a process-wide index the first time any script
+// mentions it, and each interpreter's global scope is an array by that index. A name used before
+// its definition simply finds its entry still empty until the definition runs.
+// A name keeps its index only while its GlobalName is reachable: compiled code holds one for every
+// global it mentions (see Program.globals), and a global scope holds those it has defined. After
+// that the index goes to the next new name, so however many snippets a session has compiled, the
+// table only has the names still in use.
+// Spawned tasks share globals and captured Cells with their parent. The global array grows in
+// fixed-size pages that are never copied, so a write can't be lost to a concurrent grow, and a
+// frame is only ever used by the thread running its call.
 class Environment {
-    final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    private static final Object NIL = new Object();
 
-    Environment() {
-        enclosing = null;
-    }
+    // A global name and the index it has in every interpreter.
+    static final class GlobalName {
+        final String name;
+        final int index;
 
-    Environment(Environment enclosing) {
-        this.enclosing = enclosing;
+        private GlobalName(String name, int index) {
+            this.name = name;
+            this.index = index;
+        }
     }
 
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+    // Goes on the queue once its GlobalName has been collected, to free the index.
+    private static final class Entry extends WeakReference<GlobalName> {
+        final String name;
+        final int index;
+
+        Entry(GlobalName global) {
+            super(global, released);
+            this.name = global.name;
+            this.index = global.index;
         }
+    }
 
-        if (enclosing != null) return enclosing.get(name);
+    private static final Map<String, Entry> globalNames = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<GlobalName> released = new ReferenceQueue<>();
+    // Indexes handed out so far, and those of them free again; guarded by released.
+    private static int globalCount = 0;
+    private static int[] freeIndexes = new int[16];
+    private static int freeCount = 0;
 
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    final Object[] slots;
+    final Cell[] upvalues;
+    // Global values by index; null means not defined yet, nil is stored as NIL.
+    private volatile Object[][] pages;
+    // Keeps the index of every name defined here; guarded by this.
+    private final List<GlobalName> defined;
+
+    // The global scope.
+    Environment() {
+        this.slots = null;
+        this.upvalues = null;
+        this.pages = new Object[1][PAGE_SIZE];
+        this.defined = new ArrayList<>();
     }
 
-    void define(String name, Object value) {
-        values.put(name, value);
+    Environment(int size, Cell[] upvalues) {
+        this.slots = new Object[size];
+        this.upvalues = upvalues;
+        this.pages = null;
+        this.defined = null;
     }
 
-    Environment ancestor(int distance) {
-        Environment environment = this;
+    // The global name, with the index it has in every interpreter for as long as it is held.
+    static GlobalName global(String name) {
+        reclaim();
+        Entry entry = globalNames.get(name);
+        GlobalName global = entry == null ? null : entry.get();
+        if (global != null) return global;
+
+        GlobalName[] result = new GlobalName[1];
+        globalNames.compute(name, (key, current) -> {
+            result[0] = current == null ? null : current.get();
+            if (result[0] != null) return current;
+            result[0] = new GlobalName(key, newIndex());
+            return new Entry(result[0]);
+        });
+        return result[0];
+    }
 
-        for (int i = 0; i < distance; i++) {
-            environment = environment.enclosing;
+    private static int newIndex() {
+        synchronized (released) {
+            return freeCount > 0 ? freeIndexes[--freeCount] : globalCount++;
         }
+    }
 
-        return environment;
+    // Frees the indexes of names nothing holds any more. An entry a newer one has replaced is
+    // left alone in the table, but its index is still freed: only the replaced name had it.
+    private static void reclaim() {
+        Entry entry = (Entry)released.poll();
+        if (entry == null) return;
+
+        synchronized (released) {
+            for (; entry != null; entry = (Entry)released.poll()) {
+                globalNames.remove(entry.name, entry);
+                if (freeCount == freeIndexes.length) {
+                    freeIndexes = Arrays.copyOf(freeIndexes, freeCount * 2);
+                }
+                freeIndexes[freeCount++] = entry.index;
+            }
+        }
     }
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    Object get(int index, Token name) {
+        Object[][] pages = this.pages;
+        int page = index >>> PAGE_BITS;
+        if (page < pages.length) {
+            Object value = pages[page][index & (PAGE_SIZE - 1)];
+            if (value != null) return unwrap(value);
+        }
+
+        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
 
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    // The global's value, or null if it is nil or not defined.
+    Object lookUp(int index) {
+        Object[][] pages = this.pages;
+        int page = index >>> PAGE_BITS;
+        return page < pages.length ? unwrap(pages[page][index & (PAGE_SIZE - 1)]) : null;
     }
 
-    void assign (Token name, Object value) {
-        if (values.containsKey(name.lexeme))  {
-            values.put(name.lexeme, value);
-            return;
+    void define(String name, Object value) {
+        GlobalName global = global(name);
+        define(global.index, global, value);
+    }
+
+    // Code defining a global holds its GlobalName, so looking the name up again finds the same one.
+    void define(int index, String name, Object value) {
+        define(index, isDefined(index) ? null : global(name), value);
+    }
+
+    private void define(int index, GlobalName global, Object value) {
+        Object[] page = page(index);
+        if (page[index & (PAGE_SIZE - 1)] == null && global != null) {
+            synchronized (this) {
+                defined.add(global);
+            }
         }
+        page[index & (PAGE_SIZE - 1)] = wrap(value);
+    }
+
+    private boolean isDefined(int index) {
+        Object[][] pages = this.pages;
+        int page = index >>> PAGE_BITS;
+        return page < pages.length && pages[page][index & (PAGE_SIZE - 1)] != null;
+    }
 
-        if (enclosing != null) {
-            enclosing.assign(name, value);
+    void assign(int index, Token name, Object value) {
+        Object[] page = page(index);
+        if (page[index & (PAGE_SIZE - 1)] != null) {
+            page[index & (PAGE_SIZE - 1)] = wrap(value);
             return;
         }
 
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
+
+    private Object[] page(int index) {
+        int page = index >>> PAGE_BITS;
+        Object[][] pages = this.pages;
+        if (page < pages.length) return pages[page];
+
+        synchronized (this) {
+            pages = this.pages;
+            if (page >= pages.length) {
+                Object[][] grown = new Object[Math.max(page + 1, pages.length * 2)][];
+                System.arraycopy(pages, 0, grown, 0, pages.length);
+                for (int i = pages.length; i < grown.length; i++) {
+                    grown[i] = new Object[PAGE_SIZE];
+                }
+                this.pages = grown;
+                pages = grown;
+            }
+        }
+        return pages[page];
+    }
+
+    // Converts between Lox nil and the NIL placeholder used where null means "absent".
+    static Object wrap(Object value) {
+        return value == null ? NIL : value;
+    }
+
+    static Object unwrap(Object value) {
+        return value == NIL ? null : value;
+    }
 }
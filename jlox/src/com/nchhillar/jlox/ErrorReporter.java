@@ -0,0 +1,35 @@
+package com.nchhillar.jlox;
+
+import java.io.PrintStream;
+
+// Where the scanner, parser and resolver report the compile errors of one compilation, so
+// scripts compiled side by side, as in a batch run, each get their own.
+final class ErrorReporter {
+    private final PrintStream err;
+    private boolean hadError = false;
+
+    ErrorReporter(PrintStream err) {
+        this.err = err;
+    }
+
+    boolean hadError() {
+        return hadError;
+    }
+
+    void error(int line, String message) {
+        report(line, "", message);
+    }
+
+    void error(Token token, String message) {
+        if (token.type == TokenType.EOF) {
+            report(token.line, " at end", message);
+        } else {
+            report(token.line, " at '" + token.lexeme + "'", message);
+        }
+    }
+
+    private void report(int line, String where, String message) {
+        err.println("[line " + line + "] Error" + where + ": " + message);
+        hadError = true;
+    }
+}
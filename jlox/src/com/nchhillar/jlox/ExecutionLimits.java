@@ -0,0 +1,82 @@
+package com.nchhillar.jlox;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Caps on one execution of a Program: steps (loop iterations plus calls), wall-clock time, and
+// bytes allocated for instances, call frames and strings. Zero means no limit on that resource.
+// Running out, or the thread being interrupted, stops the script with a LimitExceededError.
+// Immutable, so one ExecutionLimits can serve any number of executions; each gets its own Meter.
+final class ExecutionLimits {
+    // Rough heap cost of the allocations counted against maxBytes.
+    static final long INSTANCE_BYTES = 96;     // LoxInstance plus its empty field map
+    static final long FRAME_BYTES = 40;        // Environment plus slot array header; 8 per slot on top
+    static final long STRING_BYTES = 40;       // String plus byte[] header; 1 per character on top
+
+    final long maxSteps;
+    final long timeoutMillis;
+    final long maxBytes;
+
+    ExecutionLimits(long maxSteps, long timeoutMillis, long maxBytes) {
+        this.maxSteps = maxSteps;
+        this.timeoutMillis = timeoutMillis;
+        this.maxBytes = maxBytes;
+    }
+
+    Meter start() {
+        return new Meter(this);
+    }
+
+    // What one execution, and every task it spawns, has used so far. Interpreters report their
+    // usage in batches (see Interpreter.step), so the counters are shared atomics touched only
+    // once per batch.
+    static final class Meter {
+        private final ExecutionLimits limits;
+        private final long deadline;
+        private final AtomicLong steps = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        // Set by the first thread to run out, so the others stop at their next check too.
+        private volatile String exceeded;
+
+        private Meter(ExecutionLimits limits) {
+            this.limits = limits;
+            this.deadline = limits.timeoutMillis > 0 ? System.nanoTime() + limits.timeoutMillis * 1_000_000 : 0;
+        }
+
+        // How many steps an interpreter may take before reporting back.
+        int batchSize(int preferred) {
+            if (limits.maxSteps <= 0) return preferred;
+            return (int)Math.max(1, Math.min(preferred, limits.maxSteps));
+        }
+
+        void charge(long stepsTaken, long bytesAllocated) {
+            long stepsSoFar = steps.addAndGet(stepsTaken);
+            if (exceeded == null) {
+                if (limits.maxSteps > 0 && stepsSoFar > limits.maxSteps) {
+                    exceeded = "Step limit exceeded.";
+                } else if (limits.maxBytes > 0 && bytes.addAndGet(bytesAllocated) > limits.maxBytes) {
+                    exceeded = "Memory limit exceeded.";
+                } else if (deadline != 0 && System.nanoTime() - deadline > 0) {
+                    exceeded = "Time limit exceeded.";
+                } else if (Thread.interrupted()) {
+                    exceeded = "Interrupted.";
+                }
+            }
+
+            if (exceeded != null) throw new LimitExceededError(exceeded);
+        }
+
+        // The steps of a batch the end of an execution cut short: counted, but not checked.
+        void count(long stepsTaken) {
+            steps.addAndGet(stepsTaken);
+        }
+
+        long steps() {
+            return steps.get();
+        }
+
+        // The limit that stopped the execution, or null if none did.
+        String exceeded() {
+            return exceeded;
+        }
+    }
+}
@@ -30,6 +30,10 @@ abstract class Expr {
 
         final Token name;
         final Expr value;
+        int slot = -1;
+        int upvalue = -1;
+        boolean boxed;
+        int global = -1;
     }
     static class Binary extends Expr {
         Binary(Expr left, Token operator, Expr right) {
@@ -46,6 +50,7 @@ abstract class Expr {
         final Expr left;
         final Token operator;
         final Expr right;
+        boolean numeric;
     }
     static class Call extends Expr {
         Call(Expr callee, Token paren, List<Expr> arguments) {
@@ -62,6 +67,8 @@ abstract class Expr {
         final Expr callee;
         final Token paren;
         final List<Expr> arguments;
+        boolean direct;
+        InlineCache cache;
     }
     static class Get extends Expr {
         Get(Expr object, Token name) {
@@ -76,6 +83,7 @@ abstract class Expr {
 
         final Expr object;
         final Token name;
+        boolean onInstance;
     }
     static class Grouping extends Expr {
         Grouping(Expr expression) {
@@ -132,6 +140,7 @@ abstract class Expr {
         final Expr object;
         final Token name;
         final Expr value;
+        boolean onInstance;
     }
     static class This extends Expr {
         This(Token keyword) {
@@ -144,6 +153,9 @@ abstract class Expr {
         }
 
         final Token keyword;
+        int slot = -1;
+        int upvalue = -1;
+        boolean boxed;
     }
     static class Super extends Expr {
         Super(Token keyword, Token method) {
@@ -158,6 +170,8 @@ abstract class Expr {
 
         final Token keyword;
         final Token method;
+        int upvalue = -1;
+        Expr.This receiver;
     }
     static class Unary extends Expr {
         Unary(Token operator, Expr right) {
@@ -172,6 +186,7 @@ abstract class Expr {
 
         final Token operator;
         final Expr right;
+        boolean numeric;
     }
     static class Variable extends Expr {
         Variable(Token name) {
@@ -184,6 +199,10 @@ abstract class Expr {
         }
 
         final Token name;
+        int slot = -1;
+        int upvalue = -1;
+        boolean boxed;
+        int global = -1;
     }
 
     abstract <R> R accept(Visitor<R> visitor);
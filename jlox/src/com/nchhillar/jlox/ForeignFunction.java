@@ -0,0 +1,294 @@
+package com.nchhillar.jlox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// A Java method exposed to Lox as a callable.
+// All the work of matching Lox values to the Java signature happens once, when the function is
+// bound: each parameter gets a converter spliced into a MethodHandle chain, the return value gets
+// mapped back to a Lox value, so a call is a single invokeExact on a handle the JIT can inline
+// through to the target. Calls of up to three arguments pass them straight through; longer ones
+// are spread from an Object[].
+class ForeignFunction implements LoxCallable {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private final String name;
+    private final int arity;
+    private final MethodHandle direct;   // (Object, ...)Object
+    private final MethodHandle spread;   // (Object[])Object
+
+    private ForeignFunction(String name, MethodHandle target) {
+        this.name = name;
+        this.arity = target.type().parameterCount();
+        this.direct = adapt(target);
+        this.spread = direct.asSpreader(Object[].class, arity);
+    }
+
+    // Binds the static method owner.methodName; parameter types are only needed for overloads.
+    static ForeignFunction forStatic(String name, Class<?> owner, String methodName, Class<?>... parameterTypes) {
+        Method method = findMethod(owner, methodName, parameterTypes, true);
+        return new ForeignFunction(name, unreflect(method));
+    }
+
+    // Binds receiver.methodName, with the receiver fixed at bind time.
+    static ForeignFunction forInstance(String name, Object receiver, String methodName, Class<?>... parameterTypes) {
+        Method method = findMethod(receiver.getClass(), methodName, parameterTypes, false);
+        return new ForeignFunction(name, unreflect(method).bindTo(receiver));
+    }
+
+    // Every @LoxExport method of the class; instance methods only if a receiver is given.
+    static List<ForeignFunction> exported(Class<?> type, Object receiver) {
+        List<ForeignFunction> functions = new ArrayList<>();
+        for (Method method : type.getDeclaredMethods()) {
+            LoxExport export = method.getAnnotation(LoxExport.class);
+            if (export == null) continue;
+
+            boolean isStatic = Modifier.isStatic(method.getModifiers());
+            if (!isStatic && receiver == null) continue;
+
+            String name = export.value().isEmpty() ? method.getName() : export.value();
+            MethodHandle target = unreflect(method);
+            functions.add(new ForeignFunction(name, isStatic ? target : target.bindTo(receiver)));
+        }
+        return functions;
+    }
+
+    String name() {
+        return name;
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        try {
+            return (Object)spread.invokeExact(arguments.toArray());
+        } catch (Throwable error) {
+            throw failure(error);
+        }
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        try {
+            return (Object)direct.invokeExact();
+        } catch (Throwable error) {
+            throw failure(error);
+        }
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        try {
+            return (Object)direct.invokeExact(a);
+        } catch (Throwable error) {
+            throw failure(error);
+        }
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        try {
+            return (Object)direct.invokeExact(a, b);
+        } catch (Throwable error) {
+            throw failure(error);
+        }
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        try {
+            return (Object)direct.invokeExact(a, b, c);
+        } catch (Throwable error) {
+            throw failure(error);
+        }
+    }
+
+    // Lox errors pass through, JVM errors propagate, anything the Java code threw becomes a Lox error.
+    private RuntimeException failure(Throwable error) {
+        if (error instanceof RuntimeError) return (RuntimeError)error;
+        if (error instanceof Error) throw (Error)error;
+        if (error instanceof ClassCastException) {
+            return new RuntimeError(null, "Wrong argument type for '" + name + "'.");
+        }
+        return new RuntimeError(null, "'" + name + "' threw " + error + ".");
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+
+    // With no parameter types the name must be unique, or else the zero-parameter overload is meant.
+    private static Method findMethod(Class<?> owner, String methodName, Class<?>[] parameterTypes, boolean isStatic) {
+        List<Method> candidates = new ArrayList<>();
+        for (Method method : owner.getMethods()) {
+            if (!method.getName().equals(methodName)) continue;
+            if (Modifier.isStatic(method.getModifiers()) != isStatic) continue;
+            if (parameterTypes.length > 0 && !Arrays.equals(method.getParameterTypes(), parameterTypes)) continue;
+            candidates.add(method);
+        }
+
+        if (candidates.size() > 1) {
+            candidates.removeIf(method -> method.getParameterCount() != 0);
+            if (candidates.size() != 1) {
+                throw new IllegalArgumentException("Method '" + methodName + "' is overloaded; give its parameter types.");
+            }
+        }
+
+        if (candidates.isEmpty()) {
+            throw new IllegalArgumentException("No public " + (isStatic ? "static " : "") +
+                "method '" + methodName + "' in " + owner.getName() + ".");
+        }
+        return candidates.get(0);
+    }
+
+    private static MethodHandle unreflect(Method method) {
+        try {
+            return LOOKUP.unreflect(method);
+        } catch (IllegalAccessException e) {
+            // Public method on a non-public class, say; fall back to reflective access.
+            try {
+                method.setAccessible(true);
+                return LOOKUP.unreflect(method);
+            } catch (IllegalAccessException | RuntimeException inaccessible) {
+                throw new IllegalArgumentException("Can't access " + method + ".", inaccessible);
+            }
+        }
+    }
+
+    // Turns (P1..Pn)R into (Object..)Object with Lox <-> Java conversions on both ends:
+    // numbers of any width come back as doubles, chars as strings and void as nil.
+    private static MethodHandle adapt(MethodHandle target) {
+        MethodType type = target.type();
+        for (int i = 0; i < type.parameterCount(); i++) {
+            target = MethodHandles.filterArguments(target, i, converterTo(type.parameterType(i)));
+        }
+
+        Class<?> returnType = type.returnType();
+        if (returnType == char.class) {
+            target = MethodHandles.filterReturnValue(target, handle("fromChar", Object.class, char.class));
+        } else if (returnType.isPrimitive() && returnType != void.class && returnType != boolean.class) {
+            target = target.asType(target.type().changeReturnType(double.class));
+        } else if (Number.class.isAssignableFrom(returnType)) {
+            target = MethodHandles.filterReturnValue(
+                target.asType(target.type().changeReturnType(Number.class)),
+                handle("fromNumber", Object.class, Number.class));
+        }
+        // Boxes doubles and booleans, and makes void methods return nil.
+        return target.asType(target.type().changeReturnType(Object.class));
+    }
+
+    // A handle (Object)T that checks and converts a Lox value for a parameter of type T.
+    private static MethodHandle converterTo(Class<?> type) {
+        Class<?> primitive = unwrap(type);
+        MethodHandle converter;
+        if (primitive == double.class || primitive == float.class) {
+            converter = handle("toNumber", double.class, Object.class);
+        } else if (primitive == long.class) {
+            converter = handle("toLong", long.class, Object.class);
+        } else if (primitive == int.class) {
+            converter = handle("toInt", int.class, Object.class);
+        } else if (primitive == short.class) {
+            converter = handle("toShort", short.class, Object.class);
+        } else if (primitive == byte.class) {
+            converter = handle("toByte", byte.class, Object.class);
+        } else if (primitive == boolean.class) {
+            converter = handle("toBoolean", boolean.class, Object.class);
+        } else if (primitive == char.class) {
+            converter = handle("toChar", char.class, Object.class);
+        } else if (type == String.class) {
+            converter = handle("toText", String.class, Object.class);
+        } else {
+            // Any other reference type: cast, failing with a ClassCastException at call time.
+            return MethodHandles.identity(Object.class).asType(MethodType.methodType(type, Object.class));
+        }
+
+        // Narrow to the exact primitive first, then box if the parameter is a wrapper type.
+        converter = MethodHandles.explicitCastArguments(converter, converter.type().changeReturnType(primitive));
+        return converter.asType(converter.type().changeReturnType(type));
+    }
+
+    private static Class<?> unwrap(Class<?> type) {
+        if (type == Double.class) return double.class;
+        if (type == Float.class) return float.class;
+        if (type == Long.class) return long.class;
+        if (type == Integer.class) return int.class;
+        if (type == Short.class) return short.class;
+        if (type == Byte.class) return byte.class;
+        if (type == Boolean.class) return boolean.class;
+        if (type == Character.class) return char.class;
+        return type;
+    }
+
+    private static MethodHandle handle(String name, Class<?> returnType, Class<?> parameterType) {
+        try {
+            return LOOKUP.findStatic(ForeignFunction.class, name, MethodType.methodType(returnType, parameterType));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static double toNumber(Object value) {
+        if (value instanceof Double) return (double)value;
+        throw new RuntimeError(null, "Expected a number.");
+    }
+
+    private static long toLong(Object value) {
+        double number = toNumber(value);
+        if (number != Math.rint(number)) throw new RuntimeError(null, "Expected a whole number.");
+        // (long) would saturate anything past the ends, infinities included; 2^63 itself is past.
+        if (number < -0x1p63 || number >= 0x1p63) throw new RuntimeError(null, "Number is out of range.");
+        return (long)number;
+    }
+
+    private static int toInt(Object value) {
+        long number = toLong(value);
+        if (number != (int)number) throw new RuntimeError(null, "Number is out of range.");
+        return (int)number;
+    }
+
+    private static short toShort(Object value) {
+        long number = toLong(value);
+        if (number != (short)number) throw new RuntimeError(null, "Number is out of range.");
+        return (short)number;
+    }
+
+    private static byte toByte(Object value) {
+        long number = toLong(value);
+        if (number != (byte)number) throw new RuntimeError(null, "Number is out of range.");
+        return (byte)number;
+    }
+
+    private static boolean toBoolean(Object value) {
+        if (value instanceof Boolean) return (boolean)value;
+        throw new RuntimeError(null, "Expected true or false.");
+    }
+
+    private static char toChar(Object value) {
+        if (value instanceof String && ((String)value).length() == 1) return ((String)value).charAt(0);
+        throw new RuntimeError(null, "Expected a one-character string.");
+    }
+
+    private static String toText(Object value) {
+        if (value == null || value instanceof String) return (String)value;
+        throw new RuntimeError(null, "Expected a string.");
+    }
+
+    private static Object fromChar(char value) {
+        return String.valueOf(value);
+    }
+
+    private static Object fromNumber(Number value) {
+        return value == null ? null : (Object)value.doubleValue();
+    }
+}
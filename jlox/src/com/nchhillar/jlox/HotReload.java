@@ -0,0 +1,221 @@
+package com.nchhillar.jlox;
+
+import static com.nchhillar.jlox.TokenType.*;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// --watch: runs a script, then applies each saved edit to the same Interpreter instead of starting
+// over. The script is cut into its top-level statements and each is compiled as a Program of its
+// own; top-level names are globals, found by name, so no piece depends on another's resolution.
+// On a reload only pieces whose text changed are compiled again; one that only moved to another
+// line, as everything after an inserted line does, isn't: its tree is rebuilt with the line
+// numbers shifted (Program.moved), so its runtime errors report where it is now. Then:
+//   - a var declaration runs only if its text changed, so the state built up so far is kept;
+//   - a new or moved version of a function or class is swapped into the object its global holds
+//     (LoxFunction.reload, LoxClass.reload), so closures, instances and subclasses that refer to
+//     it get the new code;
+//   - every other statement runs again, in order: they are what the script does with what it
+//     declares.
+// A reload with a compile error changes nothing. A runtime error stops that run, as it would stop
+// the script.
+final class HotReload {
+    // Editors often save in several writes; a change is picked up once the file has been quiet this long.
+    private static final long SETTLE_MILLIS = 50;
+
+    // The text of one top-level statement.
+    private static final class Piece {
+        final String text;
+        final int line;        // the line text starts on
+        Program program;
+        boolean ran;           // has run to completion at least once
+
+        Piece(String text, int line) {
+            this.text = text;
+            this.line = line;
+        }
+    }
+
+    private final Interpreter interpreter;
+    private Map<String, Piece> pieces = new HashMap<>();   // the last version loaded, by text
+    int recompiled = 0;   // pieces the last load() compiled; moved ones don't count
+
+    HotReload(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    // Runs the source as the new version of the script. Returns false if an error stopped it.
+    boolean load(String source) {
+        ErrorReporter errors = new ErrorReporter(System.err);
+        List<Piece> script = split(source, errors);
+        recompiled = 0;
+        for (Piece piece : script) {
+            Piece previous = pieces.get(piece.text);
+            if (previous != null) {
+                piece.program = previous.line == piece.line ? previous.program :
+                    previous.program.moved(piece.line - previous.line);
+            } else if (!errors.hadError()) {
+                piece.program = Program.compile(piece.text, piece.line, errors);
+                recompiled++;
+            }
+        }
+        if (errors.hadError()) return false;
+
+        Map<String, Piece> previous = pieces;
+        pieces = new HashMap<>();
+        for (Piece piece : script) {
+            pieces.put(piece.text, piece);
+        }
+
+        for (Piece piece : script) {
+            if (!run(piece, previous.get(piece.text))) return false;
+            piece.ran = true;
+        }
+        return true;
+    }
+
+    private boolean run(Piece piece, Piece previous) {
+        List<Stmt> statements = piece.program.statements();
+        Stmt stmt = statements.size() == 1 ? statements.get(0) : null;
+        boolean unchanged = previous != null && previous.ran;
+
+        if (stmt instanceof Stmt.Var) {
+            return unchanged || interpreter.interpret(piece.program);
+        }
+
+        if (stmt instanceof Stmt.Function || stmt instanceof Stmt.Class) {
+            if (unchanged && previous.program == piece.program) return true;
+
+            Token name = stmt instanceof Stmt.Function ? ((Stmt.Function)stmt).name : ((Stmt.Class)stmt).name;
+            int global = stmt instanceof Stmt.Function ? ((Stmt.Function)stmt).global : ((Stmt.Class)stmt).global;
+            Object old = interpreter.globals.lookUp(global);
+            if (!interpreter.interpret(piece.program)) return false;
+
+            Object replacement = interpreter.globals.lookUp(global);
+            // Only a plain function can take over another's body: a bound method keeps its receiver in slot 0.
+            if (old instanceof LoxFunction && ((LoxFunction)old).firstParameter == 0 &&
+                replacement instanceof LoxFunction) {
+                ((LoxFunction)old).reload((LoxFunction)replacement);
+            } else if (old instanceof LoxClass && replacement instanceof LoxClass) {
+                ((LoxClass)old).reload((LoxClass)replacement);
+            } else {
+                return true;
+            }
+            interpreter.globals.define(global, name.lexeme, old);
+            return true;
+        }
+
+        return interpreter.interpret(piece.program);
+    }
+
+    // Cuts the source after each top-level statement: a ';' or '}' outside any brackets, unless
+    // an 'else' follows. A piece runs from its first token to its last, so editing the comments
+    // between statements changes none of them. Scanning errors are reported here, and the pieces
+    // aren't compiled.
+    private static List<Piece> split(String source, ErrorReporter errors) {
+        List<Piece> pieces = new ArrayList<>();
+        Scanner scanner = new Scanner(source, errors);
+        int start = -1;    // of the piece being cut, or -1 before its first token
+        int line = 1;
+        int lineAt = 0;    // the offset line was counted up to
+        int depth = 0;
+
+        Token token = scanner.nextToken();
+        while (token.type != EOF) {
+            if (start == -1) {
+                start = scanner.tokenStart();
+                for (; lineAt < start; lineAt++) {
+                    if (source.charAt(lineAt) == '\n') line++;
+                }
+            }
+
+            switch (token.type) {
+                case LEFT_PAREN:
+                case LEFT_BRACE:
+                    depth++;
+                    break;
+                case RIGHT_PAREN:
+                case RIGHT_BRACE:
+                    depth--;
+                    break;
+                default:
+                    break;
+            }
+
+            int end = scanner.tokenEnd();
+            Token next = scanner.nextToken();
+            boolean complete = depth <= 0 && (token.type == SEMICOLON || token.type == RIGHT_BRACE) &&
+                next.type != ELSE;
+            // At the end of the source an unfinished statement is kept too: compiling it reports what is missing.
+            if (complete || next.type == EOF) {
+                pieces.add(new Piece(source.substring(start, end), line));
+                start = -1;
+                depth = 0;
+            }
+            token = next;
+        }
+        return pieces;
+    }
+
+    // Runs the script, then reloads it every time it is saved, until the process is stopped.
+    static void watch(Path script, Interpreter interpreter) throws IOException, InterruptedException {
+        Path file = script.toAbsolutePath();
+        HotReload session = new HotReload(interpreter);
+
+        try (WatchService watcher = file.getFileSystem().newWatchService()) {
+            file.getParent().register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+            String source = read(file);
+            if (source == null) throw new NoSuchFileException(script.toString());
+            session.load(source);
+
+            for (;;) {
+                if (!touches(watcher.take(), file)) continue;
+                WatchKey more;
+                while ((more = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    touches(more, file);
+                }
+
+                // Saving by replacing the file can leave it missing for a moment; the next event brings it back.
+                String edited = read(file);
+                if (edited == null || edited.equals(source)) continue;
+                source = edited;
+                long start = System.nanoTime();
+                boolean completed = session.load(source);
+                System.err.printf("[reloaded %s: %d statement%s recompiled, %s in %.1f ms]%n", script,
+                    session.recompiled, session.recompiled == 1 ? "" : "s",
+                    completed ? "ran" : "stopped", (System.nanoTime() - start) / 1e6);
+            }
+        }
+    }
+
+    private static boolean touches(WatchKey key, Path file) {
+        boolean touched = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW || file.getFileName().equals(event.context())) touched = true;
+        }
+        key.reset();
+        return touched;
+    }
+
+    private static String read(Path file) throws IOException {
+        try {
+            return new String(Files.readAllBytes(file), Charset.defaultCharset());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.nchhillar.jlox;
+
+// The receiver classes a method call site like object.name(...) has seen, each with the method
+// name found on it, so calling it again runs that method straight away: no lookup through the
+// superclass chain, no bound LoxFunction, no arity check (an entry is only added when the
+// method's arity matches the site's argument count).
+// A site that has seen more than MAX_ENTRIES class declarations is megamorphic and stays on the
+// generic path. Every interpreter running a shared Program creates its own classes, so an entry
+// is replaced by a class from the same declaration rather than counting towards the limit.
+// Entries are immutable and a site's chain is replaced with a plain write, so interpreters on
+// different threads can share it without locking; a lost update only costs another miss.
+// Entries made before the last invalidateAll() are ignored, and dropped when the site records again.
+final class InlineCache {
+    static final int MAX_ENTRIES = 4;
+    private static final InlineCache MEGAMORPHIC = new InlineCache(null, null, 0, null);
+
+    private static volatile int epoch = 0;
+
+    private final LoxClass klass;
+    final LoxFunction method;
+    private final int madeIn;   // the epoch
+    private final InlineCache next;
+
+    private InlineCache(LoxClass klass, LoxFunction method, int madeIn, InlineCache next) {
+        this.klass = klass;
+        this.method = method;
+        this.madeIn = madeIn;
+        this.next = next;
+    }
+
+    // For when a class's methods have changed; see LoxClass.reload().
+    static void invalidateAll() {
+        epoch++;
+    }
+
+    // The unbound method the site found on klass before, or null.
+    static LoxFunction lookUp(Expr.Call site, LoxClass klass) {
+        int current = epoch;
+        for (InlineCache entry = site.cache; entry != null; entry = entry.next) {
+            if (entry.klass == klass && entry.madeIn == current) return entry.method;
+        }
+        return null;
+    }
+
+    static void record(Expr.Call site, LoxClass klass, LoxFunction method) {
+        InlineCache cache = site.cache;
+        if (cache == MEGAMORPHIC) return;
+
+        int current = epoch;
+        InlineCache kept = null;
+        int size = 0;
+        for (InlineCache entry = cache; entry != null; entry = entry.next) {
+            if (entry.madeIn != current || entry.klass.declaration == klass.declaration) continue;
+            kept = new InlineCache(entry.klass, entry.method, current, kept);
+            size++;
+        }
+        site.cache = size == MAX_ENTRIES ? MEGAMORPHIC : new InlineCache(klass, method, current, kept);
+    }
+}
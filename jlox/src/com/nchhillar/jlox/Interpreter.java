@@ -1,37 +1,201 @@
 package com.nchhillar.jlox;
 
+import java.io.PrintStream;
+import java.lang.ref.Reference;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
+// Executes a resolved Program. Each Interpreter is an isolated context with its own globals
+// and its own output streams; the Program itself is shared and never modified.
 class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-    final Environment globals = new Environment();
-    private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    final Environment globals;
+    // Only ever touched by the thread running this interpreter; other threads get a fork().
+    // The StackMachine switches it on calls and returns just as executeBlock() does.
+    Environment environment;
+    // Thrown by every 'return' this interpreter executes; see Return.
+    private final Return returning = new Return();
+    private final OutputSink out;
+    // When > 0, scripts run on a StackMachine allowing this many nested calls.
+    private int heapStackDepth = 0;
+    // When > 0, pure functions cache this many results each, in memos; see memoize().
+    private int memoCapacity = 0;
+    private List<Memo> memos;
+
+    // Steps are counted down locally and reported to the Meter once per batch, so the check on
+    // every loop iteration and call is a decrement; interrupts are noticed at the same points.
+    private static final int STEP_BATCH = 1024;
+    private static final long ALLOCATION_BATCH = 64 * 1024;
+    private ExecutionLimits.Meter meter;  // null when running without limits
+    private int batch = STEP_BATCH;
+    private int stepsLeft = STEP_BATCH;
+    private long bytesAllocated = 0;
+    private final PrintStream err;
 
     Interpreter() {
-        globals.define("clock", new LoxCallable() {
-            @Override
-            public int arity() { return 0; }
+        this(System.out, System.err);
+    }
+
+    Interpreter(PrintStream out, PrintStream err) {
+        this(new OutputSink(out), err);
+    }
+
+    Interpreter(OutputSink out, PrintStream err) {
+        this(new Environment(), out, err);
+
+        globals.define("clock", new NativeFunction(0, (interpreter, arguments) ->
+            (double)System.currentTimeMillis() / 1000.0));
+
+        // spawn(fn) runs a zero-argument function on a new virtual thread and returns a join handle.
+        globals.define("spawn", new NativeFunction(1, (interpreter, arguments) -> {
+            Object function = arguments.get(0);
+            if (!(function instanceof LoxCallable) || ((LoxCallable)function).arity() != 0) {
+                throw new RuntimeError(null, "Can only spawn functions that take no arguments.");
+            }
+            return new LoxTask(interpreter, (LoxCallable)function);
+        }));
+
+        // channel(capacity) creates a bounded channel; send blocks when full, receive when empty.
+        globals.define("channel", new NativeFunction(1, (interpreter, arguments) -> {
+            Object capacity = arguments.get(0);
+            if (!(capacity instanceof Double) || (double)capacity < 1 ||
+                (double)capacity != Math.floor((double)capacity)) {
+                throw new RuntimeError(null, "Channel capacity must be a positive integer.");
+            }
+            return new LoxChannel((int)(double)capacity);
+        }));
+
+        globals.define("list", new NativeFunction(0, (interpreter, arguments) -> new LoxList()));
+        globals.define("map", new NativeFunction(0, (interpreter, arguments) -> new LoxMap()));
+        LoxParallel.define(globals);
+    }
+
+    private Interpreter(Environment globals, OutputSink out, PrintStream err) {
+        this.globals = globals;
+        this.environment = globals;
+        this.out = out;
+        this.err = err;
+    }
+
+    // Embedding API: exposes Java methods to scripts as global functions.
+    void defineStatic(String name, Class<?> owner, String methodName, Class<?>... parameterTypes) {
+        globals.define(name, ForeignFunction.forStatic(name, owner, methodName, parameterTypes));
+    }
+
+    void defineMethod(String name, Object receiver, String methodName, Class<?>... parameterTypes) {
+        globals.define(name, ForeignFunction.forInstance(name, receiver, methodName, parameterTypes));
+    }
 
-            @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                return (double)System.currentTimeMillis() / 1000.0;
+    // Defines every static @LoxExport method of the class.
+    void expose(Class<?> type) {
+        for (ForeignFunction function : ForeignFunction.exported(type, null)) {
+            globals.define(function.name(), function);
+        }
+    }
+
+    // Defines every @LoxExport method of the object's class, instance methods bound to the object.
+    void expose(Object receiver) {
+        for (ForeignFunction function : ForeignFunction.exported(receiver.getClass(), receiver)) {
+            globals.define(function.name(), function);
+        }
+    }
+
+    // A context for another thread: same globals and output, but its own current environment.
+    // Tasks count against the same limits as the script that started them.
+    Interpreter fork() {
+        Interpreter fork = new Interpreter(globals, out, err);
+        fork.meter = meter;
+        fork.batch = batch;
+        fork.stepsLeft = batch;
+        fork.memoCapacity = memoCapacity;
+        fork.memos = memos;
+        return fork;
+    }
+
+    // Runs scripts on heap-allocated stacks from now on, so recursion can go maxDepth calls deep
+    // instead of the few thousand the JVM stack allows. Tasks spawned by them still recurse.
+    void useHeapStack(int maxDepth) {
+        this.heapStackDepth = maxDepth;
+    }
+
+    // Caches the results of the functions Purity proved pure from now on, up to capacity results
+    // for each function declared. Only for whole scripts: see Purity.
+    void memoize(int capacity) {
+        this.memoCapacity = capacity;
+        this.memos = new ArrayList<>();
+    }
+
+    // Hits and misses of every memoized function declared so far.
+    void reportMemos(PrintStream err) {
+        if (memos == null) return;
+        synchronized (memos) {
+            for (Memo memo : memos) {
+                memo.report(err);
             }
+        }
+    }
 
-            @Override
-            public String toString() { return "<native fn>"; }
-        });
+    // Returns false if execution stopped on a runtime error.
+    boolean interpret(Program program) {
+        return interpret(program, null);
     }
 
-    void interpret(List<Stmt> statements) {
+    // Runs the program within the limits the meter was started with, if one is given.
+    boolean interpret(Program program, ExecutionLimits.Meter meter) {
+        this.meter = meter;
+        this.batch = meter == null ? STEP_BATCH : meter.batchSize(STEP_BATCH);
+        this.stepsLeft = batch;
+        this.bytesAllocated = 0;
+
         try {
-            for (Stmt statement : statements) {
-                execute(statement);
+            Environment frame = new Environment(program.locals, null);
+            if (heapStackDepth > 0) {
+                new StackMachine(this, heapStackDepth).execute(program.statements(), frame);
+            } else {
+                executeBlock(program.statements(), frame);
             }
+            return true;
         } catch (RuntimeError error) {
-            Jlox.runtimeError(error);
+            out.flush();
+            if (error.token == null) {
+                err.println(error.getMessage());
+            } else {
+                err.println(error.getMessage() +
+                    "\n[line " + error.token.line + "]");
+            }
+            return false;
+        } finally {
+            out.flush();
+            if (meter != null) meter.count(batch - stepsLeft);
+            // Top-level code runs only while its Program, holding the code's global names, is reachable.
+            Reference.reachabilityFence(program);
+        }
+    }
+
+    // Called on every loop iteration and every call: the points where a runaway script is stopped.
+    void step() {
+        if (--stepsLeft <= 0) checkLimits();
+    }
+
+    // Counts bytes against the memory limit, if there is one.
+    void allocate(long bytes) {
+        if (meter == null) return;
+        bytesAllocated += bytes;
+        if (bytesAllocated >= ALLOCATION_BATCH) checkLimits();
+    }
+
+    private void checkLimits() {
+        int steps = batch - stepsLeft;
+        stepsLeft = batch;
+
+        if (meter != null) {
+            long bytes = bytesAllocated;
+            bytesAllocated = 0;
+            meter.charge(steps, bytes);
+        } else if (Thread.interrupted()) {
+            throw new LimitExceededError("Interrupted.");
         }
     }
 
@@ -55,23 +219,24 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitSetExpr(Expr.Set expr) {
-        Object object = evaluate(expr.object);
+        LoxInstance object = fieldOwner(expr, evaluate(expr.object));
+        Object value = evaluate(expr.value);
+        object.set(expr.name, value);
+        return value;
+    }
 
-        if (!(object instanceof LoxInstance)) {
+    static LoxInstance fieldOwner(Expr.Set expr, Object object) {
+        if (!expr.onInstance && !(object instanceof LoxInstance)) {
             throw new RuntimeError(expr.name, "Only instance have fields.");
         }
-
-        Object value = evaluate(expr.value);
-        ((LoxInstance)object).set(expr.name, value);
-        return value;
+        return (LoxInstance)object;
     }
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
-        LoxClass superclass = (LoxClass)environment.getAt(distance, "super");
+        LoxClass superclass = (LoxClass)environment.upvalues[expr.upvalue].value;
 
-        LoxInstance object = (LoxInstance)environment.getAt(distance - 1, "this");
+        LoxInstance object = (LoxInstance)visitThisExpr(expr.receiver);
 
         LoxFunction method = superclass.findMethod(expr.method.lexeme);
         
@@ -84,7 +249,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        return lookUpVariable(expr.keyword, expr.slot, expr.upvalue, expr.boxed, -1);
     }
 
     @Override
@@ -94,13 +259,16 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-        Object right = evaluate(expr.right);
+        if (expr.numeric) return -(double)evaluate(expr.right);
+        return unary(expr.operator, evaluate(expr.right));
+    }
 
-        switch (expr.operator.type) {
+    static Object unary(Token operator, Object right) {
+        switch (operator.type) {
             case BANG:
                 return !isTruthy(right);
             case MINUS:
-                checkNumberOperand(expr.operator, right);
+                checkNumberOperand(operator, right);
                 return -(double)right;
         }
 
@@ -112,26 +280,50 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitBinaryExpr(Expr.Binary expr) {
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
+        if (expr.numeric) return arithmetic(expr.operator, (double)left, (double)right);
+
+        Object result = binary(expr.operator, left, right);
+        if (result instanceof String) allocate(ExecutionLimits.STRING_BYTES + ((String)result).length());
+        return result;
+    }
+
+    // binary() for operands TypeInference proved are numbers, so nothing needs checking.
+    static Object arithmetic(Token operator, double left, double right) {
+        switch (operator.type) {
+            case GREATER: return left > right;
+            case GREATER_EQUAL: return left >= right;
+            case LESS: return left < right;
+            case LESS_EQUAL: return left <= right;
+            case MINUS: return left - right;
+            case PLUS: return left + right;
+            case SLASH: return left / right;
+            case STAR: return left * right;
+        }
+
+        // Unreachable
+        return null;
+    }
 
-        switch (expr.operator.type) {
+    static Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
             case GREATER:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left > (double)right;
             case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left >= (double)right;
             case LESS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left < (double)right;
             case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left <= (double)right;
             case BANG_EQUAL:
                 return !isEqual(left, right);
             case EQUAL_EQUAL:
                 return isEqual(left, right);
             case MINUS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left - (double)right;
             case PLUS:
                 if (left instanceof Double && right instanceof Double) {
@@ -142,12 +334,12 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                     return (String)left + (String)right;
                 }
                 
-                throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
+                throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left / (double)right;
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left * (double)right;
         }
 
@@ -156,34 +348,147 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
+        // A method the site's inline cache knows runs on the receiver without being looked up or bound.
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr.callee;
+            Object object = evaluate(get.object);
+            LoxFunction method = cachedMethod(expr, get, object);
+            if (method != null) return invoke(expr, method, method.newFrame((LoxInstance)object), 1);
+            return call(expr, property(get, object));
+        }
+        return call(expr, evaluate(expr.callee));
+    }
+
+    private Object call(Expr.Call expr, Object callee) {
+        List<Expr> arguments = expr.arguments;
+        int count = arguments.size();
+
+        // A Lox function gets its arguments evaluated straight into the new frame's parameter slots.
+        // Where TypeInference proved the callee is one taking count arguments, nothing is checked.
+        if (expr.direct || (callee instanceof LoxFunction && ((LoxFunction)callee).arity() == count)) {
+            LoxFunction function = (LoxFunction)callee;
+            return invoke(expr, function, function.newFrame(), function.firstParameter);
+        }
+
+        // So does a class's initializer, run unbound on the new instance.
+        if (callee instanceof LoxClass && ((LoxClass)callee).arity() == count) {
+            LoxClass klass = (LoxClass)callee;
+            LoxInstance instance = klass.instantiate(this);
+            if (klass.initializer != null) {
+                invoke(expr, klass.initializer, klass.initializer.newFrame(instance), 1);
+            }
+            return instance;
+        }
+
+        try {
+            switch (count) {
+                case 0:
+                    return checkCall(expr, callee, 0).call0(this);
+                case 1: {
+                    Object a = evaluate(arguments.get(0));
+                    return checkCall(expr, callee, 1).call1(this, a);
+                }
+                case 2: {
+                    Object a = evaluate(arguments.get(0));
+                    Object b = evaluate(arguments.get(1));
+                    return checkCall(expr, callee, 2).call2(this, a, b);
+                }
+                case 3: {
+                    Object a = evaluate(arguments.get(0));
+                    Object b = evaluate(arguments.get(1));
+                    Object c = evaluate(arguments.get(2));
+                    return checkCall(expr, callee, 3).call3(this, a, b, c);
+                }
+            }
+
+            List<Object> values = new ArrayList<>(count);
+            for (Expr argument : arguments) {
+                values.add(evaluate(argument));
+            }
+            return checkCall(expr, callee, count).call(this, values);
+        } catch (RuntimeError error) {
+            throw atCallSite(expr, error);
+        }
+    }
+
+    private Object invoke(Expr.Call expr, LoxFunction function, Environment frame, int first) {
+        List<Expr> arguments = expr.arguments;
+        for (int i = 0; i < arguments.size(); i++) {
+            frame.slots[first + i] = evaluate(arguments.get(i));
+        }
+        try {
+            return function.invoke(this, frame);
+        } catch (StackOverflowError error) {
+            throw new RuntimeError(expr.paren, "Stack overflow.");
+        }
+    }
+
+    // The method object.name(...) runs, when object is a LoxInstance whose class, not a field,
+    // supplies it with the site's arity. Explicit calls to init() take the generic path, which
+    // knows they return the receiver.
+    private static LoxFunction cachedMethod(Expr.Call expr, Expr.Get get, Object object) {
+        if (!(object instanceof LoxInstance)) return null;
+        LoxInstance instance = (LoxInstance)object;
+        if (instance.hasField(get.name.lexeme)) return null;
+
+        LoxClass klass = instance.klass;
+        LoxFunction method = InlineCache.lookUp(expr, klass);
+        if (method != null) return method;
+
+        method = klass.findMethod(get.name.lexeme);
+        if (method == null || method == klass.initializer || method.arity() != expr.arguments.size()) {
+            return null;
+        }
+        InlineCache.record(expr, klass, method);
+        return method;
+    }
 
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
+    // Calls a callee that is not a Lox function with arguments already evaluated.
+    Object call(Expr.Call expr, Object callee, List<Object> arguments) {
+        try {
+            return checkCall(expr, callee, arguments.size()).call(this, arguments);
+        } catch (RuntimeError error) {
+            throw atCallSite(expr, error);
         }
+    }
+
+    // Natives don't know where they were called from, so report at this call site. A limit
+    // running out has no place in the script, and keeps its type for the host to tell.
+    private static RuntimeError atCallSite(Expr.Call expr, RuntimeError error) {
+        if (error instanceof LimitExceededError) return error;
+        if (error.token == null) return new RuntimeError(expr.paren, error.getMessage());
+        return error;
+    }
 
+    LoxCallable checkCall(Expr.Call expr, Object callee, int count) {
         if (!(callee instanceof LoxCallable)) {
             throw new RuntimeError(expr.paren, "Can only call functions and classes.");
         }
 
         LoxCallable function = (LoxCallable)callee;
-        if (arguments.size() != function.arity()) {
+        if (count != function.arity()) {
             throw new RuntimeError(expr.paren, "Expected " +
             function.arity() + " arguments but got " + 
-            arguments.size() + ".");
+            count + ".");
         }
 
-        return function.call(this, arguments);
+        return function;
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
-        Object object = evaluate(expr.object);
-        if (object instanceof LoxInstance) {
+        return property(expr, evaluate(expr.object));
+    }
+
+    static Object property(Expr.Get expr, Object object) {
+        if (expr.onInstance || object instanceof LoxInstance) {
             return ((LoxInstance) object).get(expr.name);
         }
 
+        if (object instanceof NativeInstance) {
+            return ((NativeInstance) object).get(expr.name);
+        }
+
         throw new RuntimeError(expr.name, "Only instances have properties.");
     }
 
@@ -195,10 +500,6 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         stmt.accept(this);
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
-    }
-
     void executeBlock(List<Stmt> statements, Environment environment) {
         Environment previous = this.environment;
         try {
@@ -214,7 +515,10 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
+        // A block's variables have slots in the frame of the function it is in.
+        for (Stmt statement : stmt.statements) {
+            execute(statement);
+        }
         return null;
     }
 
@@ -228,24 +532,20 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }
         }
 
-        environment.define(stmt.name.lexeme, null);
+        declare(stmt.slot, stmt.global, stmt.captured, stmt.name, null);
 
         if (stmt.superclass != null) {
-            environment = new Environment(environment);
-            environment.define("super", superclass);
+            environment.slots[stmt.superSlot] = new Cell(superclass);
         }
 
         Map<String, LoxFunction> methods = new HashMap<>();
         for (Stmt.Function method : stmt.methods) {
-            LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
+            LoxFunction function = new LoxFunction(method, capture(method), method.name.lexeme.equals("init"));
             methods.put(method.name.lexeme, function);
         }
 
-        LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass)superclass, methods);
-        if (superclass != null) {
-            environment = environment.enclosing;
-        }
-        environment.assign(stmt.name, klass);
+        LoxClass klass = new LoxClass(stmt, (LoxClass)superclass, methods);
+        initialize(stmt.slot, stmt.global, stmt.captured, stmt.name, klass);
         return null;
     }
 
@@ -257,8 +557,16 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment, false);
-        environment.define(stmt.name.lexeme, function);
+        // Declared first, so a function that refers to itself captures its own Cell.
+        declare(stmt.slot, stmt.global, stmt.captured, stmt.name, null);
+        LoxFunction function = new LoxFunction(stmt, capture(stmt), false);
+        if (stmt.pure && memoCapacity > 0) {
+            function.memo = new Memo(stmt.name.lexeme, memoCapacity);
+            synchronized (memos) {
+                memos.add(function.memo);
+            }
+        }
+        initialize(stmt.slot, stmt.global, stmt.captured, stmt.name, function);
         return null;
     }
 
@@ -275,17 +583,21 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
-        Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        print(evaluate(stmt.expression));
         return null;
     }
 
+    void print(Object value) {
+        out.println(value);
+    }
+
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
         if (stmt.value != null) value = evaluate(stmt.value);
 
-        throw new Return(value);
+        returning.value = value;
+        throw returning;
     }
 
     @Override
@@ -296,14 +608,45 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme, value);
+        declare(stmt.slot, stmt.global, stmt.captured, stmt.name, value);
         return null;
     }
 
+    // Declarations fill their slot in the current frame, with a new Cell if a closure captures the
+    // variable, or define a global at top level.
+    void declare(int slot, int global, boolean captured, Token name, Object value) {
+        if (slot == -1) {
+            globals.define(global, name.lexeme, value);
+        } else {
+            environment.slots[slot] = captured ? new Cell(value) : value;
+        }
+    }
+
+    // Sets a variable just declared, keeping the Cell closures may already have captured.
+    private void initialize(int slot, int global, boolean captured, Token name, Object value) {
+        if (captured) {
+            ((Cell)environment.slots[slot]).value = value;
+        } else {
+            declare(slot, global, false, name, value);
+        }
+    }
+
+    // Collects the Cells a new closure of the function captures; see Resolver.endFunction.
+    private Cell[] capture(Stmt.Function function) {
+        int[] sources = function.upvalues;
+        Cell[] cells = new Cell[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            int source = sources[i];
+            cells[i] = source >= 0 ? (Cell)environment.slots[source] : environment.upvalues[-1 - source];
+        }
+        return cells;
+    }
+
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
         while (isTruthy(evaluate(stmt.condition))) {
             execute(stmt.body);
+            step();
         }
 
         return null;
@@ -312,34 +655,71 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
+        assign(expr, value);
+        return value;
+    }
 
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+    void assign(Expr.Assign expr, Object value) {
+        if (expr.slot != -1) {
+            if (expr.boxed) {
+                ((Cell)environment.slots[expr.slot]).value = value;
+            } else {
+                environment.slots[expr.slot] = value;
+            }
+        } else if (expr.upvalue != -1) {
+            environment.upvalues[expr.upvalue].value = value;
         } else {
-            environment.assign(expr.name, value);
+            globals.assign(expr.global, expr.name, value);
         }
-        return value;
     }
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
+        return lookUpVariable(expr.name, expr.slot, expr.upvalue, expr.boxed, expr.global);
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
+    private Object lookUpVariable(Token name, int slot, int upvalue, boolean boxed, int global) {
+        if (slot != -1) {
+            Object value = environment.slots[slot];
+            return boxed ? ((Cell)value).value : value;
+        } else if (upvalue != -1) {
+            return environment.upvalues[upvalue].value;
         } else {
-            return globals.get(name);
+            return globals.get(global, name);
         }
     }
 
-    private String stringify(Object object) {
+    // Whole numbers that Double.toString() shows without an exponent, except -0.
+    static boolean isSmallInteger(double number) {
+        return number == Math.rint(number) && Math.abs(number) < 1e7 &&
+            (number != 0 || Double.doubleToRawLongBits(number) == 0);
+    }
+
+    // The lists and maps being stringified on this thread, so one that contains itself prints
+    // as [...] or {...} instead of recursing until the stack overflows.
+    private static final ThreadLocal<Map<Object, Boolean>> stringifying = new ThreadLocal<>() {
+        @Override
+        protected Map<Object, Boolean> initialValue() {
+            return new IdentityHashMap<>();
+        }
+    };
+
+    // Whether a container may stringify its elements; if so, it calls endStringify() after.
+    static boolean beginStringify(Object container) {
+        return stringifying.get().putIfAbsent(container, Boolean.TRUE) == null;
+    }
+
+    static void endStringify(Object container) {
+        stringifying.get().remove(container);
+    }
+
+    static String stringify(Object object) {
         if (object == null) return "nil";
 
         if (object instanceof Double) {
+            // Most numbers shown are whole: skip formatting a double only to trim its ".0".
+            if (isSmallInteger((double)object)) return Long.toString((long)(double)object);
+
             String text = object.toString();
             if (text.endsWith(".0")) {
                 text = text.substring(0, text.length() - 2);
@@ -350,25 +730,25 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return object.toString();
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if (a == null && b == null) return true;
         if (a == null) return false;
 
         return a.equals(b);
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    private static void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
+    private static void checkNumberOperands(Token operator, Object left, Object right) {
         if (left instanceof Double && right instanceof Double) return;
 
         throw new RuntimeError(operator, "Operands must be numbers.");
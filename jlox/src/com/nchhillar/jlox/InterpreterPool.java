@@ -0,0 +1,85 @@
+package com.nchhillar.jlox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Runs shared, already-compiled Programs for many tenants at once.
+// Every submission gets its own Interpreter (own globals, own captured output), so tenants
+// never observe each other's state even though they execute the very same AST.
+final class InterpreterPool implements AutoCloseable {
+    // Outcome of one isolated execution.
+    static final class Result {
+        final boolean succeeded;
+        final String output;
+        final String errors;
+        final long nanos;
+        final String limitExceeded;  // the limit that stopped the run, or null
+
+        Result(boolean succeeded, String output, String errors, long nanos, String limitExceeded) {
+            this.succeeded = succeeded;
+            this.output = output;
+            this.errors = errors;
+            this.nanos = nanos;
+            this.limitExceeded = limitExceeded;
+        }
+    }
+
+    private final ExecutorService executor;
+
+    InterpreterPool(int threads) {
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "jlox-tenant");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    Future<Result> submit(Program program) {
+        return submit(program, null);
+    }
+
+    // Cancelling the returned Future interrupts the script, which stops at its next loop
+    // iteration or call.
+    Future<Result> submit(Program program, ExecutionLimits limits) {
+        return executor.submit(() -> run(program, limits));
+    }
+
+    // Execute the program in a fresh context on the calling thread.
+    static Result run(Program program) {
+        return run(program, null);
+    }
+
+    static Result run(Program program, ExecutionLimits limits) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        Interpreter interpreter = new Interpreter(
+            new PrintStream(out, false, StandardCharsets.UTF_8),
+            new PrintStream(err, false, StandardCharsets.UTF_8));
+
+        ExecutionLimits.Meter meter = limits == null ? null : limits.start();
+        long start = System.nanoTime();
+        boolean succeeded = interpreter.interpret(program, meter);
+        long nanos = System.nanoTime() - start;
+
+        return new Result(succeeded,
+            out.toString(StandardCharsets.UTF_8),
+            err.toString(StandardCharsets.UTF_8),
+            nanos,
+            meter == null ? null : meter.exceeded());
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
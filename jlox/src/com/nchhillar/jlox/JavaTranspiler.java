@@ -0,0 +1,962 @@
+package com.nchhillar.jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Ahead-of-time compiler: writes a resolved script out as the source of a Java class, a
+// CompiledScript, that does what the Interpreter would do running it, with the same output and
+// the same runtime errors. javac then compiles it against the jlox classes; see GenerateJava.
+// The resolved tree says where every variable lives, and the class follows it:
+//   - globals are fields of the script object, UNDEFINED until the script defines them;
+//   - a local is a Java local, a Cell if some closure captures it;
+//   - every function is an anonymous CompiledFunction, so a closure captures the Cells of the
+//     variables it uses just by naming them, as the Java class captures effectively final locals;
+//   - each top-level statement is a method of its own, so a big script stays under the JVM's
+//     limits on method size.
+// Expressions TypeInference proved numeric are Java double arithmetic, and so is a local whose
+// every value is a number (see NumberLocals): it is declared double and never boxed.
+// Everything else goes through the checks in CompiledScript.
+public final class JavaTranspiler implements Expr.Visitor<JavaTranspiler.Code>, Stmt.Visitor<Void> {
+    // What an expression's Java code evaluates to. A slot can also hold a CELL.
+    private static final int OBJECT = 0;
+    private static final int DOUBLE = 1;
+    private static final int BOOLEAN = 2;
+    private static final int CELL = 3;
+
+    // Top-level statements run() calls directly, before it calls them through part methods.
+    private static final int STATEMENTS_PER_METHOD = 1000;
+
+    static final class Code {
+        final String text;     // a Java expression, parenthesized unless it is a name or a call
+        final int kind;
+        final String number;   // for a number literal, the same value as a Java double literal
+
+        Code(String text, int kind) {
+            this(text, kind, null);
+        }
+
+        Code(String text, int kind, String number) {
+            this.text = text;
+            this.kind = kind;
+            this.number = number;
+        }
+    }
+
+    // The Java method being written: a function's body, or one top-level statement.
+    private static final class Frame {
+        final int depth;               // of function nesting; 0 for top-level code
+        String[] names;                // the Java variable in each slot, where the code has got to
+        int[] kinds;
+        final String[] upvalues;       // the Java Cell each upvalue is
+        final Set<Stmt.Var> doubles;   // locals declared double
+        final String receiver;         // the parameter holding a method's receiver, else null
+        final boolean initializer;
+        int temps = 0;
+        final Set<String> optimized = new LinkedHashSet<>();   // the Optimizer's temporaries
+
+        Frame(int depth, int size, String[] upvalues, Set<Stmt.Var> doubles, String receiver, boolean initializer) {
+            this.depth = depth;
+            this.names = new String[size];
+            this.kinds = new int[size];
+            this.upvalues = upvalues;
+            this.doubles = doubles;
+            this.receiver = receiver;
+            this.initializer = initializer;
+        }
+    }
+
+    private final String className;
+    private final Map<Double, String> numbers = new LinkedHashMap<>();
+    private final Map<String, String> names = new LinkedHashMap<>();   // Token constants by "line:lexeme"
+    private final Set<String> globals = new LinkedHashSet<>();
+    private Frame frame;
+    private StringBuilder body;
+    private int indent;
+    private int unique = 0;   // for Java names that mustn't repeat within a method
+
+    private JavaTranspiler(String className) {
+        this.className = className;
+    }
+
+    // The Java source of a class named className that runs the script, or null if the script
+    // has compile errors; they are reported on System.err.
+    public static String transpile(String source, String className) {
+        Program program = Program.compile(source);
+        if (program == null) return null;
+        return new JavaTranspiler(className).script(program.statements(), program.locals);
+    }
+
+    private String script(List<Stmt> statements, int locals) {
+        StringBuilder methods = new StringBuilder();
+        for (int i = 0; i < statements.size(); i++) {
+            Stmt statement = statements.get(i);
+            frame = new Frame(0, locals, new String[0],
+                NumberLocals.find(Arrays.asList(statement), new Stmt.Var[locals]), null, false);
+            body = new StringBuilder();
+            indent = 2;
+            unique = 0;
+            statement.accept(this);
+
+            methods.append('\n');
+            methods.append("    private void s").append(i).append("() {\n");
+            methods.append(temps(frame, 2));
+            methods.append(body);
+            methods.append("    }\n");
+        }
+
+        StringBuilder java = new StringBuilder();
+        java.append("package com.nchhillar.jlox;\n\n");
+        java.append("// Generated by GenerateJava; do not edit.\n");
+        java.append("public final class ").append(className).append(" extends CompiledScript {\n");
+        for (Map.Entry<Double, String> number : numbers.entrySet()) {
+            java.append("    private static final Double ").append(number.getValue())
+                .append(" = ").append(number.getKey()).append(";\n");
+        }
+        for (Map.Entry<String, String> name : names.entrySet()) {
+            String key = name.getKey();
+            int colon = key.indexOf(':');
+            java.append("    private static final Token ").append(name.getValue()).append(" = name(")
+                .append(literal(key.substring(colon + 1))).append(", ").append(key, 0, colon).append(");\n");
+        }
+        if (!numbers.isEmpty() || !names.isEmpty()) java.append('\n');
+        for (String global : globals) {
+            java.append("    private Object ").append(global(global)).append(" = global(")
+                .append(literal(global)).append(");\n");
+        }
+        if (!globals.isEmpty()) java.append('\n');
+
+        java.append("    ").append(className).append("() {\n");
+        java.append("    }\n\n");
+        java.append("    ").append(className).append("(OutputSink out, java.io.PrintStream err) {\n");
+        java.append("        super(out, err);\n");
+        java.append("    }\n\n");
+        java.append("    public static void main(String[] args) {\n");
+        java.append("        launch(new ").append(className).append("());\n");
+        java.append("    }\n\n");
+        java.append("    @Override\n");
+        java.append("    void run() {\n");
+        if (statements.size() <= STATEMENTS_PER_METHOD) {
+            for (int i = 0; i < statements.size(); i++) {
+                java.append("        s").append(i).append("();\n");
+            }
+        } else {
+            for (int part = 0; part * STATEMENTS_PER_METHOD < statements.size(); part++) {
+                java.append("        part").append(part).append("();\n");
+            }
+        }
+        java.append("    }\n");
+        if (statements.size() > STATEMENTS_PER_METHOD) {
+            for (int part = 0; part * STATEMENTS_PER_METHOD < statements.size(); part++) {
+                java.append("\n    private void part").append(part).append("() {\n");
+                int end = Math.min((part + 1) * STATEMENTS_PER_METHOD, statements.size());
+                for (int i = part * STATEMENTS_PER_METHOD; i < end; i++) {
+                    java.append("        s").append(i).append("();\n");
+                }
+                java.append("    }\n");
+            }
+        }
+        java.append(methods);
+        java.append("}\n");
+        return java.toString();
+    }
+
+    // Declarations of the temporaries the frame's code used. The Optimizer's start out null, as
+    // javac can't always tell that the code assigns one before reading it.
+    private static String temps(Frame frame, int indent) {
+        StringBuilder lines = new StringBuilder();
+        if (frame.temps > 0) {
+            lines.append(spaces(indent)).append("Object ");
+            for (int i = 0; i < frame.temps; i++) {
+                if (i > 0) lines.append(", ");
+                lines.append("t$").append(frame.depth).append('_').append(i);
+            }
+            lines.append(";\n");
+        }
+        if (!frame.optimized.isEmpty()) {
+            lines.append(spaces(indent)).append("Object ").append(String.join(" = null, ", frame.optimized))
+                .append(" = null;\n");
+        }
+        return lines.toString();
+    }
+
+    // The anonymous CompiledFunction for a declaration. Its body is a new frame, one level deeper.
+    private String function(Stmt.Function function, boolean isMethod, boolean initializer) {
+        int depth = frame.depth + 1;
+        String[] upvalues = new String[function.upvalues.length];
+        for (int i = 0; i < upvalues.length; i++) {
+            int source = function.upvalues[i];
+            upvalues[i] = source >= 0 ? frame.names[source] : frame.upvalues[-1 - source];
+        }
+
+        Frame enclosing = frame;
+        StringBuilder enclosingBody = body;
+        int enclosingIndent = indent;
+        int enclosingUnique = unique;
+
+        String self = "self$" + depth;
+        frame = new Frame(depth, function.locals, upvalues,
+            NumberLocals.find(function.body, new Stmt.Var[function.locals]),
+            isMethod ? self : null, initializer);
+        body = new StringBuilder();
+        indent = enclosingIndent + 2;
+        unique = 0;
+
+        int arity = function.params.size();
+        StringBuilder header = new StringBuilder("Object ");
+        header.append(arity <= 3 ? "invoke" + arity : "invoke").append("(Object ").append(self);
+        if (arity > 3) header.append(", Object[] arguments$").append(depth);
+
+        Set<Integer> boxed = new HashSet<>();
+        for (int slot : function.boxedParameters) boxed.add(slot);
+        if (isMethod) parameter(0, "this", self, boxed);
+        int first = isMethod ? 1 : 0;
+        for (int i = 0; i < arity; i++) {
+            int slot = first + i;
+            String name = local(function.params.get(i).lexeme, slot);
+            String argument = boxed.contains(slot) ? name + "$" : name;
+            if (arity <= 3) {
+                header.append(", Object ").append(argument);
+            } else {
+                line("Object " + argument + " = arguments$" + depth + "[" + i + "];");
+            }
+            parameter(slot, function.params.get(i).lexeme, argument, boxed);
+        }
+        header.append(") {");
+
+        statements(function.body);
+        if (!returns(function.body)) line(initializer ? "return " + self + ";" : "return null;");
+
+        StringBuilder java = new StringBuilder();
+        java.append("new CompiledFunction(").append(literal(function.name.lexeme)).append(", ")
+            .append(arity).append(", ").append(isMethod).append(") {\n");
+        java.append(spaces(enclosingIndent + 1)).append("@Override\n");
+        java.append(spaces(enclosingIndent + 1)).append(header).append('\n');
+        java.append(temps(frame, enclosingIndent + 2));
+        java.append(body);
+        java.append(spaces(enclosingIndent + 1)).append("}\n");
+        java.append(spaces(enclosingIndent)).append("}");
+
+        frame = enclosing;
+        body = enclosingBody;
+        indent = enclosingIndent;
+        unique = enclosingUnique;
+        return java.toString();
+    }
+
+    // A parameter arrives in argument; one a closure captures is moved into a Cell.
+    private void parameter(int slot, String lexeme, String argument, Set<Integer> boxed) {
+        if (boxed.contains(slot)) {
+            String cell = local(lexeme, slot);
+            line("Cell " + cell + " = new Cell(" + argument + ");");
+            declare(slot, cell, CELL);
+        } else {
+            declare(slot, argument, OBJECT);
+        }
+    }
+
+    // Statements, up to the first one Java would see as ending the block.
+    private void statements(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            statement.accept(this);
+            if (returns(statement)) break;
+        }
+    }
+
+    // Whether the statement always returns, so javac rejects anything after it as unreachable.
+    // No loop condition is a Java constant, so a loop never counts.
+    private static boolean returns(Stmt stmt) {
+        if (stmt instanceof Stmt.Return) return true;
+        if (stmt instanceof Stmt.Block) return returns(((Stmt.Block)stmt).statements);
+        if (stmt instanceof Stmt.If) {
+            Stmt.If conditional = (Stmt.If)stmt;
+            return conditional.elseBranch != null && returns(conditional.thenBranch) && returns(conditional.elseBranch);
+        }
+        return false;
+    }
+
+    private static boolean returns(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (returns(statement)) return true;
+        }
+        return false;
+    }
+
+    // A branch or loop body, inside braces the caller writes, as a scope of its own.
+    private void nested(Stmt stmt) {
+        String[] names = frame.names.clone();
+        int[] kinds = frame.kinds.clone();
+        indent++;
+        if (stmt instanceof Stmt.Block) {
+            statements(((Stmt.Block)stmt).statements);
+        } else {
+            stmt.accept(this);
+        }
+        indent--;
+        frame.names = names;
+        frame.kinds = kinds;
+    }
+
+    private void declare(int slot, String name, int kind) {
+        frame.names[slot] = name;
+        frame.kinds[slot] = kind;
+    }
+
+    private void line(String text) {
+        body.append(spaces(indent)).append(text).append('\n');
+    }
+
+    private static String spaces(int indent) {
+        return "    ".repeat(indent);
+    }
+
+    // Java names: a local's says which frame and slot it is, so no two in scope at once clash
+    // and none is a Java keyword.
+    private String local(String lexeme, int slot) {
+        return lexeme + "$" + frame.depth + "_" + slot;
+    }
+
+    // A slot the Optimizer added for a temporary has no declaration in the code; its Java local
+    // is declared at the top of the method.
+    private String slotName(int slot) {
+        if (frame.names[slot] == null) {
+            String name = local("temp", slot);
+            frame.optimized.add(name);
+            return name;
+        }
+        return frame.names[slot];
+    }
+
+    private static String global(String name) {
+        return "g_" + name;
+    }
+
+    private String temp() {
+        return "t$" + frame.depth + "_" + frame.temps++;
+    }
+
+    private String number(double value) {
+        return numbers.computeIfAbsent(value, key -> "K" + numbers.size());
+    }
+
+    private String name(Token token) {
+        return names.computeIfAbsent(token.line + ":" + token.lexeme, key -> "P" + names.size());
+    }
+
+    // A Java string literal, ASCII whatever the source's encoding.
+    private static String literal(String text) {
+        StringBuilder java = new StringBuilder("\"");
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"': java.append("\\\""); break;
+                case '\\': java.append("\\\\"); break;
+                case '\n': java.append("\\n"); break;
+                case '\r': java.append("\\r"); break;
+                case '\t': java.append("\\t"); break;
+                default:
+                    if (c < 0x20 || c > 0x7e) {
+                        java.append(String.format("\\u%04x", (int)c));
+                    } else {
+                        java.append(c);
+                    }
+            }
+        }
+        return java.append('"').toString();
+    }
+
+    // Conversions between the kinds of Code.
+
+    private Code expr(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private static String object(Code code) {
+        if (code.kind == DOUBLE) return "Double.valueOf(" + code.text + ")";
+        if (code.kind == BOOLEAN) return "Boolean.valueOf(" + code.text + ")";
+        return code.text;
+    }
+
+    private String object(Expr expr) {
+        return object(expr(expr));
+    }
+
+    // Only for code proven to be a number.
+    private static String asDouble(Code code) {
+        if (code.kind == DOUBLE) return code.text;
+        if (code.number != null) return code.number;
+        return "((double)" + code.text + ")";
+    }
+
+    private String condition(Expr expr) {
+        if (expr instanceof Expr.Grouping) return condition(((Expr.Grouping)expr).expression);
+        if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical)expr;
+            String operator = logical.operator.type == TokenType.OR ? " || " : " && ";
+            return "(" + condition(logical.left) + operator + condition(logical.right) + ")";
+        }
+        if (expr instanceof Expr.Unary && ((Expr.Unary)expr).operator.type == TokenType.BANG) {
+            return "(!" + condition(((Expr.Unary)expr).right) + ")";
+        }
+
+        Code code = expr(expr);
+        if (code.kind == BOOLEAN) return code.text;
+        return "isTruthy(" + object(code) + ")";
+    }
+
+    // Statements.
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        line("{");
+        nested(stmt);
+        line("}");
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        String superclass = "null";
+        if (stmt.superclass != null) {
+            Code value = expr(stmt.superclass);
+            superclass = "superclass$" + frame.depth + "_" + unique++;
+            line("CompiledClass " + superclass + " = superclass(" + object(value) + ", " + stmt.superclass.name.line + ");");
+        }
+
+        String name = stmt.slot == -1 ? null : local(stmt.name.lexeme, stmt.slot);
+        if (stmt.captured) {
+            line("Cell " + name + " = new Cell(null);");
+            declare(stmt.slot, name, CELL);
+        }
+
+        if (stmt.superclass != null) {
+            String cell = "super$" + frame.depth + "_" + unique++;
+            line("Cell " + cell + " = new Cell(" + superclass + ");");
+            declare(stmt.superSlot, cell, CELL);
+        }
+
+        StringBuilder klass = new StringBuilder("new CompiledClass(");
+        klass.append(literal(stmt.name.lexeme)).append(", ").append(superclass);
+        indent++;
+        for (Stmt.Function method : stmt.methods) {
+            klass.append(",\n").append(spaces(indent))
+                .append(function(method, true, method.name.lexeme.equals("init")));
+        }
+        indent--;
+        klass.append(")");
+
+        if (stmt.slot == -1) {
+            globals.add(stmt.name.lexeme);
+            line(global(stmt.name.lexeme) + " = " + klass + ";");
+        } else if (stmt.captured) {
+            line(name + ".value = " + klass + ";");
+        } else {
+            line("Object " + name + " = " + klass + ";");
+            declare(stmt.slot, name, OBJECT);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expr = stmt.expression;
+        if (expr instanceof Expr.Assign && isLocal((Expr.Assign)expr)) {
+            line(assignment((Expr.Assign)expr) + ";");
+        } else if (expr instanceof Expr.Call || expr instanceof Expr.Set) {
+            line(expr(expr).text + ";");
+        } else {
+            line("discard(" + expr(expr).text + ");");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        if (stmt.slot == -1) {
+            globals.add(stmt.name.lexeme);
+            line(global(stmt.name.lexeme) + " = " + function(stmt, false, false) + ";");
+        } else if (stmt.captured) {
+            // Declared first, so a function that refers to itself captures its own Cell.
+            String name = local(stmt.name.lexeme, stmt.slot);
+            line("Cell " + name + " = new Cell(null);");
+            declare(stmt.slot, name, CELL);
+            line(name + ".value = " + function(stmt, false, false) + ";");
+        } else {
+            String name = local(stmt.name.lexeme, stmt.slot);
+            line("Object " + name + " = " + function(stmt, false, false) + ";");
+            declare(stmt.slot, name, OBJECT);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        line("if (" + condition(stmt.condition) + ") {");
+        nested(stmt.thenBranch);
+        if (stmt.elseBranch != null) {
+            line("} else {");
+            nested(stmt.elseBranch);
+        }
+        line("}");
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        line("print(" + object(stmt.expression) + ");");
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (frame.initializer) {
+            line("return " + frame.receiver + ";");
+        } else {
+            line("return " + (stmt.value == null ? "null" : object(stmt.value)) + ";");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        Code value = stmt.initializer == null ? new Code("null", OBJECT) : expr(stmt.initializer);
+
+        if (stmt.slot == -1) {
+            globals.add(stmt.name.lexeme);
+            line(global(stmt.name.lexeme) + " = " + object(value) + ";");
+            return null;
+        }
+
+        String name = local(stmt.name.lexeme, stmt.slot);
+        if (stmt.captured) {
+            line("Cell " + name + " = new Cell(" + object(value) + ");");
+            declare(stmt.slot, name, CELL);
+        } else if (frame.doubles.contains(stmt)) {
+            line("double " + name + " = " + asDouble(value) + ";");
+            declare(stmt.slot, name, DOUBLE);
+        } else {
+            line("Object " + name + " = " + object(value) + ";");
+            declare(stmt.slot, name, OBJECT);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        line("while (" + condition(stmt.condition) + ") {");
+        nested(stmt.body);
+        line("}");
+        return null;
+    }
+
+    // Expressions.
+
+    @Override
+    public Code visitAssignExpr(Expr.Assign expr) {
+        if (isLocal(expr)) {
+            Code assignment = new Code("(" + assignment(expr) + ")", OBJECT);
+            return expr.slot != -1 && frame.kinds[expr.slot] == DOUBLE ? new Code(assignment.text, DOUBLE) : assignment;
+        }
+
+        // The global is read before value is evaluated; nothing value can run defines globals.
+        globals.add(expr.name.lexeme);
+        String field = global(expr.name.lexeme);
+        return new Code("(" + field + " = assigned(" + field + ", " + object(expr.value) + ", " +
+            literal(expr.name.lexeme) + ", " + expr.name.line + "))", OBJECT);
+    }
+
+    private static boolean isLocal(Expr.Assign expr) {
+        return expr.slot != -1 || expr.upvalue != -1;
+    }
+
+    // An assignment to a local or upvalue, without the parentheses.
+    private String assignment(Expr.Assign expr) {
+        if (expr.slot != -1) {
+            String name = slotName(expr.slot);
+            switch (frame.kinds[expr.slot]) {
+                case CELL: return name + ".value = " + object(expr.value);
+                case DOUBLE: return name + " = " + asDouble(expr(expr.value));
+                default: return name + " = " + object(expr.value);
+            }
+        }
+        return frame.upvalues[expr.upvalue] + ".value = " + object(expr.value);
+    }
+
+    @Override
+    public Code visitBinaryExpr(Expr.Binary expr) {
+        Code left = expr(expr.left);
+        Code right = expr(expr.right);
+        int line = expr.operator.line;
+
+        if (expr.numeric) {
+            String operator = expr.operator.lexeme;
+            boolean comparison = expr.operator.type != TokenType.PLUS && expr.operator.type != TokenType.MINUS &&
+                expr.operator.type != TokenType.STAR && expr.operator.type != TokenType.SLASH;
+            return new Code("(" + asDouble(left) + " " + operator + " " + asDouble(right) + ")",
+                comparison ? BOOLEAN : DOUBLE);
+        }
+
+        String operands = object(left) + ", " + object(right);
+        switch (expr.operator.type) {
+            case PLUS: return new Code("add(" + operands + ", " + line + ")", OBJECT);
+            case MINUS: return new Code("subtract(" + operands + ", " + line + ")", DOUBLE);
+            case STAR: return new Code("multiply(" + operands + ", " + line + ")", DOUBLE);
+            case SLASH: return new Code("divide(" + operands + ", " + line + ")", DOUBLE);
+            case GREATER: return new Code("greater(" + operands + ", " + line + ")", BOOLEAN);
+            case GREATER_EQUAL: return new Code("greaterEqual(" + operands + ", " + line + ")", BOOLEAN);
+            case LESS: return new Code("less(" + operands + ", " + line + ")", BOOLEAN);
+            case LESS_EQUAL: return new Code("lessEqual(" + operands + ", " + line + ")", BOOLEAN);
+            case EQUAL_EQUAL: return new Code("isEqual(" + operands + ")", BOOLEAN);
+            case BANG_EQUAL: return new Code("(!isEqual(" + operands + "))", BOOLEAN);
+            default: throw new IllegalArgumentException("Unexpected operator " + expr.operator.lexeme + ".");
+        }
+    }
+
+    @Override
+    public Code visitCallExpr(Expr.Call expr) {
+        int line = expr.paren.line;
+
+        // object.name(...) and super.name(...) run a method on the receiver without binding it.
+        String receiver = null;
+        String callee;
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr.callee;
+            String object = temp();
+            receiver = "(" + object + " = " + object(get.object) + ")";
+            callee = "method(" + object + ", " + name(get.name) + ")";
+        } else if (expr.callee instanceof Expr.Super) {
+            Expr.Super method = (Expr.Super)expr.callee;
+            receiver = object(method.receiver);
+            callee = "superMethod(" + frame.upvalues[method.upvalue] + ".value, " + name(method.method) + ")";
+        } else {
+            callee = object(expr.callee);
+        }
+
+        int count = expr.arguments.size();
+        StringBuilder call = new StringBuilder(receiver == null ? "apply" : "applyMethod");
+        if (count <= 3) call.append(count);
+        call.append('(');
+        if (receiver != null) call.append(receiver).append(", ");
+        call.append(callee);
+        if (count > 3) call.append(", new Object[] {");
+        for (int i = 0; i < count; i++) {
+            call.append(count > 3 && i == 0 ? "" : ", ").append(object(expr.arguments.get(i)));
+        }
+        if (count > 3) call.append('}');
+        call.append(", ").append(line).append(')');
+        return new Code(call.toString(), OBJECT);
+    }
+
+    @Override
+    public Code visitGetExpr(Expr.Get expr) {
+        return new Code("get(" + object(expr.object) + ", " + name(expr.name) + ")", OBJECT);
+    }
+
+    @Override
+    public Code visitGroupingExpr(Expr.Grouping expr) {
+        return expr(expr.expression);
+    }
+
+    @Override
+    public Code visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        if (value == null) return new Code("null", OBJECT);
+        if (value instanceof Boolean) return new Code((boolean)value ? "Boolean.TRUE" : "Boolean.FALSE", OBJECT);
+        if (value instanceof Double) return new Code(number((double)value), OBJECT, value.toString());
+        return new Code(literal((String)value), OBJECT);
+    }
+
+    @Override
+    public Code visitLogicalExpr(Expr.Logical expr) {
+        String left = temp();
+        String leftValue = "isTruthy(" + left + " = " + object(expr.left) + ")";
+        String right = object(expr.right);
+        if (expr.operator.type == TokenType.OR) {
+            return new Code("(" + leftValue + " ? " + left + " : " + right + ")", OBJECT);
+        }
+        return new Code("(" + leftValue + " ? " + right + " : " + left + ")", OBJECT);
+    }
+
+    @Override
+    public Code visitSetExpr(Expr.Set expr) {
+        String name = name(expr.name);
+        return new Code("set(owner(" + object(expr.object) + ", " + name + "), " + name + ", " +
+            object(expr.value) + ")", OBJECT);
+    }
+
+    @Override
+    public Code visitSuperExpr(Expr.Super expr) {
+        return new Code("bind(" + object(expr.receiver) + ", superMethod(" + frame.upvalues[expr.upvalue] +
+            ".value, " + name(expr.method) + "))", OBJECT);
+    }
+
+    @Override
+    public Code visitThisExpr(Expr.This expr) {
+        return variable(expr.slot, expr.upvalue);
+    }
+
+    @Override
+    public Code visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.BANG) {
+            return new Code("(!" + condition(expr.right) + ")", BOOLEAN);
+        }
+        Code right = expr(expr.right);
+        if (expr.numeric) return new Code("(-" + asDouble(right) + ")", DOUBLE);
+        return new Code("negate(" + object(right) + ", " + expr.operator.line + ")", DOUBLE);
+    }
+
+    @Override
+    public Code visitVariableExpr(Expr.Variable expr) {
+        if (expr.slot != -1 || expr.upvalue != -1) return variable(expr.slot, expr.upvalue);
+
+        globals.add(expr.name.lexeme);
+        return new Code("defined(" + global(expr.name.lexeme) + ", " + literal(expr.name.lexeme) + ", " +
+            expr.name.line + ")", OBJECT);
+    }
+
+    private Code variable(int slot, int upvalue) {
+        if (slot == -1) return new Code(frame.upvalues[upvalue] + ".value", OBJECT);
+
+        String name = slotName(slot);
+        switch (frame.kinds[slot]) {
+            case CELL: return new Code(name + ".value", OBJECT);
+            case DOUBLE: return new Code(name, DOUBLE);
+            default: return new Code(name, OBJECT);
+        }
+    }
+
+    // Finds the locals of one frame that can be Java doubles: not captured, declared with a
+    // number, and only ever assigned numbers. "A number" is an expression whose code is double
+    // arithmetic or a number literal, or one of these locals; so the set is found by starting
+    // with every candidate and dropping those that fail until none do.
+    private static final class NumberLocals implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private Stmt.Var[] slots;   // the candidate declared in each slot, where the walk has got to
+        private final Map<Stmt.Var, List<Expr>> values = new LinkedHashMap<>();
+        private final Map<Expr.Variable, Stmt.Var> references = new HashMap<>();
+        private final Set<Stmt.Var> numbers = new HashSet<>();
+
+        private NumberLocals(Stmt.Var[] slots) {
+            this.slots = slots;
+        }
+
+        static Set<Stmt.Var> find(List<Stmt> body, Stmt.Var[] slots) {
+            NumberLocals locals = new NumberLocals(slots);
+            locals.statements(body);
+
+            locals.numbers.addAll(locals.values.keySet());
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (Map.Entry<Stmt.Var, List<Expr>> candidate : locals.values.entrySet()) {
+                    if (!locals.numbers.contains(candidate.getKey())) continue;
+                    for (Expr value : candidate.getValue()) {
+                        if (!locals.isNumber(value)) {
+                            locals.numbers.remove(candidate.getKey());
+                            changed = true;
+                            break;
+                        }
+                    }
+                }
+            }
+            return locals.numbers;
+        }
+
+        private boolean isNumber(Expr expr) {
+            if (expr instanceof Expr.Literal) return ((Expr.Literal)expr).value instanceof Double;
+            if (expr instanceof Expr.Grouping) return isNumber(((Expr.Grouping)expr).expression);
+            if (expr instanceof Expr.Assign) return isNumber(((Expr.Assign)expr).value);
+            if (expr instanceof Expr.Variable) return numbers.contains(references.get(expr));
+            if (expr instanceof Expr.Unary) return ((Expr.Unary)expr).operator.type == TokenType.MINUS;
+            if (expr instanceof Expr.Binary) {
+                Expr.Binary binary = (Expr.Binary)expr;
+                switch (binary.operator.type) {
+                    case MINUS:
+                    case STAR:
+                    case SLASH:
+                        return true;
+                    case PLUS:
+                        return binary.numeric;
+                    default:
+                        return false;
+                }
+            }
+            return false;
+        }
+
+        private void statements(List<Stmt> statements) {
+            for (Stmt statement : statements) {
+                statement.accept(this);
+            }
+        }
+
+        private void walk(Expr expr) {
+            if (expr != null) expr.accept(this);
+        }
+
+        private void walk(Stmt stmt) {
+            if (stmt != null) stmt.accept(this);
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            Stmt.Var[] enclosing = slots.clone();
+            statements(stmt.statements);
+            slots = enclosing;
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            walk(stmt.superclass);
+            if (stmt.slot != -1) slots[stmt.slot] = null;
+            if (stmt.superSlot != -1) slots[stmt.superSlot] = null;
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            walk(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            walk(stmt.condition);
+            walkScoped(stmt.thenBranch);
+            walkScoped(stmt.elseBranch);
+            return null;
+        }
+
+        // A branch or loop body that isn't a block can't declare anything, but is kept apart anyway.
+        private void walkScoped(Stmt stmt) {
+            Stmt.Var[] enclosing = slots.clone();
+            walk(stmt);
+            slots = enclosing;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            if (stmt.slot != -1) slots[stmt.slot] = null;
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            walk(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            walk(stmt.initializer);
+            if (stmt.slot == -1) return null;
+
+            if (!stmt.captured && stmt.initializer != null) {
+                List<Expr> assigned = new ArrayList<>();
+                assigned.add(stmt.initializer);
+                values.put(stmt, assigned);
+                slots[stmt.slot] = stmt;
+            } else {
+                slots[stmt.slot] = null;
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            walk(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            walk(stmt.condition);
+            walkScoped(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            walk(expr.value);
+            if (expr.slot != -1 && !expr.boxed && slots[expr.slot] != null) {
+                values.get(slots[expr.slot]).add(expr.value);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            walk(expr.left);
+            walk(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            walk(expr.callee);
+            for (Expr argument : expr.arguments) walk(argument);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            walk(expr.object);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            walk(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            walk(expr.left);
+            walk(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            walk(expr.object);
+            walk(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            walk(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            if (expr.slot != -1 && !expr.boxed && slots[expr.slot] != null) {
+                references.put(expr, slots[expr.slot]);
+            }
+            return null;
+        }
+    }
+}
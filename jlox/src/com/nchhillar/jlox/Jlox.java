@@ -1,41 +1,150 @@
 package com.nchhillar.jlox;
 
-import java.util.List;
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 
 // Main entry point for the Lox interpreter.
 // Handles running files or starting an interactive REPL, then pipes code through Scanner -> Parser -> AST printer.
 public class Jlox {
-    private static final Interpreter interpreter = new Interpreter();
+    // Print output is buffered, and written out within 100 ms of printing, so long runs still show
+    // progress.
+    private static final OutputSink output =
+        new OutputSink(System.out, OutputSink.DEFAULT_THRESHOLD, 100, false);
+    private static final Interpreter interpreter = new Interpreter(output, System.err);
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
+    // What --timings reports after each run: null for nothing, "text" or "json".
+    private static String timings = null;
 
     // Entry point: decide whether to run a file or start REPL based on command line args.
-    public static void main(String[] args) throws IOException{
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+    public static void main(String[] args) throws IOException, InterruptedException {
+        // Tasks still printing when the script ends get their output written too.
+        Runtime.getRuntime().addShutdownHook(new Thread(output::flush));
+
+        String script = null;
+        boolean watch = false;
+        boolean batch = false;
+        boolean compile = false;
+        int memoCapacity = 0;
+        int heapStackDepth = 0;
+        for (String arg : args) {
+            if (arg.equals("--watch")) {
+                watch = true;
+            } else if (arg.equals("--batch")) {
+                batch = true;
+            } else if (arg.equals("--compile")) {
+                compile = true;
+            } else if (arg.equals("--timings") || arg.equals("--timings=text")) {
+                timings = "text";
+            } else if (arg.equals("--timings=json")) {
+                timings = "json";
+            } else if (arg.equals("--memoize")) {
+                memoCapacity = Memo.DEFAULT_CAPACITY;
+            } else if (arg.startsWith("--memoize=")) {
+                memoCapacity = parsePositive(arg.substring("--memoize=".length()));
+            } else if (arg.equals("--heap-stack")) {
+                heapStackDepth = StackMachine.DEFAULT_MAX_DEPTH;
+            } else if (arg.startsWith("--heap-stack=")) {
+                heapStackDepth = parsePositive(arg.substring("--heap-stack=".length()));
+            } else if (arg.startsWith("--") || script != null) {
+                usage();
+            } else {
+                script = arg;
+            }
+        }
+
+        if (heapStackDepth > 0) interpreter.useHeapStack(heapStackDepth);
+
+        int modes = (watch ? 1 : 0) + (batch ? 1 : 0) + (compile ? 1 : 0);
+        if (modes > 1 || (modes == 1 && (script == null || timings != null))) usage();
+        // Purity holds for a whole script, so a REPL or a reloaded script can't memoize.
+        if (memoCapacity > 0 && (modes == 1 || script == null)) usage();
+        if (memoCapacity > 0) interpreter.memoize(memoCapacity);
+        if (compile) {
+            compileFile(script);
+        } else if (batch) {
+            runBatch(script, heapStackDepth);
+        } else if (watch) {
+            HotReload.watch(Paths.get(script), interpreter);
+        } else if (script != null) {
+            runFile(script);
         } else {
             runPrompt();
         }
     }
 
-    // Read a file and run it once (batch mode).
+    private static void usage() {
+        System.out.println("Usage: jlox [--heap-stack[=max depth]] [--watch script | --batch directory|manifest | --compile script | [--timings[=json]] [--memoize[=entries]] [script]]");
+        System.exit(64);
+    }
+
+    private static int parsePositive(String text) {
+        try {
+            int depth = Integer.parseInt(text);
+            if (depth > 0) return depth;
+        } catch (NumberFormatException e) {
+            // fall through to usage
+        }
+        usage();
+        return 0;
+    }
+
+    // Read a file and run it once (batch mode). A .loxc was compiled by --compile, and runs
+    // without being scanned, parsed or resolved again.
     private static void runFile (String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        if (path.endsWith(Program.COMPILED_EXTENSION)) {
+            Program program = readCompiled(Paths.get(path));
+            if (program == null) System.exit(65);
+            if (!interpreter.interpret(program)) hadRuntimeError = true;
+        } else {
+            byte[] bytes = Files.readAllBytes(Paths.get(path));
+            run(new String(bytes, Charset.defaultCharset()));
+        }
+        interpreter.reportMemos(System.err);
 
         if (hadError) System.exit(65);
         if (hadRuntimeError) System.exit(70);
     }
 
+    private static Program readCompiled(Path path) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            return Program.read(in);
+        } catch (EOFException e) {
+            System.err.println(path + ": Not a compiled Lox script.");
+        } catch (IOException e) {
+            if (!Files.isReadable(path)) throw e;
+            System.err.println(path + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    // --compile: writes script.loxc next to script.lox, for running later without compiling.
+    private static void compileFile(String path) throws IOException {
+        byte[] bytes = Files.readAllBytes(Paths.get(path));
+        Program program = Program.compile(new String(bytes, Charset.defaultCharset()));
+        if (program == null) System.exit(65);
+
+        String base = path.endsWith(".lox") ? path.substring(0, path.length() - ".lox".length()) : path;
+        try (OutputStream out = Files.newOutputStream(Paths.get(base + Program.COMPILED_EXTENSION))) {
+            program.write(out);
+        }
+    }
+
+    // Run every script of a directory or manifest in this JVM, and exit with the worst status.
+    private static void runBatch(String source, int heapStackDepth) throws IOException, InterruptedException {
+        BatchRunner runner = new BatchRunner(Runtime.getRuntime().availableProcessors(), heapStackDepth);
+        int status = runner.run(BatchRunner.scripts(Paths.get(source)), System.out, System.err);
+        if (status != 0) System.exit(status);
+    }
+
     // Interactive REPL: read one line, run it, print result, repeat.
     private static void runPrompt() throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
@@ -50,44 +159,42 @@ public class Jlox {
         }
     }
 
-    // Core pipeline: source text -> tokens -> AST -> print it.
+    // Core pipeline: source text -> resolved Program -> interpreter.
     private static void run(String source) {
-        Scanner sc = new Scanner(source);
-        List<Token> tokens = sc.scanTokens();
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
-
-        if (hadError) return; // don't try to print broken AST
-        
-        Resolver resolver = new Resolver(interpreter);
-        resolver.resolve(statements);
-        
-        if (hadError) return;
-
-        interpreter.interpret(statements);
-    }
+        if (timings != null) {
+            runTimed(source);
+            return;
+        }
 
-    // Error reporting helpers.
-    static void error(int line, String message) {
-        report(line, "", message);
-    }
+        Program program = Program.compile(source);
+        if (program == null) { // don't try to run a broken AST
+            hadError = true;
+            return;
+        }
 
-    private static void report(int line, String where, String message) {
-        System.err.println("[line " + line + "] Error" + where + ": " + message);
-        hadError = true;
+        if (!interpreter.interpret(program)) hadRuntimeError = true;
     }
 
-    static void error(Token token, String message) {
-        if (token.type == TokenType.EOF) {
-            report(token.line, " at end", message);
+    // run() with every phase measured, and the measurements written to stderr after the output.
+    private static void runTimed(String source) {
+        PhaseTimings phases = new PhaseTimings();
+        Program program = Program.compile(source, 1, new ErrorReporter(System.err), phases);
+        if (program == null) {
+            hadError = true;
         } else {
-            report(token.line, " at '" + token.lexeme + "'", message);
+            // A meter without limits, to count the steps taken.
+            ExecutionLimits.Meter meter = new ExecutionLimits(0, 0, 0).start();
+            phases.start("interpret");
+            if (!interpreter.interpret(program, meter)) hadRuntimeError = true;
+            phases.stop();
+            phases.counted(meter.steps(), "steps");
         }
-    }
 
-    static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() +
-            "\n[line " + error.token.line + "]");
-        hadRuntimeError = true;
+        if (timings.equals("json")) {
+            phases.printJson(System.err);
+        } else {
+            phases.print(System.err);
+        }
     }
+
 }
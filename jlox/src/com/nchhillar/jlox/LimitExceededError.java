@@ -0,0 +1,9 @@
+package com.nchhillar.jlox;
+
+// A script ran out of one of its ExecutionLimits, or was interrupted. Reported like any runtime
+// error, but a distinct type so hosts can tell a bad script from a script that was cut off.
+class LimitExceededError extends RuntimeError {
+    LimitExceededError(String message) {
+        super(null, message);
+    }
+}
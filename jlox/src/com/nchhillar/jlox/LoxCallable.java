@@ -1,8 +1,31 @@
 package com.nchhillar.jlox;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 interface LoxCallable {
     int arity();
+
+    // General entry point, for any number of arguments.
     Object call(Interpreter interpreter, List<Object> arguments);
+
+    // Fixed-arity entry points, so a call with up to three arguments needn't allocate a list.
+    // The Interpreter only uses the one matching arity(); callables override those they can
+    // serve directly.
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, Collections.emptyList());
+    }
+
+    default Object call1(Interpreter interpreter, Object a) {
+        return call(interpreter, Collections.singletonList(a));
+    }
+
+    default Object call2(Interpreter interpreter, Object a, Object b) {
+        return call(interpreter, Arrays.asList(a, b));
+    }
+
+    default Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        return call(interpreter, Arrays.asList(a, b, c));
+    }
 }
@@ -0,0 +1,99 @@
+package com.nchhillar.jlox;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded, blocking channel for passing values between spawned Lox tasks.
+// Uses a ReentrantLock rather than synchronized so blocked virtual threads unmount from their carrier.
+class LoxChannel extends NativeInstance {
+    private final Object[] buffer;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private int head = 0;
+    private int count = 0;
+    private boolean closed = false;
+
+    LoxChannel(int capacity) {
+        this.buffer = new Object[capacity];
+    }
+
+    // Blocks while the channel is full.
+    void send(Object value) {
+        lock.lock();
+        try {
+            while (count == buffer.length && !closed) {
+                notFull.await();
+            }
+            if (closed) throw new RuntimeError(null, "Send on closed channel.");
+
+            buffer[(head + count) % buffer.length] = value;
+            count++;
+            notEmpty.signal();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeError(null, "Interrupted while sending.");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Blocks while the channel is empty; returns nil once it is closed and drained.
+    Object receive() {
+        lock.lock();
+        try {
+            while (count == 0 && !closed) {
+                notEmpty.await();
+            }
+            if (count == 0) return null;
+
+            Object value = buffer[head];
+            buffer[head] = null;
+            head = (head + 1) % buffer.length;
+            count--;
+            notFull.signal();
+            return value;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeError(null, "Interrupted while receiving.");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    Object get(Token name) {
+        switch (name.lexeme) {
+            case "send":
+                return new NativeFunction(1, (interpreter, arguments) -> {
+                    send(arguments.get(0));
+                    return null;
+                });
+            case "receive":
+                return new NativeFunction(0, (interpreter, arguments) -> receive());
+            case "close":
+                return new NativeFunction(0, (interpreter, arguments) -> {
+                    close();
+                    return null;
+                });
+        }
+
+        throw undefinedProperty(name);
+    }
+
+    @Override
+    public String toString() {
+        return "<channel>";
+    }
+}
@@ -5,13 +5,32 @@ import java.util.Map;
 
 class LoxClass implements LoxCallable {
     final String name;
-    final LoxClass superclass;
-    private final Map<String, LoxFunction> methods;
+    Stmt.Class declaration;
+    LoxClass superclass;
+    private Map<String, LoxFunction> methods;
+    // Looked up once: the method table and superclass chain only change when HotReload swaps
+    // in a new version of the class.
+    LoxFunction initializer;
+    private int arity;
 
-    LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
+    LoxClass(Stmt.Class declaration, LoxClass superclass, Map<String, LoxFunction> methods) {
         this.superclass = superclass;
-        this.name = name;
+        this.declaration = declaration;
+        this.name = declaration.name.lexeme;
         this.methods = methods;
+        this.initializer = findMethod("init");
+        this.arity = initializer == null ? 0 : initializer.arity();
+    }
+
+    // Takes over the methods and superclass of a new version of this class, so its instances and
+    // subclasses use the new code from now on. Method call sites forget what they cached.
+    void reload(LoxClass replacement) {
+        this.declaration = replacement.declaration;
+        this.superclass = replacement.superclass;
+        this.methods = replacement.methods;
+        this.initializer = replacement.initializer;
+        this.arity = replacement.arity;
+        InlineCache.invalidateAll();
     }
 
     LoxFunction findMethod(String name) {
@@ -33,8 +52,7 @@ class LoxClass implements LoxCallable {
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        LoxInstance instance = new LoxInstance(this);
-        LoxFunction initializer = findMethod("init");
+        LoxInstance instance = instantiate(interpreter);
         if (initializer != null) {
             initializer.bind(instance).call(interpreter, arguments);
         }
@@ -42,10 +60,42 @@ class LoxClass implements LoxCallable {
         return instance;
     }
 
+    @Override
+    public Object call0(Interpreter interpreter) {
+        LoxInstance instance = instantiate(interpreter);
+        if (initializer != null) initializer.bind(instance).call0(interpreter);
+        return instance;
+    }
+
+    // Only called when the argument count matches arity(), so with arguments there is an initializer.
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        LoxInstance instance = instantiate(interpreter);
+        initializer.bind(instance).call1(interpreter, a);
+        return instance;
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        LoxInstance instance = instantiate(interpreter);
+        initializer.bind(instance).call2(interpreter, a, b);
+        return instance;
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        LoxInstance instance = instantiate(interpreter);
+        initializer.bind(instance).call3(interpreter, a, b, c);
+        return instance;
+    }
+
+    LoxInstance instantiate(Interpreter interpreter) {
+        interpreter.allocate(ExecutionLimits.INSTANCE_BYTES);
+        return new LoxInstance(this);
+    }
+
     @Override
     public int arity() {
-        LoxFunction initializer = findMethod("init");
-        if (initializer == null) return 0;
-        return initializer.arity();
+        return arity;
     }
 }
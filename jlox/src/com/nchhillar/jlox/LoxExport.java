@@ -0,0 +1,14 @@
+package com.nchhillar.jlox;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// Marks a Java method to be exposed to Lox scripts by Interpreter.expose().
+// The Lox name defaults to the method's own name.
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface LoxExport {
+    String value() default "";
+}
@@ -1,22 +1,45 @@
 package com.nchhillar.jlox;
 
+import java.lang.ref.Reference;
 import java.util.List;
 
 class LoxFunction implements LoxCallable {
-    private final Stmt.Function declaration;
-    private final Environment closure;
+    // Not final only so HotReload can swap in a new version; see reload().
+    private Stmt.Function declaration;
+    // Only the variables the body refers to from enclosing functions, not their whole frames.
+    private Cell[] upvalues;
+    private final LoxInstance receiver;
     private final boolean isInitializer;
+    private int arity;
+    // Slot of the first parameter: a bound method keeps its receiver in slot 0.
+    final int firstParameter;
+    // Results by arguments, when the interpreter memoizes and the function is pure; else null.
+    Memo memo;
 
-    LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+    LoxFunction(Stmt.Function declaration, Cell[] upvalues, boolean isInitializer) {
+        this(declaration, upvalues, isInitializer, null);
+    }
+
+    private LoxFunction(Stmt.Function declaration, Cell[] upvalues, boolean isInitializer, LoxInstance receiver) {
         this.isInitializer = isInitializer;
-        this.closure = closure;
+        this.upvalues = upvalues;
         this.declaration = declaration;
+        this.receiver = receiver;
+        this.arity = declaration.params.size();
+        this.firstParameter = receiver == null ? 0 : 1;
     }
 
     LoxFunction bind(LoxInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(declaration, environment, isInitializer);
+        return new LoxFunction(declaration, upvalues, isInitializer, instance);
+    }
+
+    // Takes over the code of a new version of this top-level function, so everything already
+    // holding this one calls the new code from now on. Calls in progress finish the old body.
+    void reload(LoxFunction replacement) {
+        this.declaration = replacement.declaration;
+        this.upvalues = replacement.upvalues;
+        this.arity = replacement.arity;
+        this.memo = replacement.memo;
     }
 
     @Override
@@ -26,26 +49,107 @@ class LoxFunction implements LoxCallable {
 
     @Override
     public int arity() {
-        return declaration.params.size();
+        return arity;
     }
 
-    @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
+    // The frame for one call, holding every local of the body.
+    // Callers fill in the parameters from firstParameter on and hand it to invoke().
+    Environment newFrame() {
+        Environment frame = new Environment(declaration.locals, upvalues);
+        if (receiver != null) frame.slots[0] = receiver;
+        return frame;
+    }
+
+    // The frame for running this method, unbound, on receiver; parameters start at slot 1.
+    // The call evaluates to whatever invoke() returns, except for an initializer: there it is receiver.
+    Environment newFrame(LoxInstance receiver) {
+        Environment frame = new Environment(declaration.locals, upvalues);
+        frame.slots[0] = receiver;
+        return frame;
+    }
 
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+    Object invoke(Interpreter interpreter, Environment frame) {
+        Object key = memo == null ? null : memo.key(frame.slots, firstParameter, arity);
+        if (key != null) {
+            Object cached = memo.lookUp(key);
+            if (cached != Memo.MISSING) return cached;
+            Object result = run(interpreter, frame);
+            memo.store(key, result);
+            return result;
         }
+        return run(interpreter, frame);
+    }
+
+    private Object run(Interpreter interpreter, Environment frame) {
+        interpreter.step();
+        interpreter.allocate(ExecutionLimits.FRAME_BYTES + 8L * frame.slots.length);
+        enter(frame);
 
         try {
-            interpreter.executeBlock(declaration.body, environment);
+            interpreter.executeBlock(declaration.body, frame);
         } catch (Return returnValue) {
-            if (isInitializer) return closure.getAt(0, "this");
-            return returnValue.value;
+            Object value = returnValue.value;
+            returnValue.value = null;
+            return result(value);
+        } finally {
+            // The declaration holds the names of the globals the body uses; see Environment.
+            Reference.reachabilityFence(this);
+        }
+
+        return result(null);
+    }
+
+    // The steps of invoke(), for the StackMachine to run the body itself.
+    void enter(Environment frame) {
+        for (int slot : declaration.boxedParameters) {
+            frame.slots[slot] = new Cell(frame.slots[slot]);
+        }
+    }
+
+    List<Stmt> body() {
+        return declaration.body;
+    }
+
+    // What the call evaluates to once the body returned value, or fell off its end with nil.
+    Object result(Object value) {
+        return isInitializer ? receiver : value;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        Environment frame = newFrame();
+        for (int i = 0; i < arity; i++) {
+            frame.slots[firstParameter + i] = arguments.get(i);
         }
+        return invoke(interpreter, frame);
+    }
 
-        if (isInitializer) return closure.getAt(0, "this");
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return invoke(interpreter, newFrame());
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        Environment frame = newFrame();
+        frame.slots[firstParameter] = a;
+        return invoke(interpreter, frame);
+    }
 
-        return null;
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        Environment frame = newFrame();
+        frame.slots[firstParameter] = a;
+        frame.slots[firstParameter + 1] = b;
+        return invoke(interpreter, frame);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        Environment frame = newFrame();
+        frame.slots[firstParameter] = a;
+        frame.slots[firstParameter + 1] = b;
+        frame.slots[firstParameter + 2] = c;
+        return invoke(interpreter, frame);
     }
 }
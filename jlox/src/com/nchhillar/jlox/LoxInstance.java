@@ -1,20 +1,21 @@
 package com.nchhillar.jlox;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+// Instances can be handed between spawned tasks, so fields live in a ConcurrentHashMap
+// (with nil wrapped the same way Environment does it).
 class LoxInstance {
-    private LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    final LoxClass klass;
+    private final Map<String, Object> fields = new ConcurrentHashMap<>();
 
     LoxInstance(LoxClass klass) {
         this.klass = klass;
     }
 
     Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
-        }
+        Object value = fields.get(name.lexeme);
+        if (value != null) return Environment.unwrap(value);
 
         LoxFunction method = klass.findMethod(name.lexeme);
         if (method != null) return method.bind(this);
@@ -22,8 +23,12 @@ class LoxInstance {
         throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
     }
 
+    boolean hasField(String name) {
+        return fields.containsKey(name);
+    }
+
     void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        fields.put(name.lexeme, Environment.wrap(value));
     }
 
     @Override
@@ -0,0 +1,223 @@
+package com.nchhillar.jlox;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+// Growable list of Lox values, created with list().
+// While every element is a number the storage is a plain double[] (8 bytes per element, no boxes);
+// the first non-number moves everything into an Object[] for good.
+class LoxList extends NativeInstance {
+    private double[] numbers;   // storage while every element is a number, otherwise null
+    private Object[] objects;   // storage once any element is not a number
+    private int count = 0;
+
+    LoxList() {
+        this(8);
+    }
+
+    LoxList(int capacity) {
+        this.numbers = new double[Math.max(capacity, 1)];
+    }
+
+    // Takes ownership of an already filled array, specializing it if it holds only numbers.
+    LoxList(Object[] elements, int count) {
+        this.count = count;
+        for (int i = 0; i < count; i++) {
+            if (!(elements[i] instanceof Double)) {
+                this.objects = elements.length == 0 ? new Object[1] : elements;
+                return;
+            }
+        }
+
+        this.numbers = new double[Math.max(count, 1)];
+        for (int i = 0; i < count; i++) {
+            numbers[i] = (double)elements[i];
+        }
+    }
+
+    private LoxList(double[] numbers, Object[] objects, int count) {
+        this.numbers = numbers;
+        this.objects = objects;
+        this.count = count;
+    }
+
+    int size() {
+        return count;
+    }
+
+    Object get(int index) {
+        if (numbers != null) return numbers[index];
+        return objects[index];
+    }
+
+    void set(int index, Object value) {
+        if (numbers != null) {
+            if (value instanceof Double) {
+                numbers[index] = (double)value;
+                return;
+            }
+            generalize();
+        }
+        objects[index] = value;
+    }
+
+    void add(Object value) {
+        if (numbers != null && !(value instanceof Double)) generalize();
+
+        if (numbers != null) {
+            if (count == numbers.length) numbers = Arrays.copyOf(numbers, grow(count));
+            numbers[count++] = (double)value;
+        } else {
+            if (count == objects.length) objects = Arrays.copyOf(objects, grow(count));
+            objects[count++] = value;
+        }
+    }
+
+    Object removeLast() {
+        Object value = get(count - 1);
+        if (objects != null) objects[count - 1] = null;
+        count--;
+        return value;
+    }
+
+    LoxList slice(int start, int end) {
+        if (numbers != null) {
+            return new LoxList(Arrays.copyOfRange(numbers, start, Math.max(end, start + 1)), null, end - start);
+        }
+        return new LoxList(null, Arrays.copyOfRange(objects, start, Math.max(end, start + 1)), end - start);
+    }
+
+    // Sorts numbers ascending, or strings lexicographically; anything else needs a comparator.
+    void sort() {
+        if (numbers != null) {
+            Arrays.sort(numbers, 0, count);
+            return;
+        }
+
+        // Storage that went to Object[] stays there, so it can hold only numbers again. Double's
+        // order is the one Arrays.sort gives a double[].
+        Class<?> type = count == 0 || objects[0] instanceof String ? String.class : Double.class;
+        for (int i = 0; i < count; i++) {
+            if (!type.isInstance(objects[i])) {
+                throw new RuntimeError(null, "Can only sort numbers or strings without a comparator.");
+            }
+        }
+        Arrays.sort(objects, 0, count);
+    }
+
+    // Stable TimSort driven by a Lox function returning a negative, zero or positive number.
+    void sort(Interpreter interpreter, LoxCallable comparator) {
+        Object[] elements = new Object[count];
+        for (int i = 0; i < count; i++) {
+            elements[i] = get(i);
+        }
+
+        Comparator<Object> order = (a, b) -> {
+            Object result = comparator.call2(interpreter, a, b);
+            if (!(result instanceof Double)) {
+                throw new RuntimeError(null, "Comparator must return a number.");
+            }
+            return Double.compare((double)result, 0.0);
+        };
+
+        try {
+            Arrays.sort(elements, order);
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeError(null, "Comparator is inconsistent.");
+        }
+
+        for (int i = 0; i < count; i++) {
+            set(i, elements[i]);
+        }
+    }
+
+    // Moves every element into Object[] storage, once the list stops being all numbers.
+    private void generalize() {
+        objects = new Object[numbers.length];
+        for (int i = 0; i < count; i++) {
+            objects[i] = numbers[i];
+        }
+        numbers = null;
+    }
+
+    private static int grow(int capacity) {
+        return capacity + (capacity >> 1) + 1;
+    }
+
+    @Override
+    Object get(Token name) {
+        switch (name.lexeme) {
+            case "push":
+                return new NativeFunction(1, (interpreter, arguments) -> {
+                    add(arguments.get(0));
+                    return null;
+                });
+            case "pop":
+                return new NativeFunction(0, (interpreter, arguments) -> {
+                    if (count == 0) throw new RuntimeError(null, "Can't pop from an empty list.");
+                    return removeLast();
+                });
+            case "get":
+                return new NativeFunction(1, (interpreter, arguments) ->
+                    get(checkIndex(arguments.get(0), count - 1)));
+            case "set":
+                return new NativeFunction(2, (interpreter, arguments) -> {
+                    set(checkIndex(arguments.get(0), count - 1), arguments.get(1));
+                    return arguments.get(1);
+                });
+            case "length":
+                return new NativeFunction(0, (interpreter, arguments) -> (double)count);
+            case "slice":
+                return new NativeFunction(2, (interpreter, arguments) -> {
+                    int start = checkIndex(arguments.get(0), count);
+                    int end = checkIndex(arguments.get(1), count);
+                    if (end < start) throw new RuntimeError(null, "Slice end is before its start.");
+                    return slice(start, end);
+                });
+            case "sort":
+                return new NativeFunction(0, (interpreter, arguments) -> {
+                    sort();
+                    return this;
+                });
+            case "sortBy":
+                return new NativeFunction(1, (interpreter, arguments) -> {
+                    Object comparator = arguments.get(0);
+                    if (!(comparator instanceof LoxCallable) || ((LoxCallable)comparator).arity() != 2) {
+                        throw new RuntimeError(null, "Comparator must be a function taking 2 arguments.");
+                    }
+                    sort(interpreter, (LoxCallable)comparator);
+                    return this;
+                });
+        }
+
+        throw undefinedProperty(name);
+    }
+
+    // Checks that index is a whole number in [0, max].
+    private static int checkIndex(Object index, int max) {
+        if (!(index instanceof Double)) {
+            throw new RuntimeError(null, "List index must be a number.");
+        }
+
+        double value = (double)index;
+        if (value != Math.floor(value) || value < 0 || value > max) {
+            throw new RuntimeError(null, "List index out of range.");
+        }
+        return (int)value;
+    }
+
+    @Override
+    public String toString() {
+        if (!Interpreter.beginStringify(this)) return "[...]";
+        try {
+            StringBuilder builder = new StringBuilder("[");
+            for (int i = 0; i < count; i++) {
+                if (i > 0) builder.append(", ");
+                builder.append(Interpreter.stringify(get(i)));
+            }
+            return builder.append("]").toString();
+        } finally {
+            Interpreter.endStringify(this);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.nchhillar.jlox;
+
+// Hash map of Lox values, created with map().
+// Open addressing with linear probing and tombstones, the same scheme as clox/table.c, laid out as
+// parallel arrays: number keys live unboxed in numberKeys, every other key in objectKeys.
+// Keys compare the way == does: numbers, strings and booleans by value, everything else by identity.
+class LoxMap extends NativeInstance {
+    // Lower than clox's 0.75: linear probing's miss cost climbs steeply past half full.
+    private static final double MAX_LOAD = 0.5;
+
+    private static final byte EMPTY = 0;
+    private static final byte TOMBSTONE = 1;
+    private static final byte NUMBER = 2;
+    private static final byte OBJECT = 3;
+
+    private byte[] kinds = new byte[0];
+    private double[] numberKeys = new double[0];
+    private Object[] objectKeys = null;  // only allocated once a non-number key shows up
+    private Object[] values = new Object[0];
+    private int count = 0;  // live entries plus tombstones, as in clox
+    private int size = 0;   // live entries only
+
+    int size() {
+        return size;
+    }
+
+    Object get(Object key) {
+        if (size == 0) return null;
+        int index = find(key);
+        return kinds[index] < NUMBER ? null : values[index];
+    }
+
+    boolean containsKey(Object key) {
+        if (size == 0) return false;
+        return kinds[find(key)] >= NUMBER;
+    }
+
+    // Returns true if the key was not already present.
+    boolean put(Object key, Object value) {
+        if (count + 1 > kinds.length * MAX_LOAD) {
+            // Sized by the live entries: when it's mostly tombstones that fill the table, clearing
+            // them out at the same capacity makes room, so churn doesn't grow it forever.
+            if (kinds.length < 8) {
+                adjustCapacity(8);
+            } else if (size + 1 <= kinds.length * MAX_LOAD / 2) {
+                adjustCapacity(kinds.length);
+            } else {
+                adjustCapacity(kinds.length * 2);
+            }
+        }
+
+        int index = find(key);
+        boolean isNewKey = kinds[index] < NUMBER;
+        if (isNewKey) {
+            if (kinds[index] == EMPTY) count++;
+            size++;
+            if (key instanceof Double) {
+                kinds[index] = NUMBER;
+                numberKeys[index] = (double)key;
+            } else {
+                if (objectKeys == null) objectKeys = new Object[kinds.length];
+                kinds[index] = OBJECT;
+                objectKeys[index] = key;
+            }
+        }
+
+        values[index] = value;
+        return isNewKey;
+    }
+
+    // Leaves a tombstone so probe sequences running through this slot stay intact.
+    boolean remove(Object key) {
+        if (size == 0) return false;
+
+        int index = find(key);
+        if (kinds[index] < NUMBER) return false;
+
+        if (kinds[index] == OBJECT) objectKeys[index] = null;
+        kinds[index] = TOMBSTONE;
+        values[index] = null;
+        size--;
+        return true;
+    }
+
+    LoxList keys() {
+        Object[] result = new Object[size];
+        int next = 0;
+        for (int i = 0; i < kinds.length; i++) {
+            if (kinds[i] == NUMBER) result[next++] = numberKeys[i];
+            else if (kinds[i] == OBJECT) result[next++] = objectKeys[i];
+        }
+        return new LoxList(result, next);
+    }
+
+    LoxList values() {
+        Object[] result = new Object[size];
+        int next = 0;
+        for (int i = 0; i < kinds.length; i++) {
+            if (kinds[i] >= NUMBER) result[next++] = values[i];
+        }
+        return new LoxList(result, next);
+    }
+
+    private int find(Object key) {
+        if (key instanceof Double) return findNumber(kinds, numberKeys, (double)key);
+        return findObject(kinds, objectKeys, key);
+    }
+
+    // Each find returns the slot holding the key, or else the slot a new entry for it should go in:
+    // the first tombstone passed on the way, if any, or the empty slot that ended the probe.
+    private static int findNumber(byte[] kinds, double[] numberKeys, double key) {
+        long bits = Double.doubleToLongBits(key);
+        int mask = kinds.length - 1;
+        int index = mix(bits) & mask;
+        int tombstone = -1;
+
+        for (;;) {
+            byte kind = kinds[index];
+            if (kind == EMPTY) return tombstone != -1 ? tombstone : index;
+            if (kind == TOMBSTONE) {
+                if (tombstone == -1) tombstone = index;
+            } else if (kind == NUMBER && Double.doubleToLongBits(numberKeys[index]) == bits) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    private static int findObject(byte[] kinds, Object[] objectKeys, Object key) {
+        int mask = kinds.length - 1;
+        int index = mix(key == null ? 0 : key.hashCode()) & mask;
+        int tombstone = -1;
+
+        for (;;) {
+            byte kind = kinds[index];
+            if (kind == EMPTY) return tombstone != -1 ? tombstone : index;
+            if (kind == TOMBSTONE) {
+                if (tombstone == -1) tombstone = index;
+            } else if (kind == OBJECT && Interpreter.isEqual(objectKeys[index], key)) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    // Rehashes every live entry into fresh arrays, dropping tombstones along the way.
+    private void adjustCapacity(int capacity) {
+        byte[] oldKinds = kinds;
+        double[] oldNumberKeys = numberKeys;
+        Object[] oldObjectKeys = objectKeys;
+        Object[] oldValues = values;
+
+        kinds = new byte[capacity];
+        numberKeys = new double[capacity];
+        objectKeys = oldObjectKeys == null ? null : new Object[capacity];
+        values = new Object[capacity];
+
+        count = 0;
+        for (int i = 0; i < oldKinds.length; i++) {
+            int index;
+            if (oldKinds[i] == NUMBER) {
+                index = findNumber(kinds, numberKeys, oldNumberKeys[i]);
+                numberKeys[index] = oldNumberKeys[i];
+            } else if (oldKinds[i] == OBJECT) {
+                index = findObject(kinds, objectKeys, oldObjectKeys[i]);
+                objectKeys[index] = oldObjectKeys[i];
+            } else {
+                continue;
+            }
+
+            kinds[index] = oldKinds[i];
+            values[index] = oldValues[i];
+            count++;
+        }
+    }
+
+    // MurmurHash3's finalizer: mixes every input bit into the low bits used as the index, so
+    // whole numbers, whose low mantissa bits are all zero, don't pile up in one probe run.
+    private static int mix(long bits) {
+        bits ^= bits >>> 33;
+        bits *= 0xff51afd7ed558ccdL;
+        bits ^= bits >>> 33;
+        bits *= 0xc4ceb9fe1a85ec53L;
+        bits ^= bits >>> 33;
+        return (int)bits;
+    }
+
+    @Override
+    Object get(Token name) {
+        switch (name.lexeme) {
+            case "get":
+                return new NativeFunction(1, (interpreter, arguments) -> get(arguments.get(0)));
+            case "put":
+                return new NativeFunction(2, (interpreter, arguments) -> {
+                    put(arguments.get(0), arguments.get(1));
+                    return arguments.get(1);
+                });
+            case "has":
+                return new NativeFunction(1, (interpreter, arguments) -> containsKey(arguments.get(0)));
+            case "remove":
+                return new NativeFunction(1, (interpreter, arguments) -> remove(arguments.get(0)));
+            case "size":
+                return new NativeFunction(0, (interpreter, arguments) -> (double)size);
+            case "keys":
+                return new NativeFunction(0, (interpreter, arguments) -> keys());
+            case "values":
+                return new NativeFunction(0, (interpreter, arguments) -> values());
+            case "forEach":
+                return new NativeFunction(1, (interpreter, arguments) -> {
+                    Object function = arguments.get(0);
+                    if (!(function instanceof LoxCallable) || ((LoxCallable)function).arity() != 2) {
+                        throw new RuntimeError(null, "Expected a function taking 2 arguments.");
+                    }
+                    forEach(interpreter, (LoxCallable)function);
+                    return null;
+                });
+        }
+
+        throw undefinedProperty(name);
+    }
+
+    // Calls function(key, value) for each entry, over a snapshot so the callback may modify the map.
+    private void forEach(Interpreter interpreter, LoxCallable function) {
+        LoxList keys = keys();
+        LoxList values = values();
+        for (int i = 0; i < keys.size(); i++) {
+            function.call2(interpreter, keys.get(i), values.get(i));
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (!Interpreter.beginStringify(this)) return "{...}";
+        try {
+            StringBuilder builder = new StringBuilder("{");
+            boolean first = true;
+            for (int i = 0; i < kinds.length; i++) {
+                if (kinds[i] < NUMBER) continue;
+                if (!first) builder.append(", ");
+                first = false;
+
+                Object key = kinds[i] == NUMBER ? (Object)numberKeys[i] : objectKeys[i];
+                builder.append(Interpreter.stringify(key)).append(": ").append(Interpreter.stringify(values[i]));
+            }
+            return builder.append("}").toString();
+        } finally {
+            Interpreter.endStringify(this);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.nchhillar.jlox;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+// parallelMap, parallelFilter, parallelReduce and parallelForEach over a list.
+// Work is split into chunks on the common ForkJoinPool and every chunk calls the Lox function
+// through its own fork() of the interpreter, so no current-environment state crosses threads.
+// Split points depend only on the list length, so for an associative function parallelReduce
+// combines elements in the same shape on every run, whatever order the chunks finish in.
+final class LoxParallel {
+    // Lists this short run sequentially on the caller's interpreter; longer ones split down to it.
+    static final int CHUNK_SIZE = 128;
+
+    private LoxParallel() {}
+
+    static void define(Environment globals) {
+        globals.define("parallelMap", new NativeFunction(2, (interpreter, arguments) -> {
+            LoxList list = checkList(arguments.get(0));
+            LoxCallable function = checkFunction(arguments.get(1), 1);
+            Object[] results = new Object[list.size()];
+            run(interpreter, new Apply(interpreter, list, function, results, 0, list.size()));
+            return new LoxList(results, results.length);
+        }));
+
+        globals.define("parallelFilter", new NativeFunction(2, (interpreter, arguments) -> {
+            LoxList list = checkList(arguments.get(0));
+            LoxCallable function = checkFunction(arguments.get(1), 1);
+            Object[] results = new Object[list.size()];
+            run(interpreter, new Apply(interpreter, list, function, results, 0, list.size()));
+
+            // Compact sequentially so the kept elements stay in their original order.
+            LoxList kept = new LoxList();
+            for (int i = 0; i < results.length; i++) {
+                if (Interpreter.isTruthy(results[i])) kept.add(list.get(i));
+            }
+            return kept;
+        }));
+
+        globals.define("parallelForEach", new NativeFunction(2, (interpreter, arguments) -> {
+            LoxList list = checkList(arguments.get(0));
+            LoxCallable function = checkFunction(arguments.get(1), 1);
+            run(interpreter, new Apply(interpreter, list, function, null, 0, list.size()));
+            return null;
+        }));
+
+        // parallelReduce(list, fn, initial) == fn(initial, fold of the list); initial alone if empty.
+        globals.define("parallelReduce", new NativeFunction(3, (interpreter, arguments) -> {
+            LoxList list = checkList(arguments.get(0));
+            LoxCallable function = checkFunction(arguments.get(1), 2);
+            Object initial = arguments.get(2);
+            if (list.size() == 0) return initial;
+
+            Fold task = new Fold(interpreter, list, function, 0, list.size());
+            Object folded = isSequential(list.size()) ? task.compute() : ForkJoinPool.commonPool().invoke(task);
+            return function.call2(interpreter, initial, folded);
+        }));
+    }
+
+    private static boolean isSequential(int size) {
+        return size <= CHUNK_SIZE || ForkJoinPool.getCommonPoolParallelism() < 2;
+    }
+
+    private static void run(Interpreter interpreter, Apply task) {
+        if (isSequential(task.hi - task.lo)) {
+            task.compute();
+        } else {
+            ForkJoinPool.commonPool().invoke(task);
+        }
+    }
+
+    // Chunks that don't run on the caller's thread get their own interpreter context.
+    private static Interpreter contextFor(Interpreter interpreter, int lo, int hi, int size) {
+        return (hi - lo == size) ? interpreter : interpreter.fork();
+    }
+
+    private static LoxList checkList(Object value) {
+        if (value instanceof LoxList) return (LoxList)value;
+        throw new RuntimeError(null, "Expected a list.");
+    }
+
+    private static LoxCallable checkFunction(Object value, int arity) {
+        if (value instanceof LoxCallable && ((LoxCallable)value).arity() == arity) {
+            return (LoxCallable)value;
+        }
+        throw new RuntimeError(null, "Expected a function taking " + arity + " argument" +
+            (arity == 1 ? "" : "s") + ".");
+    }
+
+    // Applies the function to every element, storing the results if there is somewhere to put them.
+    private static final class Apply extends RecursiveAction {
+        private final Interpreter interpreter;
+        private final LoxList list;
+        private final LoxCallable function;
+        private final Object[] results;
+        final int lo;
+        final int hi;
+
+        Apply(Interpreter interpreter, LoxList list, LoxCallable function, Object[] results, int lo, int hi) {
+            this.interpreter = interpreter;
+            this.list = list;
+            this.function = function;
+            this.results = results;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > CHUNK_SIZE && getPool() != null) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new Apply(interpreter, list, function, results, lo, mid),
+                          new Apply(interpreter, list, function, results, mid, hi));
+                return;
+            }
+
+            Interpreter context = contextFor(interpreter, lo, hi, list.size());
+            for (int i = lo; i < hi; i++) {
+                Object result = function.call1(context, list.get(i));
+                if (results != null) results[i] = result;
+            }
+        }
+    }
+
+    // Folds [lo, hi) left to right within a chunk and combines chunks pairwise.
+    private static final class Fold extends RecursiveTask<Object> {
+        private final Interpreter interpreter;
+        private final LoxList list;
+        private final LoxCallable function;
+        private final int lo;
+        private final int hi;
+
+        Fold(Interpreter interpreter, LoxList list, LoxCallable function, int lo, int hi) {
+            this.interpreter = interpreter;
+            this.list = list;
+            this.function = function;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected Object compute() {
+            if (hi - lo > CHUNK_SIZE && getPool() != null) {
+                int mid = (lo + hi) >>> 1;
+                Fold left = new Fold(interpreter, list, function, lo, mid);
+                Fold right = new Fold(interpreter, list, function, mid, hi);
+                right.fork();
+                Object leftResult = left.compute();
+                Object rightResult = right.join();
+                return function.call2(interpreter.fork(), leftResult, rightResult);
+            }
+
+            Interpreter context = contextFor(interpreter, lo, hi, list.size());
+            Object accumulator = list.get(lo);
+            for (int i = lo + 1; i < hi; i++) {
+                accumulator = function.call2(context, accumulator, list.get(i));
+            }
+            return accumulator;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.nchhillar.jlox;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+// Join handle for a function started with spawn(). Each task runs on its own virtual thread
+// with a forked Interpreter, so the only state it shares with its parent is globals and output.
+class LoxTask extends NativeInstance {
+    private final CompletableFuture<Object> result = new CompletableFuture<>();
+
+    LoxTask(Interpreter interpreter, LoxCallable function) {
+        Interpreter context = interpreter.fork();
+        Thread.ofVirtual().name("lox-task").start(() -> {
+            try {
+                result.complete(function.call0(context));
+            } catch (Throwable error) {
+                result.completeExceptionally(error);
+            }
+        });
+    }
+
+    // Waits for the task and returns its value, rethrowing any runtime error it died with.
+    Object join() {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeError(null, "Interrupted while joining task.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeError) throw (RuntimeError)e.getCause();
+            throw new RuntimeError(null, "Task failed: " + e.getCause());
+        }
+    }
+
+    @Override
+    Object get(Token name) {
+        if (name.lexeme.equals("join")) {
+            return new NativeFunction(0, (interpreter, arguments) -> join());
+        }
+
+        throw undefinedProperty(name);
+    }
+
+    @Override
+    public String toString() {
+        return "<task>";
+    }
+}
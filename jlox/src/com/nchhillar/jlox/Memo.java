@@ -0,0 +1,76 @@
+package com.nchhillar.jlox;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// --memoize: the results of one pure function (see Purity), by its arguments, in a bounded
+// cache that evicts the least recently used. Only calls whose arguments are all numbers,
+// strings, booleans or nil are cached: those compare by value, so equal arguments are the same
+// arguments. A call that fails with a runtime error isn't cached, and fails again next time.
+// Each LoxFunction has its own, shared by every thread that calls it.
+final class Memo {
+    static final int DEFAULT_CAPACITY = 10_000;
+    // What lookUp() returns when the cache has no result for the arguments; results can be nil.
+    static final Object MISSING = new Object();
+
+    private static final Object NO_ARGUMENTS = new Object();
+    private static final Object NIL = new Object();   // stands in for a single nil argument
+
+    private final String name;
+    private final Map<Object, Object> results;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long uncached = 0;
+
+    Memo(String name, int capacity) {
+        this.name = name;
+        this.results = new LinkedHashMap<Object, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+                if (size() <= capacity) return false;
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    // The key for the arguments at slots[first..first + count), or null if they can't be cached.
+    // One argument is its own key; more are a list, which compares element by element.
+    Object key(Object[] slots, int first, int count) {
+        if (count == 0) return NO_ARGUMENTS;
+        for (int i = first; i < first + count; i++) {
+            Object value = slots[i];
+            if (value != null && !(value instanceof Double) && !(value instanceof String) && !(value instanceof Boolean)) {
+                synchronized (this) {
+                    uncached++;
+                }
+                return null;
+            }
+        }
+        if (count == 1) return slots[first] == null ? NIL : slots[first];
+        return Arrays.asList(Arrays.copyOfRange(slots, first, first + count));
+    }
+
+    synchronized Object lookUp(Object key) {
+        if (!results.containsKey(key)) {
+            misses++;
+            return MISSING;
+        }
+        hits++;
+        return results.get(key);
+    }
+
+    synchronized void store(Object key, Object result) {
+        results.put(key, result);
+    }
+
+    // One line of the statistics --memoize prints when the script ends; none if it was never called.
+    synchronized void report(PrintStream err) {
+        if (hits + misses + uncached == 0) return;
+        err.printf("memoize: %s: %d hits, %d misses, %d evicted, %d uncached, %d cached%n",
+            name, hits, misses, evictions, uncached, results.size());
+    }
+}
@@ -0,0 +1,34 @@
+package com.nchhillar.jlox;
+
+import java.util.List;
+
+// A callable implemented in Java: global natives like clock() and the methods of built-in objects.
+// Natives that fail throw a RuntimeError without a token; the call site fills in its own.
+class NativeFunction implements LoxCallable {
+    interface Body {
+        Object call(Interpreter interpreter, List<Object> arguments);
+    }
+
+    private final int arity;
+    private final Body body;
+
+    NativeFunction(int arity, Body body) {
+        this.arity = arity;
+        this.body = body;
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        return body.call(interpreter, arguments);
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
@@ -0,0 +1,11 @@
+package com.nchhillar.jlox;
+
+// Base for built-in objects (channels, tasks, ...) whose methods are written in Java.
+// Property access on them goes through get(), just like it does for a LoxInstance.
+abstract class NativeInstance {
+    abstract Object get(Token name);
+
+    RuntimeError undefinedProperty(Token name) {
+        return new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+    }
+}
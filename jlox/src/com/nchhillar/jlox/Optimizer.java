@@ -0,0 +1,723 @@
+package com.nchhillar.jlox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Takes repeated work out of a resolved, type-annotated script, one frame (a function body, or
+// the top-level code) at a time, by keeping values in new slots of the frame, temporaries:
+//   - loop-invariant code motion: an expression whose value can't change while a while loop
+//     runs is evaluated once, just before the loop, instead of on every iteration;
+//   - common subexpression elimination: an expression evaluated again, when nothing in between
+//     can have changed its value, reads the value stored by the first evaluation instead.
+// Only expressions with no side effects that can't fail are moved or reused: arithmetic
+// TypeInference proved numeric, over locals and number literals, and reads of a field of a
+// local or this that TypeInference proved an instance, where no class of the script has a method
+// of that name (that would be a new bound method each time). A field read that isn't reached
+// yet can fail, so one is only hoisted from the part of a loop condition evaluated first, where
+// it would have run at that point anyway.
+// What can change a value: assigning or declaring a local in its slot; setting a field of that
+// name, on any object, since any two may be the same one; and any call, since the function or
+// method can set fields of anything it reaches. Locals a closure captures are left alone, as a
+// call can assign those too. Writes from another thread are only seen at calls, as with Java's
+// plain fields: a loop waiting for a field to change has to call something, a channel say.
+// A class in another REPL line or hot-reloaded piece can add a method a field read here turns
+// out to find; then two reads of it share a bound method, which is otherwise no different.
+// Parsed nodes are immutable, so the tree is rebuilt where it changes, annotations and all.
+final class Optimizer {
+    // A temporary's name; the scanner never makes an identifier of it.
+    private static final String TEMPORARY = "$temp";
+
+    private final Set<String> methods;
+    private final List<Stmt.Function> functions = new ArrayList<>();   // frames still to do
+    private int locals;   // the slots of the frame being optimized, temporaries and all
+
+    // What the next rewrite does: replaces these expressions with a read of the temporary in
+    // the slot, evaluates these and stores the value in the slot as well, and evaluates these
+    // into temporaries just before these loops.
+    private final Map<Expr, Integer> replaced = new IdentityHashMap<>();
+    private final Map<Expr, Integer> stored = new IdentityHashMap<>();
+    private final Map<Stmt.While, Map<Integer, Expr>> preheaders = new IdentityHashMap<>();
+
+    private Optimizer(Set<String> methods) {
+        this.methods = methods;
+    }
+
+    // Optimizes the script in place, and returns the slots the top-level frame needs now.
+    // Stmt.Function.locals grows the same way.
+    static int optimize(List<Stmt> statements, int locals) {
+        Set<String> methods = new HashSet<>();
+        methodNames(statements, methods);
+        return new Optimizer(methods).frame(statements, locals, true);
+    }
+
+    private static void methodNames(List<Stmt> statements, Set<String> names) {
+        for (Stmt statement : statements) {
+            methodNames(statement, names);
+        }
+    }
+
+    private static void methodNames(Stmt stmt, Set<String> names) {
+        if (stmt instanceof Stmt.Block) {
+            methodNames(((Stmt.Block)stmt).statements, names);
+        } else if (stmt instanceof Stmt.Class) {
+            for (Stmt.Function method : ((Stmt.Class)stmt).methods) {
+                names.add(method.name.lexeme);
+                methodNames(method.body, names);
+            }
+        } else if (stmt instanceof Stmt.Function) {
+            methodNames(((Stmt.Function)stmt).body, names);
+        } else if (stmt instanceof Stmt.If) {
+            methodNames(((Stmt.If)stmt).thenBranch, names);
+            if (((Stmt.If)stmt).elseBranch != null) methodNames(((Stmt.If)stmt).elseBranch, names);
+        } else if (stmt instanceof Stmt.While) {
+            methodNames(((Stmt.While)stmt).body, names);
+        }
+    }
+
+    // Loops first, so the common subexpressions are found in the code that is left in them.
+    // Then the functions declared in the frame, each a frame of its own.
+    private int frame(List<Stmt> statements, int size, boolean topLevel) {
+        locals = size;
+        for (Stmt statement : statements) {
+            hoistLoops(statement);
+        }
+        rewrite(statements);
+
+        Map<String, Available> available = new HashMap<>();
+        for (Stmt statement : statements) {
+            // JavaTranspiler makes each top-level statement a method of its own.
+            if (topLevel) available.clear();
+            share(statement, available);
+        }
+        rewrite(statements);
+
+        int frameSize = locals;
+        List<Stmt.Function> nested = new ArrayList<>(functions);
+        functions.clear();
+        for (Stmt.Function function : nested) {
+            function.locals = frame(function.body, function.locals, false);
+        }
+        return frameSize;
+    }
+
+    // What some code can change: the slots it assigns or declares, the names of the fields it
+    // sets, and whether it calls anything. For an expression to move or reuse, what it reads.
+    private static final class Effects {
+        final Set<Integer> slots = new HashSet<>();
+        final Set<String> fields = new HashSet<>();
+        boolean calls = false;
+
+        static Effects of(Stmt stmt) {
+            Effects effects = new Effects();
+            effects.add(stmt);
+            return effects;
+        }
+
+        static Effects of(Expr expr) {
+            Effects effects = new Effects();
+            effects.add(expr);
+            return effects;
+        }
+
+        // Whether these writes can change a value that reads.
+        boolean change(Effects reads) {
+            if (!Collections.disjoint(slots, reads.slots)) return true;
+            if (reads.fields.isEmpty()) return false;
+            return calls || !Collections.disjoint(fields, reads.fields);
+        }
+
+        // Declaring a function or class runs none of its code.
+        void add(Stmt stmt) {
+            if (stmt instanceof Stmt.Block) {
+                for (Stmt statement : ((Stmt.Block)stmt).statements) {
+                    add(statement);
+                }
+            } else if (stmt instanceof Stmt.Class) {
+                Stmt.Class klass = (Stmt.Class)stmt;
+                if (klass.slot != -1) slots.add(klass.slot);
+                if (klass.superSlot != -1) slots.add(klass.superSlot);
+            } else if (stmt instanceof Stmt.Expression) {
+                add(((Stmt.Expression)stmt).expression);
+            } else if (stmt instanceof Stmt.Function) {
+                if (((Stmt.Function)stmt).slot != -1) slots.add(((Stmt.Function)stmt).slot);
+            } else if (stmt instanceof Stmt.If) {
+                Stmt.If conditional = (Stmt.If)stmt;
+                add(conditional.condition);
+                add(conditional.thenBranch);
+                if (conditional.elseBranch != null) add(conditional.elseBranch);
+            } else if (stmt instanceof Stmt.Print) {
+                add(((Stmt.Print)stmt).expression);
+            } else if (stmt instanceof Stmt.Return) {
+                add(((Stmt.Return)stmt).value);
+            } else if (stmt instanceof Stmt.Var) {
+                add(((Stmt.Var)stmt).initializer);
+                if (((Stmt.Var)stmt).slot != -1) slots.add(((Stmt.Var)stmt).slot);
+            } else if (stmt instanceof Stmt.While) {
+                add(((Stmt.While)stmt).condition);
+                add(((Stmt.While)stmt).body);
+            }
+        }
+
+        void add(Expr expr) {
+            if (expr instanceof Expr.Assign) {
+                add(((Expr.Assign)expr).value);
+                if (((Expr.Assign)expr).slot != -1) slots.add(((Expr.Assign)expr).slot);
+            } else if (expr instanceof Expr.Binary) {
+                add(((Expr.Binary)expr).left);
+                add(((Expr.Binary)expr).right);
+            } else if (expr instanceof Expr.Call) {
+                calls = true;
+                add(((Expr.Call)expr).callee);
+                for (Expr argument : ((Expr.Call)expr).arguments) {
+                    add(argument);
+                }
+            } else if (expr instanceof Expr.Get) {
+                add(((Expr.Get)expr).object);
+            } else if (expr instanceof Expr.Grouping) {
+                add(((Expr.Grouping)expr).expression);
+            } else if (expr instanceof Expr.Logical) {
+                add(((Expr.Logical)expr).left);
+                add(((Expr.Logical)expr).right);
+            } else if (expr instanceof Expr.Set) {
+                add(((Expr.Set)expr).object);
+                add(((Expr.Set)expr).value);
+                fields.add(((Expr.Set)expr).name.lexeme);
+            } else if (expr instanceof Expr.Unary) {
+                add(((Expr.Unary)expr).right);
+            }
+        }
+    }
+
+    // A string two expressions share exactly when they compute the same value from the same
+    // slots and fields, or null if the expression isn't one to move or reuse. The slots and field
+    // names it reads are added to reads. Field reads only if fields is set.
+    private String key(Expr expr, Effects reads, boolean fields) {
+        StringBuilder key = new StringBuilder();
+        return describe(expr, key, reads, fields) ? key.toString() : null;
+    }
+
+    // Built up in a StringBuilder: string concatenation's first use costs more, at startup,
+    // than optimizing a whole script.
+    private boolean describe(Expr expr, StringBuilder key, Effects reads, boolean fields) {
+        Integer temporary = replaced.get(expr);
+        if (temporary != null) {
+            key.append('t').append(temporary.intValue());
+            return true;
+        }
+
+        if (expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal)expr).value;
+            if (!(value instanceof Double)) return false;
+            key.append('#').append(((Double)value).doubleValue());
+            return true;
+        }
+        if (expr instanceof Expr.Grouping) return describe(((Expr.Grouping)expr).expression, key, reads, fields);
+        if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable)expr;
+            return variable.slot != -1 && !variable.boxed && slot(variable.slot, key, reads);
+        }
+        if (expr instanceof Expr.This) {
+            Expr.This receiver = (Expr.This)expr;
+            return receiver.slot != -1 && !receiver.boxed && slot(receiver.slot, key, reads);
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if (!unary.numeric || unary.operator.type != TokenType.MINUS) return false;
+            key.append("(-");
+            if (!describe(unary.right, key, reads, fields)) return false;
+            key.append(')');
+            return true;
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            if (!binary.numeric) return false;
+            key.append('(').append(binary.operator.lexeme).append(' ');
+            if (!describe(binary.left, key, reads, fields)) return false;
+            key.append(' ');
+            if (!describe(binary.right, key, reads, fields)) return false;
+            key.append(')');
+            return true;
+        }
+        if (expr instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr;
+            if (!fields || !get.onInstance || methods.contains(get.name.lexeme)) return false;
+            if (!describe(get.object, key, reads, true)) return false;
+            key.append('.').append(get.name.lexeme);
+            reads.fields.add(get.name.lexeme);
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean slot(int slot, StringBuilder key, Effects reads) {
+        key.append('v').append(slot);
+        reads.slots.add(slot);
+        return true;
+    }
+
+    // Worth a temporary: something is computed. Not a literal or a local, and not an
+    // expression already replaced.
+    private boolean isOperation(Expr expr) {
+        if (replaced.containsKey(expr)) return false;
+        if (expr instanceof Expr.Grouping) return isOperation(((Expr.Grouping)expr).expression);
+        return expr instanceof Expr.Binary || expr instanceof Expr.Unary || expr instanceof Expr.Get;
+    }
+
+    // Loop-invariant code motion.
+
+    // What is hoisted out of one loop: a temporary for each distinct value, and the first
+    // expression found that computes it.
+    private static final class Loop {
+        final Effects writes;
+        final Map<String, Integer> temporaries = new HashMap<>();
+        final Map<Integer, Expr> values = new LinkedHashMap<>();
+
+        Loop(Stmt.While loop) {
+            writes = Effects.of(loop);
+        }
+    }
+
+    // The loops of the frame, outermost first, so an inner loop finds what was hoisted out of
+    // the outer one already replaced.
+    private void hoistLoops(Stmt stmt) {
+        if (stmt instanceof Stmt.Block) {
+            for (Stmt statement : ((Stmt.Block)stmt).statements) {
+                hoistLoops(statement);
+            }
+        } else if (stmt instanceof Stmt.Class) {
+            functions.addAll(((Stmt.Class)stmt).methods);
+        } else if (stmt instanceof Stmt.Function) {
+            functions.add((Stmt.Function)stmt);
+        } else if (stmt instanceof Stmt.If) {
+            hoistLoops(((Stmt.If)stmt).thenBranch);
+            if (((Stmt.If)stmt).elseBranch != null) hoistLoops(((Stmt.If)stmt).elseBranch);
+        } else if (stmt instanceof Stmt.While) {
+            Stmt.While loop = (Stmt.While)stmt;
+            Loop hoisted = new Loop(loop);
+            hoistFromCondition(loop.condition, hoisted, true);
+            hoistFrom(loop.body, hoisted);
+            if (!hoisted.values.isEmpty()) preheaders.put(loop, hoisted.values);
+            hoistLoops(loop.body);
+        }
+    }
+
+    // The key of an expression the loop doesn't change, or null.
+    private String invariant(Expr expr, Loop loop, boolean fields) {
+        Effects reads = new Effects();
+        String key = key(expr, reads, fields);
+        return key == null || loop.writes.change(reads) ? null : key;
+    }
+
+    private void hoist(Expr expr, String key, Loop loop) {
+        Integer temporary = loop.temporaries.get(key);
+        if (temporary == null) {
+            temporary = locals++;
+            loop.temporaries.put(key, temporary);
+            loop.values.put(temporary, expr);
+        }
+        replaced.put(expr, temporary);
+    }
+
+    // Field reads too, while first: everything evaluated before the expression can neither fail
+    // nor change anything. Returns whether the same is true of the expression, so first holds
+    // for what comes after it.
+    private boolean hoistFromCondition(Expr expr, Loop loop, boolean first) {
+        String key = invariant(expr, loop, first);
+        if (key != null) {
+            if (isOperation(expr)) hoist(expr, key, loop);
+            return true;
+        }
+
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            boolean left = hoistFromCondition(binary.left, loop, first);
+            boolean right = hoistFromCondition(binary.right, loop, first && left);
+            return left && right && binary.numeric;
+        }
+        if (expr instanceof Expr.Grouping) return hoistFromCondition(((Expr.Grouping)expr).expression, loop, first);
+        if (expr instanceof Expr.Logical) {
+            // The right operand isn't always evaluated.
+            boolean left = hoistFromCondition(((Expr.Logical)expr).left, loop, first);
+            return hoistFromCondition(((Expr.Logical)expr).right, loop, false) && left;
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            boolean right = hoistFromCondition(unary.right, loop, first);
+            return right && (unary.numeric || unary.operator.type == TokenType.BANG);
+        }
+        if (expr instanceof Expr.Variable) {
+            // A global can be undefined.
+            return ((Expr.Variable)expr).slot != -1 || ((Expr.Variable)expr).upvalue != -1;
+        }
+        if (expr instanceof Expr.Literal || expr instanceof Expr.This) return true;
+
+        hoistFrom(expr, loop);
+        return false;
+    }
+
+    // Anywhere in the loop, arithmetic: it can't fail, so evaluating it early changes nothing.
+    private void hoistFrom(Expr expr, Loop loop) {
+        if (expr == null) return;
+        String key = invariant(expr, loop, false);
+        if (key != null) {
+            if (isOperation(expr)) hoist(expr, key, loop);
+            return;
+        }
+
+        if (expr instanceof Expr.Assign) {
+            hoistFrom(((Expr.Assign)expr).value, loop);
+        } else if (expr instanceof Expr.Binary) {
+            hoistFrom(((Expr.Binary)expr).left, loop);
+            hoistFrom(((Expr.Binary)expr).right, loop);
+        } else if (expr instanceof Expr.Call) {
+            hoistFrom(((Expr.Call)expr).callee, loop);
+            for (Expr argument : ((Expr.Call)expr).arguments) {
+                hoistFrom(argument, loop);
+            }
+        } else if (expr instanceof Expr.Get) {
+            hoistFrom(((Expr.Get)expr).object, loop);
+        } else if (expr instanceof Expr.Grouping) {
+            hoistFrom(((Expr.Grouping)expr).expression, loop);
+        } else if (expr instanceof Expr.Logical) {
+            hoistFrom(((Expr.Logical)expr).left, loop);
+            hoistFrom(((Expr.Logical)expr).right, loop);
+        } else if (expr instanceof Expr.Set) {
+            hoistFrom(((Expr.Set)expr).object, loop);
+            hoistFrom(((Expr.Set)expr).value, loop);
+        } else if (expr instanceof Expr.Unary) {
+            hoistFrom(((Expr.Unary)expr).right, loop);
+        }
+    }
+
+    // Inner loops included. Not function bodies: they don't run as part of the loop.
+    private void hoistFrom(Stmt stmt, Loop loop) {
+        if (stmt instanceof Stmt.Block) {
+            for (Stmt statement : ((Stmt.Block)stmt).statements) {
+                hoistFrom(statement, loop);
+            }
+        } else if (stmt instanceof Stmt.Expression) {
+            hoistFrom(((Stmt.Expression)stmt).expression, loop);
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If conditional = (Stmt.If)stmt;
+            hoistFrom(conditional.condition, loop);
+            hoistFrom(conditional.thenBranch, loop);
+            if (conditional.elseBranch != null) hoistFrom(conditional.elseBranch, loop);
+        } else if (stmt instanceof Stmt.Print) {
+            hoistFrom(((Stmt.Print)stmt).expression, loop);
+        } else if (stmt instanceof Stmt.Return) {
+            hoistFrom(((Stmt.Return)stmt).value, loop);
+        } else if (stmt instanceof Stmt.Var) {
+            hoistFrom(((Stmt.Var)stmt).initializer, loop);
+        } else if (stmt instanceof Stmt.While) {
+            hoistFrom(((Stmt.While)stmt).condition, loop);
+            hoistFrom(((Stmt.While)stmt).body, loop);
+        }
+    }
+
+    // Common subexpression elimination.
+
+    // A value a temporary can hold: the expression that computes it first, and what it reads.
+    private static final class Available {
+        final Expr first;
+        final Effects reads;
+
+        Available(Expr first, Effects reads) {
+            this.first = first;
+            this.reads = reads;
+        }
+    }
+
+    private static void forget(Map<String, Available> available, Effects writes) {
+        Iterator<Available> values = available.values().iterator();
+        while (values.hasNext()) {
+            if (writes.change(values.next().reads)) values.remove();
+        }
+    }
+
+    // Walks code in the order it runs, keeping the values computed so far that nothing since
+    // has changed. What a branch or a loop computes isn't kept after it, as it may not have run;
+    // what it changes is forgotten. A loop's changes are forgotten before it too, as the
+    // loop comes round again after them.
+    private void share(Stmt stmt, Map<String, Available> available) {
+        if (stmt instanceof Stmt.Block) {
+            for (Stmt statement : ((Stmt.Block)stmt).statements) {
+                share(statement, available);
+            }
+        } else if (stmt instanceof Stmt.Expression) {
+            share(((Stmt.Expression)stmt).expression, available);
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If conditional = (Stmt.If)stmt;
+            share(conditional.condition, available);
+            share(conditional.thenBranch, new HashMap<>(available));
+            forget(available, Effects.of(conditional.thenBranch));
+            if (conditional.elseBranch != null) {
+                share(conditional.elseBranch, new HashMap<>(available));
+                forget(available, Effects.of(conditional.elseBranch));
+            }
+        } else if (stmt instanceof Stmt.Print) {
+            share(((Stmt.Print)stmt).expression, available);
+        } else if (stmt instanceof Stmt.Return) {
+            share(((Stmt.Return)stmt).value, available);
+        } else if (stmt instanceof Stmt.Var) {
+            share(((Stmt.Var)stmt).initializer, available);
+            forget(available, Effects.of(stmt));
+        } else if (stmt instanceof Stmt.While) {
+            Stmt.While loop = (Stmt.While)stmt;
+            forget(available, Effects.of(loop));
+            Map<String, Available> inLoop = new HashMap<>(available);
+            share(loop.condition, inLoop);
+            share(loop.body, inLoop);
+        } else {
+            forget(available, Effects.of(stmt));   // a function or class declaration
+        }
+    }
+
+    private void share(Expr expr, Map<String, Available> available) {
+        if (expr == null) return;
+        if (isOperation(expr)) {
+            Effects reads = new Effects();
+            String key = key(expr, reads, true);
+            if (key != null) {
+                Available value = available.get(key);
+                if (value != null) {
+                    Integer temporary = stored.get(value.first);
+                    if (temporary == null) {
+                        temporary = locals++;
+                        stored.put(value.first, temporary);
+                    }
+                    replaced.put(expr, temporary);
+                    return;
+                }
+                // Its operands can have values of their own to reuse.
+                shareOperands(expr, available);
+                available.put(key, new Available(expr, reads));
+                return;
+            }
+        }
+        shareOperands(expr, available);
+    }
+
+    private void shareOperands(Expr expr, Map<String, Available> available) {
+        if (expr instanceof Expr.Assign) {
+            share(((Expr.Assign)expr).value, available);
+            forget(available, Effects.of(expr));
+        } else if (expr instanceof Expr.Binary) {
+            share(((Expr.Binary)expr).left, available);
+            share(((Expr.Binary)expr).right, available);
+        } else if (expr instanceof Expr.Call) {
+            Expr.Call call = (Expr.Call)expr;
+            // A method is looked up and called at once; a bound method is only made if needed.
+            if (call.callee instanceof Expr.Get) {
+                share(((Expr.Get)call.callee).object, available);
+            } else {
+                share(call.callee, available);
+            }
+            for (Expr argument : call.arguments) {
+                share(argument, available);
+            }
+            forget(available, Effects.of(expr));
+        } else if (expr instanceof Expr.Get) {
+            share(((Expr.Get)expr).object, available);
+        } else if (expr instanceof Expr.Grouping) {
+            share(((Expr.Grouping)expr).expression, available);
+        } else if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical)expr;
+            share(logical.left, available);
+            share(logical.right, new HashMap<>(available));
+            forget(available, Effects.of(logical.right));
+        } else if (expr instanceof Expr.Set) {
+            share(((Expr.Set)expr).object, available);
+            share(((Expr.Set)expr).value, available);
+            forget(available, Effects.of(expr));
+        } else if (expr instanceof Expr.Unary) {
+            share(((Expr.Unary)expr).right, available);
+        }
+    }
+
+    // Rewriting.
+
+    // Lists are changed in place: a function's body is the same list, with its annotations.
+    private void rewrite(List<Stmt> statements) {
+        rewriteAll(statements);
+        replaced.clear();
+        stored.clear();
+        preheaders.clear();
+    }
+
+    private void rewriteAll(List<Stmt> statements) {
+        for (int i = 0; i < statements.size(); i++) {
+            statements.set(i, rewrite(statements.get(i)));
+        }
+    }
+
+    // Function bodies are frames of their own, rewritten when their turn comes.
+    private Stmt rewrite(Stmt stmt) {
+        if (stmt instanceof Stmt.Block) {
+            rewriteAll(((Stmt.Block)stmt).statements);
+            return stmt;
+        }
+        if (stmt instanceof Stmt.Expression) {
+            Expr expression = ((Stmt.Expression)stmt).expression;
+            Expr rewritten = rewrite(expression);
+            return rewritten == expression ? stmt : new Stmt.Expression(rewritten);
+        }
+        if (stmt instanceof Stmt.If) {
+            Stmt.If conditional = (Stmt.If)stmt;
+            Expr condition = rewrite(conditional.condition);
+            Stmt thenBranch = rewrite(conditional.thenBranch);
+            Stmt elseBranch = conditional.elseBranch == null ? null : rewrite(conditional.elseBranch);
+            if (condition == conditional.condition && thenBranch == conditional.thenBranch &&
+                    elseBranch == conditional.elseBranch) {
+                return stmt;
+            }
+            return new Stmt.If(condition, thenBranch, elseBranch);
+        }
+        if (stmt instanceof Stmt.Print) {
+            Expr expression = ((Stmt.Print)stmt).expression;
+            Expr rewritten = rewrite(expression);
+            return rewritten == expression ? stmt : new Stmt.Print(rewritten);
+        }
+        if (stmt instanceof Stmt.Return) {
+            Stmt.Return ret = (Stmt.Return)stmt;
+            Expr value = rewrite(ret.value);
+            return value == ret.value ? stmt : new Stmt.Return(ret.keyword, value);
+        }
+        if (stmt instanceof Stmt.Var) {
+            Stmt.Var var = (Stmt.Var)stmt;
+            Expr initializer = rewrite(var.initializer);
+            if (initializer == var.initializer) return stmt;
+            Stmt.Var rewritten = new Stmt.Var(var.name, initializer);
+            rewritten.slot = var.slot;
+            rewritten.global = var.global;
+            rewritten.captured = var.captured;
+            return rewritten;
+        }
+        if (stmt instanceof Stmt.While) {
+            Stmt.While loop = (Stmt.While)stmt;
+            Expr condition = rewrite(loop.condition);
+            Stmt body = rewrite(loop.body);
+            Stmt rewritten = condition == loop.condition && body == loop.body ? loop : new Stmt.While(condition, body);
+
+            Map<Integer, Expr> hoisted = preheaders.get(loop);
+            if (hoisted == null) return rewritten;
+            // Slots are per frame, not per block, so a block doesn't change where they are.
+            List<Stmt> statements = new ArrayList<>();
+            for (Map.Entry<Integer, Expr> value : hoisted.entrySet()) {
+                statements.add(new Stmt.Expression(store(value.getKey(), rebuild(value.getValue()))));
+            }
+            statements.add(rewritten);
+            return new Stmt.Block(statements);
+        }
+        return stmt;
+    }
+
+    private Expr rewrite(Expr expr) {
+        if (expr == null) return null;
+        Integer temporary = replaced.get(expr);
+        if (temporary != null) return load(temporary);
+        Expr rebuilt = rebuild(expr);
+        temporary = stored.get(expr);
+        return temporary == null ? rebuilt : store(temporary, rebuilt);
+    }
+
+    // The expression with its operands rewritten; the same node if none of them changed.
+    private Expr rebuild(Expr expr) {
+        if (expr instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign)expr;
+            Expr value = rewrite(assign.value);
+            if (value == assign.value) return expr;
+            Expr.Assign rebuilt = new Expr.Assign(assign.name, value);
+            rebuilt.slot = assign.slot;
+            rebuilt.upvalue = assign.upvalue;
+            rebuilt.boxed = assign.boxed;
+            rebuilt.global = assign.global;
+            return rebuilt;
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            Expr left = rewrite(binary.left);
+            Expr right = rewrite(binary.right);
+            if (left == binary.left && right == binary.right) return expr;
+            Expr.Binary rebuilt = new Expr.Binary(left, binary.operator, right);
+            rebuilt.numeric = binary.numeric;
+            return rebuilt;
+        }
+        if (expr instanceof Expr.Call) {
+            Expr.Call call = (Expr.Call)expr;
+            Expr callee = rewrite(call.callee);
+            boolean changed = callee != call.callee;
+            List<Expr> arguments = new ArrayList<>();
+            for (Expr argument : call.arguments) {
+                Expr rewritten = rewrite(argument);
+                changed |= rewritten != argument;
+                arguments.add(rewritten);
+            }
+            if (!changed) return expr;
+            Expr.Call rebuilt = new Expr.Call(callee, call.paren, arguments);
+            rebuilt.direct = call.direct;
+            return rebuilt;
+        }
+        if (expr instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr;
+            Expr object = rewrite(get.object);
+            if (object == get.object) return expr;
+            Expr.Get rebuilt = new Expr.Get(object, get.name);
+            rebuilt.onInstance = get.onInstance;
+            return rebuilt;
+        }
+        if (expr instanceof Expr.Grouping) {
+            Expr.Grouping grouping = (Expr.Grouping)expr;
+            Expr expression = rewrite(grouping.expression);
+            return expression == grouping.expression ? expr : new Expr.Grouping(expression);
+        }
+        if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical)expr;
+            Expr left = rewrite(logical.left);
+            Expr right = rewrite(logical.right);
+            if (left == logical.left && right == logical.right) return expr;
+            return new Expr.Logical(left, logical.operator, right);
+        }
+        if (expr instanceof Expr.Set) {
+            Expr.Set set = (Expr.Set)expr;
+            Expr object = rewrite(set.object);
+            Expr value = rewrite(set.value);
+            if (object == set.object && value == set.value) return expr;
+            Expr.Set rebuilt = new Expr.Set(object, set.name, value);
+            rebuilt.onInstance = set.onInstance;
+            return rebuilt;
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            Expr right = rewrite(unary.right);
+            if (right == unary.right) return expr;
+            Expr.Unary rebuilt = new Expr.Unary(unary.operator, right);
+            rebuilt.numeric = unary.numeric;
+            return rebuilt;
+        }
+        return expr;
+    }
+
+    private static Expr.Variable load(int slot) {
+        Expr.Variable variable = new Expr.Variable(temporary());
+        variable.slot = slot;
+        return variable;
+    }
+
+    private static Expr.Assign store(int slot, Expr value) {
+        Expr.Assign assign = new Expr.Assign(temporary(), value);
+        assign.slot = slot;
+        return assign;
+    }
+
+    private static Token temporary() {
+        return new Token(TokenType.IDENTIFIER, TEMPORARY, null, 0);
+    }
+}
@@ -0,0 +1,226 @@
+package com.nchhillar.jlox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Where 'print' output goes. Lines collect in a byte buffer and reach the stream only when
+//   - the buffer passes flushThreshold bytes,
+//   - flushIntervalMillis (if > 0) has passed: a flusher thread, started by the first print,
+//     writes out whatever is waiting every interval, so a line printed just before a long
+//     computation doesn't sit in the buffer until the next print or the end of the script,
+//   - or flush() is called; the Interpreter does at the end of every interpret().
+// With a background writer, full buffers are handed to a writer thread instead of written inline,
+// at most MAX_PENDING at a time, so a slow stream throttles the script rather than eating memory.
+// Shared by forked interpreters, so every method takes the lock; a ReentrantLock rather than
+// synchronized, which would pin the virtual threads spawned tasks run on.
+final class OutputSink {
+    static final int DEFAULT_THRESHOLD = 64 * 1024;
+    private static final int MAX_PENDING = 4;
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private final OutputStream out;
+    private final int flushThreshold;
+    private final long flushIntervalNanos;
+    private final ExecutorService writer;      // null when writing inline
+    private final Semaphore pending = new Semaphore(MAX_PENDING);
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private byte[] buffer;
+    private int count = 0;
+    private long lastFlush = System.nanoTime();
+    private Thread flusher;                    // null until the first print, or with no interval
+    private volatile IOException failure;     // from another thread's write, rethrown on the next call
+
+    OutputSink(OutputStream out) {
+        this(out, DEFAULT_THRESHOLD, 0, false);
+    }
+
+    OutputSink(OutputStream out, int flushThreshold, long flushIntervalMillis, boolean backgroundWriter) {
+        this.out = out;
+        this.flushThreshold = Math.max(flushThreshold, 1);
+        this.flushIntervalNanos = flushIntervalMillis * 1_000_000;
+        this.buffer = new byte[Math.max(this.flushThreshold, 64)];
+        this.writer = backgroundWriter ? Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "jlox-output");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    // Prints value the way Interpreter.stringify shows it, followed by a newline.
+    void println(Object value) {
+        lock.lock();
+        try {
+            if (value instanceof Double && Interpreter.isSmallInteger((double)value)) {
+                appendInteger((long)(double)value);
+            } else {
+                appendText(Interpreter.stringify(value));
+            }
+            append(NEWLINE);
+
+            if (count >= flushThreshold ||
+                (flushIntervalNanos > 0 && System.nanoTime() - lastFlush >= flushIntervalNanos)) {
+                drain();
+            }
+            if (flushIntervalNanos > 0 && flusher == null) {
+                flusher = new Thread(this::flushEveryInterval, "jlox-output-flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Writes out everything printed so far, waiting for the background writer if there is one.
+    void flush() {
+        lock.lock();
+        try {
+            drain();
+            if (writer == null) {
+                out.flush();
+            } else {
+                writer.submit(() -> {
+                    out.flush();
+                    return null;
+                }).get();
+            }
+            checkFailure();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw new UncheckedIOException((IOException)e.getCause());
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The flusher thread's loop. A failure to write is rethrown to the script's next print.
+    private void flushEveryInterval() {
+        for (;;) {
+            try {
+                Thread.sleep(flushIntervalNanos / 1_000_000);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            lock.lock();
+            try {
+                if (count == 0) continue;
+                drain();
+                if (writer == null) {
+                    out.flush();
+                } else {
+                    writer.execute(() -> {
+                        try {
+                            out.flush();
+                        } catch (IOException e) {
+                            failure = e;
+                        }
+                    });
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (UncheckedIOException e) {
+                failure = e.getCause();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Hands the buffer to the stream, or to the writer thread along with a fresh buffer.
+    private void drain() {
+        lastFlush = System.nanoTime();
+        if (count == 0) return;
+
+        try {
+            checkFailure();
+            if (writer == null) {
+                out.write(buffer, 0, count);
+            } else {
+                byte[] chunk = buffer;
+                int length = count;
+                pending.acquireUninterruptibly();
+                writer.execute(() -> {
+                    try {
+                        out.write(chunk, 0, length);
+                    } catch (IOException e) {
+                        failure = e;
+                    } finally {
+                        pending.release();
+                    }
+                });
+                buffer = new byte[buffer.length];
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        count = 0;
+    }
+
+    private void checkFailure() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            failure = null;
+            throw e;
+        }
+    }
+
+    private void appendInteger(long value) {
+        ensureCapacity(20);
+        if (value < 0) {
+            buffer[count++] = '-';
+            value = -value;
+        }
+
+        int start = count;
+        do {
+            buffer[count++] = (byte)('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+
+        // The digits came out least significant first.
+        for (int i = start, j = count - 1; i < j; i++, j--) {
+            byte digit = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = digit;
+        }
+    }
+
+    private void appendText(String text) {
+        int length = text.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                append(text.substring(i).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            buffer[count++] = (byte)c;
+        }
+    }
+
+    private void append(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (count + extra <= buffer.length) return;
+        byte[] grown = new byte[Math.max(buffer.length * 2, count + extra)];
+        System.arraycopy(buffer, 0, grown, 0, count);
+        buffer = grown;
+    }
+}
@@ -2,18 +2,44 @@ package com.nchhillar.jlox;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import static com.nchhillar.jlox.TokenType.*;
 
+// Pulls tokens one at a time, keeping only the current and previous one, so tokens the AST
+// doesn't hold on to (punctuation, mostly) are garbage as soon as they are parsed.
 class Parser {
     private static class ParseError extends RuntimeException {}
 
-    private final List<Token> tokens;
-    private int current = 0; // current position in token list
+    // Operator sets for each precedence level, built once instead of a varargs array per match.
+    private static final Set<TokenType> EQUALITY = EnumSet.of(BANG_EQUAL, EQUAL_EQUAL);
+    private static final Set<TokenType> COMPARISON = EnumSet.of(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL);
+    private static final Set<TokenType> TERM = EnumSet.of(MINUS, PLUS);
+    private static final Set<TokenType> FACTOR = EnumSet.of(SLASH, STAR);
+    private static final Set<TokenType> UNARY = EnumSet.of(BANG, MINUS);
+    private static final Set<TokenType> LITERAL = EnumSet.of(NUMBER, STRING);
 
-    Parser(List<Token> tokens) {
-        this.tokens = tokens;
+    private final Scanner scanner;      // null when parsing an already scanned list
+    private final Iterator<Token> tokens;
+    private final ErrorReporter errors;
+    private Token current;
+    private Token previous;
+
+    Parser(List<Token> tokens, ErrorReporter errors) {
+        this.scanner = null;
+        this.errors = errors;
+        this.tokens = tokens.iterator();
+        this.current = this.tokens.next();
+    }
+
+    Parser(Scanner scanner) {
+        this.scanner = scanner;
+        this.errors = scanner.errors;
+        this.tokens = null;
+        this.current = scanner.nextToken();
     }
 
     List<Stmt> parse() {
@@ -113,6 +139,7 @@ class Parser {
         if (match(IF)) return ifStatement();
         if (match(PRINT)) return printStatement();
         if (match(RETURN)) return returnStatement();
+        if (match(WHILE)) return whileStatement();
         if (match(LEFT_BRACE)) return new Stmt.Block(block());
 
         return expressionStatement();
@@ -230,8 +257,10 @@ class Parser {
     }
 
     private Stmt.Function function(String kind) {
-        Token name = consume(IDENTIFIER, "Expect " + kind + " name.");
-        consume(LEFT_PAREN, "Expect '(' after " + kind + " name.");
+        // The messages are only built if they are needed.
+        if (!check(IDENTIFIER)) throw error(peek(), "Expect " + kind + " name.");
+        Token name = advance();
+        if (!match(LEFT_PAREN)) throw error(peek(), "Expect '(' after " + kind + " name.");
         List<Token> parameters = new ArrayList<>();
 
         if (!check(RIGHT_PAREN)) {
@@ -245,7 +274,7 @@ class Parser {
         }
         consume(RIGHT_PAREN, "Expect ')' after parameters.");
 
-        consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
+        if (!match(LEFT_BRACE)) throw error(peek(), "Expect '{' before " + kind + " body.");
         List<Stmt> body = block();
         return new Stmt.Function(name, parameters, body);
     }
@@ -255,7 +284,7 @@ class Parser {
         Expr expr = comparison();
 
         // Keep matching equality operators and building left-associative tree.
-        while (match(BANG_EQUAL, EQUAL_EQUAL)) {
+        while (match(EQUALITY)) {
             Token operator = previous();
             Expr right = comparison();
             expr = new Expr.Binary(expr, operator, right);
@@ -268,7 +297,7 @@ class Parser {
     private Expr comparison() {
         Expr expr = term();
 
-        while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
+        while (match(COMPARISON)) {
             Token operator = previous();
             Expr right = term();
             expr = new Expr.Binary(expr, operator, right);
@@ -281,7 +310,7 @@ class Parser {
     private Expr term() {
         Expr expr = factor();
 
-        while (match(MINUS, PLUS)) {
+        while (match(TERM)) {
             Token operator = previous();
             Expr right = factor();
             expr = new Expr.Binary(expr, operator, right);
@@ -294,7 +323,7 @@ class Parser {
     private Expr factor() {
         Expr expr = unary();
 
-        while (match(SLASH, STAR)) {
+        while (match(FACTOR)) {
             Token operator = previous();
             Expr right = unary();
             expr = new Expr.Binary(expr, operator, right);
@@ -305,7 +334,7 @@ class Parser {
 
     // Unary operators: !, - (right-associative).
     private Expr unary() {
-        if (match(BANG, MINUS)) {
+        if (match(UNARY)) {
             Token operator = previous();
             Expr right = unary(); // recursive for right-associativity
             return new Expr.Unary(operator, right);
@@ -354,7 +383,7 @@ class Parser {
         if (match(TRUE)) return new Expr.Literal(true);
         if (match(NIL)) return new Expr.Literal(null);
 
-        if (match(NUMBER, STRING)) {
+        if (match(LITERAL)) {
             return new Expr.Literal(previous().literal);
         }
 
@@ -380,13 +409,21 @@ class Parser {
         throw error(peek(), "Expected expression.");
     }
 
-    // Check if current token matches any of the given types, consume if so.
-    private boolean match(TokenType... types) {
-        for (TokenType type : types) {
-            if (check(type)) {
-                advance();
-                return true;
-            }
+    // Check if current token is of the given type, consume if so.
+    private boolean match(TokenType type) {
+        if (check(type)) {
+            advance();
+            return true;
+        }
+
+        return false;
+    }
+
+    // Check if current token is any of the given types, consume if so.
+    private boolean match(Set<TokenType> types) {
+        if (types.contains(current.type)) {
+            advance();
+            return true;
         }
 
         return false;
@@ -431,27 +468,30 @@ class Parser {
 
     // Move to next token and return the previous one.
     private Token advance() {
-        if (!isAtEnd()) current++;
-        return previous();
+        if (!isAtEnd()) {
+            previous = current;
+            current = scanner != null ? scanner.nextToken() : tokens.next();
+        }
+        return previous;
     }
 
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return current.type == EOF;
     }
 
     // Get current token without consuming it.
     private Token peek() {
-        return tokens.get(current);
+        return current;
     }
 
     // Get previous token.
     private Token previous() {
-        return tokens.get(current - 1);
+        return previous;
     }
 
     // Report error and return ParseError to unwind call stack.
     private ParseError error(Token token, String message) {
-        Jlox.error(token, message);
+        errors.error(token, message);
         return new ParseError();
     }
 }
@@ -0,0 +1,319 @@
+package com.nchhillar.jlox;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// --timings: what each phase of running a script cost. For every phase, wall time, CPU time and
+// bytes allocated by the current thread (ThreadMXBean), and how many items it handled: tokens
+// scanned, nodes parsed, resolved and type-checked, steps (loop iterations plus calls) run.
+// Work a script hands to other threads, through spawn or the parallel list methods, is in the
+// wall time only.
+// Counting happens between phases, outside the measurements.
+final class PhaseTimings {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static final class Phase {
+        final String name;
+        final long wallNanos;
+        final long cpuNanos;         // -1 if the JVM can't tell
+        final long allocatedBytes;   // -1 if the JVM can't tell
+        long items;
+        String unit;
+
+        Phase(String name, long wallNanos, long cpuNanos, long allocatedBytes) {
+            this.name = name;
+            this.wallNanos = wallNanos;
+            this.cpuNanos = cpuNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+
+    private final List<Phase> phases = new ArrayList<>();
+    private String current;
+    private long wallStart;
+    private long cpuStart;
+    private long allocatedStart;
+
+    private long sourceChars;
+    private long tokens;
+    private long nodes;
+    private long statements;
+
+    void start(String phase) {
+        current = phase;
+        allocatedStart = allocatedBytes();
+        cpuStart = cpuNanos();
+        wallStart = System.nanoTime();
+    }
+
+    void stop() {
+        long wall = System.nanoTime() - wallStart;
+        long cpu = cpuNanos();
+        long allocated = allocatedBytes();
+        phases.add(new Phase(current,
+            wall,
+            cpu == -1 || cpuStart == -1 ? -1 : cpu - cpuStart,
+            allocated == -1 || allocatedStart == -1 ? -1 : allocated - allocatedStart));
+    }
+
+    // What the phase stop() ended handled.
+    void counted(long items, String unit) {
+        Phase phase = phases.get(phases.size() - 1);
+        phase.items = items;
+        phase.unit = unit;
+    }
+
+    void source(String source) {
+        sourceChars = source.length();
+    }
+
+    void tokens(List<Token> scanned) {
+        tokens = scanned.size() - 1;   // not the EOF
+        counted(tokens, "tokens");
+    }
+
+    // Counts the tree's nodes and statements once, for the first phase that handles it.
+    void nodes(List<Stmt> tree) {
+        if (nodes == 0) {
+            NodeCounter counter = new NodeCounter();
+            counter.statements(tree);
+            nodes = counter.nodes;
+            statements = counter.statements;
+        }
+        counted(nodes, "nodes");
+    }
+
+    private static long cpuNanos() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+    }
+
+    private static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)THREADS;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads.getCurrentThreadAllocatedBytes();
+            }
+        }
+        return -1;
+    }
+
+    void print(PrintStream out) {
+        out.printf("source: %,d chars, %,d tokens, %,d nodes, %,d statements%n",
+            sourceChars, tokens, nodes, statements);
+        out.printf("%-10s %10s %10s %12s %16s %20s%n",
+            "phase", "wall ms", "cpu ms", "allocated", "items", "throughput");
+        long wall = 0;
+        long cpu = 0;
+        long allocated = 0;
+        for (Phase phase : phases) {
+            out.printf("%-10s %10.3f %10s %12s %16s %20s%n", phase.name,
+                phase.wallNanos / 1e6,
+                phase.cpuNanos == -1 ? "-" : String.format("%.3f", phase.cpuNanos / 1e6),
+                phase.allocatedBytes == -1 ? "-" : bytes(phase.allocatedBytes),
+                phase.unit == null ? "" : String.format("%,d %s", phase.items, phase.unit),
+                phase.unit == null || phase.wallNanos == 0 ? "" :
+                    String.format("%s %s/s", rate(phase.items * 1e9 / phase.wallNanos), phase.unit));
+            wall += phase.wallNanos;
+            cpu = cpu == -1 || phase.cpuNanos == -1 ? -1 : cpu + phase.cpuNanos;
+            allocated = allocated == -1 || phase.allocatedBytes == -1 ? -1 : allocated + phase.allocatedBytes;
+        }
+        out.printf("%-10s %10.3f %10s %12s%n", "total", wall / 1e6,
+            cpu == -1 ? "-" : String.format("%.3f", cpu / 1e6),
+            allocated == -1 ? "-" : bytes(allocated));
+    }
+
+    // One JSON object on one line; times in nanoseconds, -1 where the JVM can't tell.
+    void printJson(PrintStream out) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"sourceChars\":").append(sourceChars)
+            .append(",\"tokens\":").append(tokens)
+            .append(",\"nodes\":").append(nodes)
+            .append(",\"statements\":").append(statements)
+            .append(",\"phases\":[");
+        for (int i = 0; i < phases.size(); i++) {
+            Phase phase = phases.get(i);
+            if (i > 0) json.append(',');
+            json.append("{\"name\":\"").append(phase.name).append('"')
+                .append(",\"wallNanos\":").append(phase.wallNanos)
+                .append(",\"cpuNanos\":").append(phase.cpuNanos)
+                .append(",\"allocatedBytes\":").append(phase.allocatedBytes);
+            if (phase.unit != null) {
+                json.append(",\"items\":").append(phase.items)
+                    .append(",\"unit\":\"").append(phase.unit).append('"')
+                    .append(",\"itemsPerSecond\":")
+                    .append(phase.wallNanos == 0 ? 0 : Math.round(phase.items * 1e9 / phase.wallNanos));
+            }
+            json.append('}');
+        }
+        json.append("]}");
+        out.println(json);
+    }
+
+    private static String bytes(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return String.format(Locale.ROOT, "%.1f KB", bytes / 1024.0);
+        return String.format(Locale.ROOT, "%.1f MB", bytes / (1024.0 * 1024));
+    }
+
+    private static String rate(double perSecond) {
+        if (perSecond < 1e3) return String.format(Locale.ROOT, "%.0f", perSecond);
+        if (perSecond < 1e6) return String.format(Locale.ROOT, "%.1f K", perSecond / 1e3);
+        return String.format(Locale.ROOT, "%.1f M", perSecond / 1e6);
+    }
+
+    private static final class NodeCounter implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        long nodes = 0;
+        long statements = 0;
+
+        void statements(List<Stmt> list) {
+            for (Stmt stmt : list) stmt(stmt);
+        }
+
+        void stmt(Stmt stmt) {
+            if (stmt == null) return;
+            nodes++;
+            statements++;
+            stmt.accept(this);
+        }
+
+        void expr(Expr expr) {
+            if (expr == null) return;
+            nodes++;
+            expr.accept(this);
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            statements(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            expr(stmt.superclass);
+            for (Stmt.Function method : stmt.methods) stmt(method);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            expr(stmt.condition);
+            stmt(stmt.thenBranch);
+            stmt(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            statements(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            expr(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            expr(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            expr(stmt.condition);
+            stmt(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            expr(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            expr(expr.left);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            expr(expr.callee);
+            for (Expr argument : expr.arguments) expr(argument);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            expr(expr.object);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            expr(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            expr(expr.left);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            expr(expr.object);
+            expr(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            return null;
+        }
+    }
+}
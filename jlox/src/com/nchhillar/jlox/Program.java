@@ -0,0 +1,163 @@
+package com.nchhillar.jlox;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.SoftReference;
+import java.util.Collections;
+import java.util.List;
+
+// A script that has been scanned, parsed and resolved.
+// Resolution results live on the AST nodes, and nothing touches the tree after compile() returns,
+// so one Program can be executed by any number of interpreters on any number of threads.
+// compact() gives a copy that keeps only a CompactAst, a fraction of the tree's size, for caching
+// many programs; its tree is rebuilt when it runs and kept only while memory allows.
+// write() saves that compact form to a file, a .loxc, that read() loads without compiling again.
+final class Program {
+    static final String COMPILED_EXTENSION = ".loxc";
+    private static final int MAGIC = 0x4c4f5843;   // "LOXC"
+    // Changes whenever the file layout, the AST or the meaning of its annotations does.
+    private static final int VERSION = 2;
+
+    // Slots needed by the top-level frame, which holds the locals of top-level blocks.
+    final int locals;
+    private final List<Stmt> statements;   // null for a compacted program
+    private final CompactAst compact;      // null unless compacted
+    private volatile SoftReference<List<Stmt>> materialized;
+    // Keeps the indexes of the globals the script mentions; see Environment.
+    private final Environment.GlobalName[] globals;
+
+    private Program(List<Stmt> statements, CompactAst compact, int locals, Environment.GlobalName[] globals) {
+        this.statements = statements == null ? null : Collections.unmodifiableList(statements);
+        this.compact = compact;
+        this.locals = locals;
+        this.globals = globals;
+    }
+
+    // Source text -> tokens -> AST -> resolved, type-annotated and optimized AST. Returns null if
+    // there was a compile error, after printing it to System.err.
+    // The parser pulls tokens from the scanner as it goes, so the token list never exists.
+    static Program compile(String source) {
+        return compile(source, 1, new ErrorReporter(System.err));
+    }
+
+    static Program compile(String source, ErrorReporter errors) {
+        return compile(source, 1, errors);
+    }
+
+    // For a piece of a larger script, so errors report the line in the whole script.
+    static Program compile(String source, int line, ErrorReporter errors) {
+        return compile(source, line, errors, null);
+    }
+
+    // With timings, each phase is measured on its own, so the source is scanned into a token
+    // list before parsing starts.
+    static Program compile(String source, int line, ErrorReporter errors, PhaseTimings timings) {
+        Parser parser;
+        if (timings == null) {
+            parser = new Parser(new Scanner(source, line, errors));
+        } else {
+            timings.source(source);
+            timings.start("scan");
+            List<Token> tokens = new Scanner(source, line, errors).scanTokens();
+            timings.stop();
+            timings.tokens(tokens);
+            parser = new Parser(tokens, errors);
+            timings.start("parse");
+        }
+        List<Stmt> statements = parser.parse();
+        if (timings != null) {
+            timings.stop();
+            timings.nodes(statements);
+        }
+
+        if (errors.hadError()) return null; // don't resolve a broken AST
+
+        if (timings != null) timings.start("resolve");
+        Resolver resolver = new Resolver(errors);
+        int locals = resolver.resolveScript(statements);
+        if (timings != null) {
+            timings.stop();
+            timings.nodes(statements);
+        }
+
+        if (errors.hadError()) return null;
+
+        if (timings != null) timings.start("infer");
+        new TypeInference().infer(statements, locals);
+        Purity.mark(statements);
+        if (timings != null) {
+            timings.stop();
+            timings.nodes(statements);
+        }
+
+        if (timings != null) timings.start("optimize");
+        locals = Optimizer.optimize(statements, locals);
+        if (timings != null) {
+            timings.stop();
+            timings.nodes(statements);
+        }
+
+        return new Program(statements, null, locals, resolver.globals());
+    }
+
+    Program compact() {
+        if (compact != null) return this;
+        return new Program(null, CompactAst.encode(statements), locals, globals);
+    }
+
+    // The same program for source that has moved by lines without changing, so its runtime
+    // errors report where it is now. Rebuilt from the CompactAst, for a fraction of compiling again.
+    Program moved(int lines) {
+        CompactAst tree = compact != null ? compact : CompactAst.encode(statements);
+        return new Program(tree.materialize(lines), null, locals, globals);
+    }
+
+    // The program as a compiled script file: a header, the global names it uses, and its
+    // CompactAst. The stream is left open.
+    void write(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(locals);
+        out.writeInt(globals.length);
+        for (Environment.GlobalName global : globals) {
+            out.writeUTF(global.name);
+        }
+        (compact != null ? compact : CompactAst.encode(statements)).write(out);
+        out.flush();
+    }
+
+    // A program write() saved. Its tree is built now, since a script loaded this way is about
+    // to be run.
+    static Program read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC) throw new IOException("Not a compiled Lox script.");
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Compiled by another version of jlox (format " + version + ", not " + VERSION + ").");
+        }
+        int locals = in.readInt();
+        Environment.GlobalName[] globals = new Environment.GlobalName[in.readInt()];
+        for (int i = 0; i < globals.length; i++) {
+            globals[i] = Environment.global(in.readUTF());
+        }
+        List<Stmt> statements = CompactAst.read(in).materialize();
+        return new Program(statements, null, locals, globals);
+    }
+
+    // Threads racing to rebuild a compacted tree may each build their own; any of them will do.
+    List<Stmt> statements() {
+        if (statements != null) return statements;
+
+        SoftReference<List<Stmt>> reference = materialized;
+        List<Stmt> tree = reference == null ? null : reference.get();
+        if (tree == null) {
+            tree = Collections.unmodifiableList(compact.materialize());
+            materialized = new SoftReference<>(tree);
+        }
+        return tree;
+    }
+}
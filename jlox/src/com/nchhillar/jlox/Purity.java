@@ -0,0 +1,391 @@
+package com.nchhillar.jlox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Finds the functions of a script that are pure, whose result depends on nothing but their
+// arguments, and marks them Stmt.Function.pure; --memoize caches their results (see Memo).
+// Only functions declared at the top level of a script are considered, and it is strict about
+// what their bodies may do:
+//   - read and assign their own parameters and locals, but not upvalues or globals;
+//   - call, or refer to, other pure functions by name;
+//   - nothing else that reaches outside: no print, no fields, no natives (clock() differs from
+//     call to call, list() gives a new object each time), no nested functions or classes.
+// A name only stands for a function if the script binds it exactly once, by that declaration,
+// and never assigns it. Purity is proved for all the candidates together, so recursion is fine:
+// start with every candidate and drop those that call or refer to one that isn't, until none do.
+// It holds for a whole script, not for a REPL session, where a later line can rebind a name.
+final class Purity implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    // The global function names a body uses, or null once it has done something impure.
+    private Set<String> uses = new HashSet<>();
+
+    private Purity() {
+    }
+
+    static void mark(List<Stmt> statements) {
+        Map<String, Integer> bindings = new HashMap<>();
+        List<Stmt.Function> functions = new ArrayList<>();
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Function && ((Stmt.Function)statement).slot == -1) {
+                Stmt.Function function = (Stmt.Function)statement;
+                bindings.merge(function.name.lexeme, 1, Integer::sum);
+                functions.add(function);
+            } else if (statement instanceof Stmt.Var && ((Stmt.Var)statement).slot == -1) {
+                bindings.merge(((Stmt.Var)statement).name.lexeme, 2, Integer::sum);
+            } else if (statement instanceof Stmt.Class && ((Stmt.Class)statement).slot == -1) {
+                bindings.merge(((Stmt.Class)statement).name.lexeme, 2, Integer::sum);
+            }
+        }
+        GlobalAssignments assignments = new GlobalAssignments();
+        for (Stmt statement : statements) {
+            statement.accept(assignments);
+        }
+
+        Map<String, Set<String>> candidates = new HashMap<>();
+        for (Stmt.Function function : functions) {
+            String name = function.name.lexeme;
+            if (bindings.get(name) != 1 || assignments.names.contains(name)) continue;
+
+            Purity purity = new Purity();
+            for (Stmt statement : function.body) {
+                purity.check(statement);
+            }
+            if (purity.uses != null) candidates.put(name, purity.uses);
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Map.Entry<String, Set<String>> candidate : new ArrayList<>(candidates.entrySet())) {
+                if (!candidates.keySet().containsAll(candidate.getValue())) {
+                    candidates.remove(candidate.getKey());
+                    changed = true;
+                }
+            }
+        }
+
+        for (Stmt.Function function : functions) {
+            function.pure = candidates.containsKey(function.name.lexeme);
+        }
+    }
+
+    private void impure() {
+        uses = null;
+    }
+
+    private void check(Expr expr) {
+        if (uses != null && expr != null) expr.accept(this);
+    }
+
+    private void check(Stmt stmt) {
+        if (uses != null && stmt != null) stmt.accept(this);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        for (Stmt statement : stmt.statements) {
+            check(statement);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        impure();
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        check(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        impure();
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        check(stmt.condition);
+        check(stmt.thenBranch);
+        check(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        impure();
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        check(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        check(stmt.initializer);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        check(stmt.condition);
+        check(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        if (expr.slot == -1) {
+            impure();
+        } else {
+            check(expr.value);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        check(expr.left);
+        check(expr.right);
+        return null;
+    }
+
+    // Only a function named directly can be known to be pure.
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        if (!(expr.callee instanceof Expr.Variable) || ((Expr.Variable)expr.callee).slot != -1) {
+            impure();
+            return null;
+        }
+        check(expr.callee);
+        for (Expr argument : expr.arguments) {
+            check(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        impure();
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        check(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        check(expr.left);
+        check(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        impure();
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        impure();
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        impure();
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        check(expr.right);
+        return null;
+    }
+
+    // A global has to turn out to be one of the pure functions; mark() checks that.
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if (expr.slot != -1) return null;
+        if (expr.upvalue != -1) {
+            impure();
+        } else {
+            uses.add(expr.name.lexeme);
+        }
+        return null;
+    }
+
+    // The globals assigned anywhere in the script, in function bodies and methods too.
+    private static final class GlobalAssignments implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        final Set<String> names = new HashSet<>();
+
+        private void walk(Expr expr) {
+            if (expr != null) expr.accept(this);
+        }
+
+        private void walk(Stmt stmt) {
+            if (stmt != null) stmt.accept(this);
+        }
+
+        private void walk(List<Stmt> statements) {
+            for (Stmt statement : statements) {
+                walk(statement);
+            }
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            walk(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            walk(stmt.superclass);
+            for (Stmt.Function method : stmt.methods) {
+                walk(method.body);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            walk(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            walk(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            walk(stmt.condition);
+            walk(stmt.thenBranch);
+            walk(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            walk(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            walk(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            walk(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            walk(stmt.condition);
+            walk(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            if (expr.slot == -1 && expr.upvalue == -1) names.add(expr.name.lexeme);
+            walk(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            walk(expr.left);
+            walk(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            walk(expr.callee);
+            for (Expr argument : expr.arguments) {
+                walk(argument);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            walk(expr.object);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            walk(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            walk(expr.left);
+            walk(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            walk(expr.object);
+            walk(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            walk(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            return null;
+        }
+    }
+}
@@ -1,21 +1,90 @@
 package com.nchhillar.jlox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
-
-import com.sun.jdi.ClassType;
 
+// Resolves every variable reference and stores the result on the AST node itself, so a resolved
+// tree carries everything the Interpreter needs and can be shared between interpreters.
+// Each function call gets one flat frame holding all of its locals, blocks included. A local that
+// some closure captures is kept in a Cell instead, and closures are handed only the Cells they
+// use, the way clox's upvalues work, so a closure never keeps the rest of a frame alive.
+// Names are looked up in one map holding the innermost visible declaration of each, so resolving
+// a reference costs one hash lookup however deeply it is nested.
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
-    private FunctionType currentFunction = FunctionType.NONE;
+    private enum ScopeType {
+        SCRIPT,    // top level: its own declarations are globals, but its blocks need a frame
+        FUNCTION,
+        BLOCK      // also the scope holding "super"
+    }
+
+    // A lexical scope. Only script and function scopes become frames at runtime; the variables of
+    // a block take slots in the frame of the function around it (see layout).
+    private static class Scope {
+        final Scope enclosing;
+        final ScopeType type;
+        final List<Local> order = new ArrayList<>();
+        final List<Scope> blocks = new ArrayList<>();  // nested blocks that declared something
+        int base;                                      // slot of its first variable in its frame
+
+        // Function scopes only: the variables the closure captures, and for each where the
+        // enclosing function finds it: -1 for one of its own locals, else its upvalue index.
+        final List<Local> upvalues = new ArrayList<>();
+        final List<Integer> upvalueSources = new ArrayList<>();
+
+        Scope(Scope enclosing, ScopeType type) {
+            this.enclosing = enclosing;
+            this.type = type;
+        }
+    }
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    // A declared name. Its slot is only known once its frame is laid out, so every declaration,
+    // reference and capture of it is remembered until then.
+    private static class Local {
+        final String name;
+        final int index;
+        final Stmt declaration;  // null for parameters and "this"
+        final Scope scope;
+        final Scope frame;
+        final Local shadowed;    // the declaration of the same name this one hides, if any
+        final List<Expr> references = new ArrayList<>();
+        final List<Capture> captures = new ArrayList<>();
+        boolean defined = false;
+        boolean captured = false;
+
+        Local(String name, int index, Stmt declaration, Scope scope, Local shadowed) {
+            this.name = name;
+            this.index = index;
+            this.declaration = declaration;
+            this.scope = scope;
+            this.frame = frameOf(scope);
+            this.shadowed = shadowed;
+        }
     }
-    
+
+    // A closure taking the local's Cell straight from the frame it was declared in.
+    private static class Capture {
+        final Stmt.Function function;
+        final int upvalue;
+
+        Capture(Stmt.Function function, int upvalue) {
+            this.function = function;
+            this.upvalue = upvalue;
+        }
+    }
+
+    private Scope scope = null;  // innermost; the rest are reached through enclosing
+    // Innermost declaration in scope for each local name.
+    private final Map<String, Local> bindings = new HashMap<>();
+    private FunctionType currentFunction = FunctionType.NONE;
+    // Every global the script mentions. The Program and each of its functions hold them all, so
+    // the indexes stay put while any of the script's code can still run; see Environment.
+    private final Map<String, Environment.GlobalName> globals = new HashMap<>();
+    private final List<Stmt.Function> functions = new ArrayList<>();
+    private Environment.GlobalName[] scriptGlobals;
+
+
     private enum FunctionType {
         NONE,
         FUNCTION,
@@ -30,10 +99,15 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     private ClassType currentClass = ClassType.NONE;
+    private final ErrorReporter errors;
+
+    Resolver(ErrorReporter errors) {
+        this.errors = errors;
+    }
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        beginScope();
+        beginScope(ScopeType.BLOCK);
         resolve(stmt.statements);
         endScope();
         return null;
@@ -44,11 +118,11 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
 
-        declare(stmt.name);
+        declare(stmt.name, stmt);
         define(stmt.name);
 
         if (stmt.superclass != null && stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
-            Jlox.error(stmt.superclass.name, "A class can't inherit from itself");
+            errors.error(stmt.superclass.name, "A class can't inherit from itself");
         }
 
         if (stmt.superclass != null) {
@@ -57,13 +131,10 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         }
 
         if (stmt.superclass != null) {
-            beginScope();
-            scopes.peek().put("super", true);
+            beginScope(ScopeType.BLOCK);
+            declareSynthetic("super", stmt);
         }
 
-        beginScope();
-        scopes.peek().put("this", true);
-
         for(Stmt.Function method : stmt.methods) {
             FunctionType declaration = FunctionType.METHOD;
             if (method.name.lexeme.equals("init")) {
@@ -72,8 +143,6 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             resolveFunction(method, declaration);
         }
 
-        endScope();
-
         if (stmt.superclass != null) endScope();
 
         currentClass = enclosingClass;
@@ -103,12 +172,12 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
         if (currentFunction == FunctionType.NONE) {
-            Jlox.error(stmt.keyword, "Can't return top-level code.");
+            errors.error(stmt.keyword, "Can't return top-level code.");
         }
 
         if (stmt.value != null) {
             if (currentFunction == FunctionType.INITIALIZER) {
-                Jlox.error(stmt.keyword, "Can't return a value from an initializer.");
+                errors.error(stmt.keyword, "Can't return a value from an initializer.");
             }
             resolve(stmt.value);
         }
@@ -126,7 +195,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        declare(stmt.name, stmt);
         define(stmt.name);
 
         resolveFunction(stmt, FunctionType.FUNCTION);
@@ -135,7 +204,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        declare(stmt.name, stmt);
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
@@ -146,7 +215,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        resolveLocal(expr, expr.name.lexeme);
         return null;
     }
 
@@ -203,22 +272,25 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitSuperExpr(Expr.Super expr) {
         if (currentClass == ClassType.NONE) {
-            Jlox.error(expr.keyword, "Can't use 'super' outside of a class.");
+            errors.error(expr.keyword, "Can't use 'super' outside of a class.");
         } else if (currentClass != ClassType.SUBCLASS) {
-            Jlox.error(expr.keyword, "Can't use 'super' in a class with no subclass.");
+            errors.error(expr.keyword, "Can't use 'super' in a class with no subclass.");
         }
 
-        resolveLocal(expr, expr.keyword);
+        resolveLocal(expr, "super");
+        // The method also needs the receiver, found just as 'this' would be.
+        expr.receiver = new Expr.This(expr.keyword);
+        resolveLocal(expr.receiver, "this");
         return null;
     }
 
     @Override
     public Void visitThisExpr(Expr.This expr) {
         if (currentClass == ClassType.NONE) {
-            Jlox.error(expr.keyword, "Can't use 'this' outside of class.");
+            errors.error(expr.keyword, "Can't use 'this' outside of class.");
             return null;
         }
-        resolveLocal(expr, expr.keyword);
+        resolveLocal(expr, "this");
         return null;
     }
 
@@ -230,15 +302,39 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.isEmpty() &&
-            scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            Jlox.error(expr.name, "Can't read local variable in its own initializer.");
+        Local local = bindings.get(expr.name.lexeme);
+        if (local != null && local.scope == scope && !local.defined) {
+            errors.error(expr.name, "Can't read local variable in its own initializer.");
         }
 
-        resolveLocal(expr, expr.name);
+        resolveLocal(expr, local, expr.name.lexeme);
         return null;
     }
 
+    // Resolves a whole script and returns how many slots its top-level frame needs.
+    int resolveScript(List<Stmt> statements) {
+        beginScope(ScopeType.SCRIPT);
+        resolve(statements);
+        Scope script = popScope();
+        int size = layout(script, 0);
+        bind(script);
+
+        scriptGlobals = globals.values().toArray(new Environment.GlobalName[0]);
+        for (Stmt.Function function : functions) {
+            function.globals = scriptGlobals;
+        }
+        return size;
+    }
+
+    // The GlobalNames for the Program to hold, once resolveScript() is done.
+    Environment.GlobalName[] globals() {
+        return scriptGlobals;
+    }
+
+    private int globalIndex(String name) {
+        return globals.computeIfAbsent(name, Environment::global).index;
+    }
+
     void resolve(List<Stmt> statements) {
         for (Stmt statement : statements) {
             resolve(statement);
@@ -257,46 +353,226 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
 
-        beginScope();
+        beginScope(ScopeType.FUNCTION);
+        // A method's receiver sits in slot 0, ahead of the parameters.
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            declareSynthetic("this", null);
+        }
         for (Token param : function.params) {
-            declare(param);
+            declare(param, null);
             define(param);
         }
         resolve(function.body);
-        endScope();
+        endFunction(function);
         currentFunction = enclosingFunction;
     }
 
-    private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+    private void beginScope(ScopeType type) {
+        scope = new Scope(scope, type);
     }
 
+    // A block leaves its variables, and those of the blocks nested in it, to be laid out with the
+    // frame around it.
     private void endScope() {
-        scopes.pop();
+        Scope block = popScope();
+        if (!block.order.isEmpty() || !block.blocks.isEmpty()) block.enclosing.blocks.add(block);
+    }
+
+    // Leaves the innermost scope, making visible again whatever its declarations hid.
+    private Scope popScope() {
+        Scope popped = scope;
+        for (Local local : popped.order) {
+            if (local.shadowed == null) {
+                bindings.remove(local.name);
+            } else {
+                bindings.put(local.name, local.shadowed);
+            }
+        }
+        scope = popped.enclosing;
+        return popped;
+    }
+
+    // Everything inside the function has been resolved, so its frame can be laid out.
+    // upvalues tells the Interpreter where a new closure gets each Cell: a slot >= 0 in the frame
+    // it is created in, or upvalue -1 - n of the function creating it. The slots are filled in
+    // when the enclosing frame is laid out, through the captured local's captures.
+    private void endFunction(Stmt.Function function) {
+        Scope scope = popScope();
+        functions.add(function);
+
+        function.upvalues = new int[scope.upvalues.size()];
+        for (int i = 0; i < function.upvalues.length; i++) {
+            int source = scope.upvalueSources.get(i);
+            if (source == -1) {
+                scope.upvalues.get(i).captures.add(new Capture(function, i));
+            } else {
+                function.upvalues[i] = -1 - source;
+            }
+        }
+
+        function.locals = layout(scope, 0);
+        bind(scope);
+
+        // Parameters arrive as plain values; captured ones are moved into Cells on entry.
+        int boxed = 0;
+        for (Local local : scope.order) {
+            if (local.declaration == null && local.captured) boxed++;
+        }
+        function.boxedParameters = new int[boxed];
+        boxed = 0;
+        for (Local local : scope.order) {
+            if (local.declaration == null && local.captured) function.boxedParameters[boxed++] = local.index;
+        }
+    }
+
+    // Gives the scope's own variables the slots from base up, and lets each block nested in it
+    // use the slots after those. Sibling blocks never run at the same time, so they share slots.
+    // Returns the frame size needed.
+    private static int layout(Scope scope, int base) {
+        scope.base = base;
+        int end = base + scope.order.size();
+        int size = end;
+        for (Scope block : scope.blocks) {
+            size = Math.max(size, layout(block, end));
+        }
+        return size;
+    }
+
+    // Writes the final slot onto every declaration, reference and capture of the scope's variables.
+    private static void bind(Scope scope) {
+        for (Local local : scope.order) {
+            int slot = scope.base + local.index;
+
+            if (local.declaration instanceof Stmt.Var) {
+                ((Stmt.Var)local.declaration).slot = slot;
+                ((Stmt.Var)local.declaration).captured = local.captured;
+            } else if (local.declaration instanceof Stmt.Function) {
+                ((Stmt.Function)local.declaration).slot = slot;
+                ((Stmt.Function)local.declaration).captured = local.captured;
+            } else if (local.declaration instanceof Stmt.Class) {
+                Stmt.Class declaration = (Stmt.Class)local.declaration;
+                if (local.name.equals("super")) {
+                    declaration.superSlot = slot;
+                } else {
+                    declaration.slot = slot;
+                    declaration.captured = local.captured;
+                }
+            }
+
+            for (Expr expr : local.references) {
+                if (expr instanceof Expr.Variable) {
+                    ((Expr.Variable)expr).slot = slot;
+                    ((Expr.Variable)expr).boxed = local.captured;
+                } else if (expr instanceof Expr.Assign) {
+                    ((Expr.Assign)expr).slot = slot;
+                    ((Expr.Assign)expr).boxed = local.captured;
+                } else if (expr instanceof Expr.This) {
+                    ((Expr.This)expr).slot = slot;
+                    ((Expr.This)expr).boxed = local.captured;
+                }
+            }
+
+            for (Capture capture : local.captures) {
+                capture.function.upvalues[capture.upvalue] = slot;
+            }
+        }
+
+        for (Scope block : scope.blocks) {
+            bind(block);
+        }
     }
 
-    private void declare(Token name) {
-        if (scopes.isEmpty()) return;
+    // Adds the name to the current scope, unless that is the top level, where it is a global.
+    // declaration is the statement whose slot gets filled in, or null for parameters.
+    private void declare(Token name, Stmt declaration) {
+        if (scope.type == ScopeType.SCRIPT) {
+            int global = globalIndex(name.lexeme);
+            if (declaration instanceof Stmt.Var) {
+                ((Stmt.Var)declaration).global = global;
+            } else if (declaration instanceof Stmt.Function) {
+                ((Stmt.Function)declaration).global = global;
+            } else if (declaration instanceof Stmt.Class) {
+                ((Stmt.Class)declaration).global = global;
+            }
+            return;
+        }
 
-        Map<String, Boolean> scope = scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
-            Jlox.error(name, "Already variable with this name in this scope.");
+        Local existing = bindings.get(name.lexeme);
+        if (existing != null && existing.scope == scope) {
+            errors.error(name, "Already variable with this name in this scope.");
+            return;
         }
 
-        scope.put(name.lexeme, false);
+        addLocal(name.lexeme, declaration);
     }
 
     private void define(Token name) {
-        if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, true);
+        Local local = bindings.get(name.lexeme);
+        if (local != null && local.scope == scope) local.defined = true;
+    }
+
+    private void declareSynthetic(String name, Stmt declaration) {
+        addLocal(name, declaration).defined = true;
+    }
+
+    private Local addLocal(String name, Stmt declaration) {
+        Local local = new Local(name, scope.order.size(), declaration, scope, bindings.get(name));
+        bindings.put(name, local);
+        scope.order.add(local);
+        return local;
+    }
+
+    // Resolves the name to a local of the running function, whose slot is written once its frame
+    // is laid out, or to an upvalue of it; a name found in no scope is a global, looked up by
+    // index even if nothing defines it yet.
+    private void resolveLocal(Expr expr, String name) {
+        resolveLocal(expr, bindings.get(name), name);
     }
 
-    private void resolveLocal(Expr expr, Token name) {
-        for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
+    private void resolveLocal(Expr expr, Local local, String name) {
+        if (local != null) {
+            Scope function = frameOf(scope);
+            if (local.frame == function) {
+                local.references.add(expr);
                 return;
             }
+
+            local.captured = true;
+            int upvalue = addUpvalue(function, local);
+            if (expr instanceof Expr.Variable) {
+                ((Expr.Variable)expr).upvalue = upvalue;
+            } else if (expr instanceof Expr.Assign) {
+                ((Expr.Assign)expr).upvalue = upvalue;
+            } else if (expr instanceof Expr.This) {
+                ((Expr.This)expr).upvalue = upvalue;
+            } else if (expr instanceof Expr.Super) {
+                ((Expr.Super)expr).upvalue = upvalue;
+            }
+            return;
+        }
+
+        if (expr instanceof Expr.Variable) {
+            ((Expr.Variable)expr).global = globalIndex(name);
+        } else if (expr instanceof Expr.Assign) {
+            ((Expr.Assign)expr).global = globalIndex(name);
         }
     }
+
+    // Returns the function's upvalue index for the local, threading it through every function in
+    // between so each closure is handed the Cell by the one that creates it.
+    private static int addUpvalue(Scope function, Local local) {
+        int index = function.upvalues.indexOf(local);
+        if (index != -1) return index;
+
+        Scope enclosing = frameOf(function.enclosing);
+        int source = enclosing == local.frame ? -1 : addUpvalue(enclosing, local);
+        function.upvalues.add(local);
+        function.upvalueSources.add(source);
+        return function.upvalues.size() - 1;
+    }
+
+    private static Scope frameOf(Scope scope) {
+        while (scope.type == ScopeType.BLOCK) scope = scope.enclosing;
+        return scope;
+    }
 }
@@ -1,10 +1,11 @@
 package com.nchhillar.jlox;
 
+// Unwinds a function body on 'return'. Each Interpreter throws one reusable instance, since the
+// value is picked up by the enclosing call before that interpreter can return again.
 class Return extends RuntimeException {
-    final Object value;
+    Object value;
 
-    Return(Object value) {
+    Return() {
         super(null, null, false, false);
-        this.value = value;
     }
 }
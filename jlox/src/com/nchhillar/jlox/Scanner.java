@@ -3,54 +3,64 @@ package com.nchhillar.jlox;
 import static com.nchhillar.jlox.TokenType.*;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
+// Hands out tokens one at a time through nextToken(), or all at once through scanTokens().
 class Scanner {
     private final String source;
-    private final List<Token> tokens = new ArrayList<>();
-    // Map of reserved words to their token types.
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and",    AND);
-        keywords.put("class",  CLASS);
-        keywords.put("else",   ELSE);
-        keywords.put("false",  FALSE);
-        keywords.put("for",    FOR);
-        keywords.put("fun",    FUN);
-        keywords.put("if",     IF);
-        keywords.put("nil",    NIL);
-        keywords.put("or",     OR);
-        keywords.put("print",  PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super",  SUPER);
-        keywords.put("this",   THIS);
-        keywords.put("true",   TRUE);
-        keywords.put("var",    VAR);
-        keywords.put("while",  WHILE);
-    }
+    final ErrorReporter errors;
+    private Token token; // set by addToken for nextToken() to return
 
     // while scanner is in the source code, track:
     private int start = 0; // points to the first character in the lexeme currently beign scanned
     private int current = 0; // character currently being considered
     private int line = 1; // tracks what source line 'current' is on
 
-    Scanner(String source) {
+    Scanner(String source, ErrorReporter errors) {
+        this(source, 1, errors);
+    }
+
+    // For a piece of a larger script that starts on the given line.
+    Scanner(String source, int line, ErrorReporter errors) {
         this.source = source;
+        this.line = line;
+        this.errors = errors;
+    }
+
+    // Where the last token handed out starts, and the offset just past it.
+    int tokenStart() {
+        return start;
+    }
+
+    int tokenEnd() {
+        return current;
     }
 
     // Main scanning loop: go through source and build token list.
     List<Token>  scanTokens() {
+        List<Token> tokens = new ArrayList<>();
+        Token token;
+        do {
+            token = nextToken();
+            tokens.add(token);
+        } while (token.type != EOF);
+        return tokens;
+    }
+
+    // Scans up to and including the next token; EOF once the source runs out, and after that.
+    Token nextToken() {
         while (!isAtEnd()) {
             start = current; // mark start of next token
             scanToken();
+
+            if (token != null) {
+                Token next = token;
+                token = null;
+                return next;
+            }
         }
 
-        tokens.add(new Token(EOF, "", null, line)); // add EOF marker
-        return tokens;
+        return new Token(EOF, "", null, line); // EOF marker
     }
 
     // Look at next char and figure out what kind of token it starts.
@@ -119,7 +129,7 @@ class Scanner {
                 } else if (isAlpha(c)) {
                     identifier();
                 } else {
-                    Jlox.error(line, "Unexpected character.");
+                    errors.error(line, "Unexpected character.");
                 }   
                 break;
         }
@@ -129,10 +139,53 @@ class Scanner {
     private void identifier() {
         while (isAlphaNumeric(peek())) advance();
 
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null) type = IDENTIFIER; // not a keyword, so it's user-defined
-        addToken(type);
+        addToken(identifierType());
+    }
+
+    // Recognizes reserved words straight from the source, without hashing every identifier, by
+    // switching on the first letters the way clox's scanner does.
+    private TokenType identifierType() {
+        switch (source.charAt(start)) {
+            case 'a': return checkKeyword(1, "nd", AND);
+            case 'c': return checkKeyword(1, "lass", CLASS);
+            case 'e': return checkKeyword(1, "lse", ELSE);
+            case 'f':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'a': return checkKeyword(2, "lse", FALSE);
+                        case 'o': return checkKeyword(2, "r", FOR);
+                        case 'u': return checkKeyword(2, "n", FUN);
+                    }
+                }
+                break;
+            case 'i': return checkKeyword(1, "f", IF);
+            case 'n': return checkKeyword(1, "il", NIL);
+            case 'o': return checkKeyword(1, "r", OR);
+            case 'p': return checkKeyword(1, "rint", PRINT);
+            case 'r': return checkKeyword(1, "eturn", RETURN);
+            case 's': return checkKeyword(1, "uper", SUPER);
+            case 't':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'h': return checkKeyword(2, "is", THIS);
+                        case 'r': return checkKeyword(2, "ue", TRUE);
+                    }
+                }
+                break;
+            case 'v': return checkKeyword(1, "ar", VAR);
+            case 'w': return checkKeyword(1, "hile", WHILE);
+        }
+
+        return IDENTIFIER; // not a keyword, so it's user-defined
+    }
+
+    // The keyword type if the rest of the lexeme, from offset on, is exactly rest.
+    private TokenType checkKeyword(int offset, String rest, TokenType type) {
+        if (current - start == offset + rest.length() &&
+            source.regionMatches(start + offset, rest, 0, rest.length())) {
+            return type;
+        }
+        return IDENTIFIER;
     }
 
     // Scan a number (integer or decimal).
@@ -156,7 +209,7 @@ class Scanner {
         }
 
         if (isAtEnd()) {
-            Jlox.error(line, "Unterminated string.");
+            errors.error(line, "Unterminated string.");
             return;
         }
 
@@ -186,7 +239,7 @@ class Scanner {
     // Create token with a literal value (for numbers, strings, etc.).
     private void addToken(TokenType type, Object literal) {
         String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        token = new Token(type, text, literal, line);
     }
 
     // Conditionally consume next char if it matches (for two-char tokens).
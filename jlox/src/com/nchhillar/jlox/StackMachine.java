@@ -0,0 +1,447 @@
+package com.nchhillar.jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Runs a Program without recursing on the JVM stack, for scripts that recurse deeper than the
+// tree-walking Interpreter can (a few thousand Lox calls).
+// Work still to do sits on a control stack of (node, state) pairs: a node is visited once per
+// state, and each visit either pushes its children, with itself in the next state underneath, or
+// finishes by pushing its value on the value stack. Lox calls push an activation instead of
+// recursing, so depth is limited only by maxDepth and heap, and every frame costs a few stack
+// entries plus its Environment. Going past maxDepth is an ordinary Lox runtime error.
+// Leaf expressions, declarations and operators are delegated to the Interpreter, so both modes
+// share their semantics. Natives that call back into Lox (sortBy, forEach, parallelMap) run those
+// callbacks on the recursive Interpreter.
+final class StackMachine implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    static final int DEFAULT_MAX_DEPTH = 500_000;
+
+    // Control entry below a function body: reaching it means the body ended without 'return'.
+    private static final Object FUNCTION_END = new Object();
+
+    private final Interpreter interpreter;
+    private final int maxDepth;
+
+    private Object[] nodes = new Object[256];   // Expr, Stmt, List<Stmt> or FUNCTION_END
+    private int[] states = new int[256];
+    private int top = 0;
+    private int state;                          // state of the node being visited
+
+    private Object[] values = new Object[256];
+    private int sp = 0;
+
+    // One activation per Lox call in progress.
+    private LoxFunction[] functions = new LoxFunction[64];
+    private Environment[] callers = new Environment[64];
+    private int[] controlBases = new int[64];
+    private int[] valueBases = new int[64];
+    private Object[] memoKeys = new Object[64];   // what to store the result under, if memoized
+    private int depth = 0;
+
+    StackMachine(Interpreter interpreter, int maxDepth) {
+        this.interpreter = interpreter;
+        this.maxDepth = maxDepth;
+    }
+
+    void execute(List<Stmt> statements, Environment frame) {
+        Environment previous = interpreter.environment;
+        try {
+            interpreter.environment = frame;
+            push(statements, 0);
+            run();
+        } finally {
+            interpreter.environment = previous;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void run() {
+        while (top > 0) {
+            top--;
+            Object node = nodes[top];
+            nodes[top] = null;
+            state = states[top];
+
+            if (node instanceof Expr) {
+                ((Expr)node).accept(this);
+            } else if (node instanceof Stmt) {
+                ((Stmt)node).accept(this);
+            } else if (node == FUNCTION_END) {
+                finishCall(null);
+            } else {
+                runStatements((List<Stmt>)node);
+            }
+        }
+    }
+
+    private void runStatements(List<Stmt> statements) {
+        if (state < statements.size()) {
+            push(statements, state + 1);
+            push(statements.get(state), 0);
+        }
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        runStatements(stmt.statements);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        interpreter.visitClassStmt(stmt);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        if (state == 0) {
+            push(stmt, 1);
+            evaluate(stmt.expression);
+        } else {
+            pop();
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        if (state == 0) {
+            push(stmt, 1);
+            evaluate(stmt.condition);
+        } else if (Interpreter.isTruthy(pop())) {
+            push(stmt.thenBranch, 0);
+        } else if (stmt.elseBranch != null) {
+            push(stmt.elseBranch, 0);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        interpreter.visitFunctionStmt(stmt);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        if (state == 0) {
+            push(stmt, 1);
+            evaluate(stmt.expression);
+        } else {
+            interpreter.print(pop());
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) {
+            interpreter.visitVarStmt(stmt);
+        } else if (state == 0) {
+            push(stmt, 1);
+            evaluate(stmt.initializer);
+        } else {
+            interpreter.declare(stmt.slot, stmt.global, stmt.captured, stmt.name, pop());
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            finishCall(null);
+        } else if (state == 0) {
+            push(stmt, 1);
+            evaluate(stmt.value);
+        } else {
+            finishCall(pop());
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        if (state == 0) {
+            push(stmt, 1);
+            evaluate(stmt.condition);
+        } else if (Interpreter.isTruthy(pop())) {
+            interpreter.step();
+            push(stmt, 0);
+            push(stmt.body, 0);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        if (state == 0) {
+            push(expr, 1);
+            evaluate(expr.value);
+        } else {
+            interpreter.assign(expr, values[sp - 1]);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        switch (state) {
+            case 0:
+                push(expr, 1);
+                evaluate(expr.left);
+                break;
+            case 1:
+                push(expr, 2);
+                evaluate(expr.right);
+                break;
+            default:
+                Object right = pop();
+                Object left = pop();
+                if (expr.numeric) {
+                    pushValue(Interpreter.arithmetic(expr.operator, (double)left, (double)right));
+                    break;
+                }
+
+                Object result = Interpreter.binary(expr.operator, left, right);
+                if (result instanceof String) {
+                    interpreter.allocate(ExecutionLimits.STRING_BYTES + ((String)result).length());
+                }
+                pushValue(result);
+        }
+        return null;
+    }
+
+    // States 0..n evaluate the callee and then each argument; state n + 1 makes the call.
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        List<Expr> arguments = expr.arguments;
+        int count = arguments.size();
+
+        if (state == 0) {
+            push(expr, 1);
+            evaluate(expr.callee);
+            return null;
+        }
+        if (state <= count) {
+            push(expr, state + 1);
+            evaluate(arguments.get(state - 1));
+            return null;
+        }
+
+        int first = sp - count;
+        int end = sp;
+        Object callee = values[first - 1];
+
+        if (expr.direct) {
+            call(expr, (LoxFunction)callee, first, count);
+        } else if (callee instanceof LoxFunction) {
+            LoxFunction function = (LoxFunction)interpreter.checkCall(expr, callee, count);
+            call(expr, function, first, count);
+        } else if (callee instanceof LoxClass) {
+            LoxClass klass = (LoxClass)interpreter.checkCall(expr, callee, count);
+            LoxInstance instance = klass.instantiate(interpreter);
+            if (klass.initializer == null) {
+                sp = first - 1;
+                pushValue(instance);
+            } else {
+                call(expr, klass.initializer.bind(instance), first, count);
+            }
+        } else {
+            List<Object> values = new ArrayList<>(Arrays.asList(this.values).subList(first, sp));
+            sp = first - 1;
+            pushValue(interpreter.call(expr, callee, values));
+        }
+
+        // Drop the callee and arguments, so they can be collected.
+        Arrays.fill(this.values, sp, end, null);
+        return null;
+    }
+
+    // Starts a Lox call with its arguments at values[first..first + count).
+    private void call(Expr.Call expr, LoxFunction function, int first, int count) {
+        if (depth == maxDepth) {
+            throw new RuntimeError(expr.paren, "Stack overflow.");
+        }
+
+        // A memoized result is the call's value at once; otherwise the result is stored at the end.
+        Object key = function.memo == null ? null : function.memo.key(values, first, count);
+        if (key != null) {
+            Object cached = function.memo.lookUp(key);
+            if (cached != Memo.MISSING) {
+                sp = first - 1;
+                pushValue(cached);
+                return;
+            }
+        }
+
+        interpreter.step();
+        Environment frame = function.newFrame();
+        interpreter.allocate(ExecutionLimits.FRAME_BYTES + 8L * frame.slots.length);
+        System.arraycopy(values, first, frame.slots, function.firstParameter, count);
+        sp = first - 1;
+        function.enter(frame);
+
+        if (depth == functions.length) {
+            int capacity = depth * 2;
+            functions = Arrays.copyOf(functions, capacity);
+            callers = Arrays.copyOf(callers, capacity);
+            controlBases = Arrays.copyOf(controlBases, capacity);
+            valueBases = Arrays.copyOf(valueBases, capacity);
+            memoKeys = Arrays.copyOf(memoKeys, capacity);
+        }
+        functions[depth] = function;
+        memoKeys[depth] = key;
+        callers[depth] = interpreter.environment;
+        controlBases[depth] = top;
+        valueBases[depth] = sp;
+        depth++;
+
+        interpreter.environment = frame;
+        push(FUNCTION_END, 0);
+        push(function.body(), 0);
+    }
+
+    // Ends the innermost call, dropping whatever of its body was still pending.
+    private void finishCall(Object value) {
+        depth--;
+        Arrays.fill(nodes, controlBases[depth], top, null);
+        Arrays.fill(values, valueBases[depth], sp, null);
+        top = controlBases[depth];
+        sp = valueBases[depth];
+        interpreter.environment = callers[depth];
+        callers[depth] = null;
+        Object result = functions[depth].result(value);
+        if (memoKeys[depth] != null) {
+            functions[depth].memo.store(memoKeys[depth], result);
+            memoKeys[depth] = null;
+        }
+        pushValue(result);
+        functions[depth] = null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        if (state == 0) {
+            push(expr, 1);
+            evaluate(expr.object);
+        } else {
+            pushValue(Interpreter.property(expr, pop()));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        evaluate(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        pushValue(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        if (state == 0) {
+            push(expr, 1);
+            evaluate(expr.left);
+            return null;
+        }
+
+        Object left = values[sp - 1];
+        boolean shortCircuits = expr.operator.type == TokenType.OR ?
+            Interpreter.isTruthy(left) : !Interpreter.isTruthy(left);
+        if (!shortCircuits) {
+            pop();
+            evaluate(expr.right);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        switch (state) {
+            case 0:
+                push(expr, 1);
+                evaluate(expr.object);
+                break;
+            case 1:
+                Interpreter.fieldOwner(expr, values[sp - 1]);
+                push(expr, 2);
+                evaluate(expr.value);
+                break;
+            default:
+                Object value = pop();
+                LoxInstance object = (LoxInstance)pop();
+                object.set(expr.name, value);
+                pushValue(value);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        pushValue(interpreter.visitSuperExpr(expr));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        pushValue(interpreter.visitThisExpr(expr));
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        if (state == 0) {
+            push(expr, 1);
+            evaluate(expr.right);
+        } else {
+            Object right = pop();
+            pushValue(expr.numeric ? -(double)right : Interpreter.unary(expr.operator, right));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        pushValue(interpreter.visitVariableExpr(expr));
+        return null;
+    }
+
+    // Schedules expr; literals and variables are cheap enough to evaluate on the spot.
+    private void evaluate(Expr expr) {
+        if (expr instanceof Expr.Variable) {
+            pushValue(interpreter.visitVariableExpr((Expr.Variable)expr));
+        } else if (expr instanceof Expr.Literal) {
+            pushValue(((Expr.Literal)expr).value);
+        } else {
+            push(expr, 0);
+        }
+    }
+
+    private void push(Object node, int state) {
+        if (top == nodes.length) {
+            nodes = Arrays.copyOf(nodes, top * 2);
+            states = Arrays.copyOf(states, top * 2);
+        }
+        nodes[top] = node;
+        states[top] = state;
+        top++;
+    }
+
+    private void pushValue(Object value) {
+        if (sp == values.length) values = Arrays.copyOf(values, sp * 2);
+        values[sp++] = value;
+    }
+
+    private Object pop() {
+        Object value = values[--sp];
+        values[sp] = null;
+        return value;
+    }
+}
@@ -41,6 +41,10 @@ abstract class Stmt {
         final Token name;
         final Expr.Variable superclass;
         final List<Stmt.Function> methods;
+        int slot = -1;
+        int global = -1;
+        boolean captured;
+        int superSlot = -1;
     }
     static class Expression extends Stmt {
         Expression(Expr expression) {
@@ -85,6 +89,14 @@ abstract class Stmt {
         final Token name;
         final List<Token> params;
         final List<Stmt> body;
+        int slot = -1;
+        int global = -1;
+        boolean captured;
+        int locals;
+        int[] upvalues;
+        int[] boxedParameters;
+        Environment.GlobalName[] globals;
+        boolean pure;
     }
     static class Print extends Stmt {
         Print(Expr expression) {
@@ -111,6 +123,9 @@ abstract class Stmt {
 
         final Token name;
         final Expr initializer;
+        int slot = -1;
+        int global = -1;
+        boolean captured;
     }
     static class Return extends Stmt {
         Return(Token keyword, Expr value) {
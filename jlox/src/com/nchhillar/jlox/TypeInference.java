@@ -0,0 +1,291 @@
+package com.nchhillar.jlox;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Runs after the Resolver and proves the types of expressions where the source makes them certain,
+// marking the nodes whose runtime checks that makes redundant: Binary and Unary.numeric,
+// Call.direct, Get and Set.onInstance.
+// It is sound rather than clever:
+//   - Only locals no closure captures are tracked. Nothing but their own function's code can
+//     change them, so their type at each point follows from that code alone. Captured locals,
+//     globals (a later REPL line or the host may rebind them), parameters, fields and the results
+//     of calls are all unknown.
+//   - Both arms of an if, and both sides of and/or, are joined. A loop is analyzed again until
+//     the types at its head stop growing, so whatever it marks on the last pass holds on every
+//     iteration.
+final class TypeInference implements Expr.Visitor<Integer>, Stmt.Visitor<Void> {
+    // A type is a set of these bits; a type that is exactly FUNCTION may also record the arity.
+    private static final int NUMBER = 1;
+    private static final int STRING = 1 << 1;
+    private static final int BOOLEAN = 1 << 2;
+    private static final int NIL = 1 << 3;
+    private static final int FUNCTION = 1 << 4;   // a LoxFunction
+    private static final int CLASS = 1 << 5;      // a LoxClass
+    private static final int INSTANCE = 1 << 6;   // a LoxInstance
+    private static final int UNKNOWN = (1 << 8) - 1;
+    private static final int TYPE_BITS = 8;       // above them, arity + 1 (0 if not known)
+
+    // Passes over a loop before its head types are widened to UNKNOWN, bounding the work.
+    private static final int MAX_LOOP_PASSES = 4;
+
+    // Types of the slots of the frame being analyzed; 0 for a slot nothing has been stored in.
+    private int[] locals;
+
+    void infer(List<Stmt> statements, int frameSize) {
+        locals = new int[frameSize];
+        for (Stmt statement : statements) {
+            statement.accept(this);
+        }
+    }
+
+    private int infer(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private void infer(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    // Each function body is its own frame; the receiver of a method is slot 0.
+    private void inferFunction(Stmt.Function function, boolean isMethod) {
+        int[] enclosing = locals;
+        locals = new int[function.locals];
+        int first = isMethod ? 1 : 0;
+        if (isMethod) locals[0] = INSTANCE;
+        Arrays.fill(locals, first, first + function.params.size(), UNKNOWN);
+
+        for (Stmt statement : function.body) {
+            infer(statement);
+        }
+        locals = enclosing;
+    }
+
+    private static int join(int a, int b) {
+        if (a == 0) return b;
+        if (b == 0) return a;
+        if (a == b) return a;
+        return (a | b) & UNKNOWN;   // arities differ or one isn't a function: forget them
+    }
+
+    private static int[] join(int[] a, int[] b) {
+        int[] joined = new int[a.length];
+        for (int i = 0; i < a.length; i++) {
+            joined[i] = join(a[i], b[i]);
+        }
+        return joined;
+    }
+
+    private static int functionOf(int arity) {
+        return FUNCTION | (arity + 1) << TYPE_BITS;
+    }
+
+    private static boolean isFunctionOf(int type, int arity) {
+        return type == functionOf(arity);
+    }
+
+    private int load(int slot, int upvalue, boolean boxed) {
+        if (slot == -1 || upvalue != -1 || boxed) return UNKNOWN;
+        int type = locals[slot];
+        return type == 0 ? UNKNOWN : type;
+    }
+
+    private void store(int slot, boolean captured, int type) {
+        if (slot != -1 && !captured) locals[slot] = type;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        for (Stmt statement : stmt.statements) {
+            infer(statement);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        if (stmt.superclass != null) infer(stmt.superclass);
+        store(stmt.slot, stmt.captured, CLASS);
+
+        for (Stmt.Function method : stmt.methods) {
+            inferFunction(method, true);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        infer(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        store(stmt.slot, stmt.captured, functionOf(stmt.params.size()));
+        inferFunction(stmt, false);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        infer(stmt.condition);
+        int[] before = locals.clone();
+
+        infer(stmt.thenBranch);
+        int[] afterThen = locals;
+
+        locals = before;
+        if (stmt.elseBranch != null) infer(stmt.elseBranch);
+        locals = join(afterThen, locals);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        infer(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) infer(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        int type = stmt.initializer == null ? NIL : infer(stmt.initializer);
+        store(stmt.slot, stmt.captured, type);
+        return null;
+    }
+
+    // head is what holds whenever the condition is about to run: on entry, and after every pass
+    // through the body. The loop is left right after the condition.
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int[] head = locals;
+        for (int pass = 1; ; pass++) {
+            locals = head.clone();
+            infer(stmt.condition);
+            int[] exit = locals.clone();
+            infer(stmt.body);
+
+            int[] next = join(head, locals);
+            if (Arrays.equals(next, head)) {
+                locals = exit;
+                return null;
+            }
+
+            if (pass == MAX_LOOP_PASSES) {
+                for (int i = 0; i < next.length; i++) {
+                    if (next[i] != 0) next[i] = UNKNOWN;
+                }
+            }
+            head = next;
+        }
+    }
+
+    @Override
+    public Integer visitAssignExpr(Expr.Assign expr) {
+        int type = infer(expr.value);
+        store(expr.slot, expr.upvalue != -1 || expr.boxed, type);
+        return type;
+    }
+
+    @Override
+    public Integer visitBinaryExpr(Expr.Binary expr) {
+        int left = infer(expr.left);
+        int right = infer(expr.right);
+        boolean numbers = left == NUMBER && right == NUMBER;
+
+        switch (expr.operator.type) {
+            case BANG_EQUAL:
+            case EQUAL_EQUAL:
+                return BOOLEAN;
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                expr.numeric = numbers;
+                return BOOLEAN;
+            case PLUS:
+                expr.numeric = numbers;
+                if (numbers) return NUMBER;
+                if (left == STRING && right == STRING) return STRING;
+                return NUMBER | STRING;
+            default:
+                expr.numeric = numbers;
+                return NUMBER;
+        }
+    }
+
+    @Override
+    public Integer visitCallExpr(Expr.Call expr) {
+        int callee = infer(expr.callee);
+        for (Expr argument : expr.arguments) {
+            infer(argument);
+        }
+
+        expr.direct = isFunctionOf(callee, expr.arguments.size());
+        return callee == CLASS ? INSTANCE : UNKNOWN;
+    }
+
+    @Override
+    public Integer visitGetExpr(Expr.Get expr) {
+        expr.onInstance = infer(expr.object) == INSTANCE;
+        return UNKNOWN;
+    }
+
+    @Override
+    public Integer visitGroupingExpr(Expr.Grouping expr) {
+        return infer(expr.expression);
+    }
+
+    @Override
+    public Integer visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value instanceof Double) return NUMBER;
+        if (expr.value instanceof String) return STRING;
+        if (expr.value instanceof Boolean) return BOOLEAN;
+        return NIL;
+    }
+
+    // The right side may not run at all, so what it assigns is joined with what was there before.
+    @Override
+    public Integer visitLogicalExpr(Expr.Logical expr) {
+        int left = infer(expr.left);
+        int[] before = locals.clone();
+        int right = infer(expr.right);
+        locals = join(before, locals);
+        return join(left, right);
+    }
+
+    @Override
+    public Integer visitSetExpr(Expr.Set expr) {
+        expr.onInstance = infer(expr.object) == INSTANCE;
+        return infer(expr.value);
+    }
+
+    @Override
+    public Integer visitThisExpr(Expr.This expr) {
+        return load(expr.slot, expr.upvalue, expr.boxed);
+    }
+
+    @Override
+    public Integer visitSuperExpr(Expr.Super expr) {
+        return UNKNOWN;
+    }
+
+    @Override
+    public Integer visitUnaryExpr(Expr.Unary expr) {
+        int right = infer(expr.right);
+        if (expr.operator.type == TokenType.BANG) return BOOLEAN;
+
+        expr.numeric = right == NUMBER;
+        return NUMBER;
+    }
+
+    @Override
+    public Integer visitVariableExpr(Expr.Variable expr) {
+        return load(expr.slot, expr.upvalue, expr.boxed);
+    }
+}
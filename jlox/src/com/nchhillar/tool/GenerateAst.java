@@ -14,30 +14,40 @@ public class GenerateAst {
             System.exit(64);
         }
         String outputDir = args[0];
-        // Define AST node types: "ClassName : field1, field2, ..."
+        // Define AST node types: "ClassName : field1, field2, ... [: resolved fields]"
+        // Resolved fields are filled in by the Resolver, not the parser: a variable is either slot
+        // in the current frame (boxed in a Cell if a closure captures it), upvalue in the running
+        // closure, or else global, its index in the global array. locals sizes a function's frame,
+        // upvalues says where a new closure gets each of its Cells (see Resolver.endFunction).
+        // globals holds the indexes of the script's globals while the function can run.
+        // numeric, direct and onInstance are set by TypeInference where it proves the operands are
+        // numbers, the callee a Lox function of matching arity, or the object a LoxInstance.
+        // pure is set by Purity on top-level functions whose result depends on nothing but their
+        // arguments, for --memoize.
+        // cache is filled in while running: the method call's InlineCache.
         defineAst(outputDir, "Expr", Arrays.asList(
-            "Assign   : Token name, Expr value",
-            "Binary   : Expr left, Token operator, Expr right",
-            "Call     : Expr callee, Token paren, List<Expr> arguments",
-            "Get      : Expr object, Token name",
+            "Assign   : Token name, Expr value : int slot = -1, int upvalue = -1, boolean boxed, int global = -1",
+            "Binary   : Expr left, Token operator, Expr right : boolean numeric",
+            "Call     : Expr callee, Token paren, List<Expr> arguments : boolean direct, InlineCache cache",
+            "Get      : Expr object, Token name : boolean onInstance",
             "Grouping : Expr expression",
             "Literal  : Object value",
             "Logical  : Expr left, Token operator, Expr right",
-            "Set      : Expr object, Token name, Expr value",
-            "This     : Token keyword",
-            "Super    : Token keyword, Token method",
-            "Unary    : Token operator, Expr right",
-            "Variable : Token name"
+            "Set      : Expr object, Token name, Expr value : boolean onInstance",
+            "This     : Token keyword : int slot = -1, int upvalue = -1, boolean boxed",
+            "Super    : Token keyword, Token method : int upvalue = -1, Expr.This receiver",
+            "Unary    : Token operator, Expr right : boolean numeric",
+            "Variable : Token name : int slot = -1, int upvalue = -1, boolean boxed, int global = -1"
         ));
 
         defineAst(outputDir, "Stmt", Arrays.asList(
             "Block      : List<Stmt> statements",
-            "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods",
+            "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods : int slot = -1, int global = -1, boolean captured, int superSlot = -1",
             "Expression : Expr expression",
             "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
-            "Function   : Token name, List<Token> params, List<Stmt> body",
+            "Function   : Token name, List<Token> params, List<Stmt> body : int slot = -1, int global = -1, boolean captured, int locals, int[] upvalues, int[] boxedParameters, Environment.GlobalName[] globals, boolean pure",
             "Print      : Expr expression",
-            "Var        : Token name, Expr initializer",
+            "Var        : Token name, Expr initializer : int slot = -1, int global = -1, boolean captured",
             "Return     : Token keyword, Expr value",
             "While      : Expr condition, Stmt body"
         ));
@@ -59,9 +69,11 @@ public class GenerateAst {
 
         // Generate each AST node class.
         for (String type : types) {
-            String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            String[] parts = type.split(":");
+            String className = parts[0].trim();
+            String fields = parts[1].trim();
+            String resolvedFields = parts.length > 2 ? parts[2].trim() : null;
+            defineType(writer, baseName, className, fields, resolvedFields);
         }
 
         // Add abstract accept() method for Visitor pattern.
@@ -73,7 +85,8 @@ public class GenerateAst {
     }
 
     // Generate a single AST node class: constructor, accept() method, and fields.
-    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
+    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList,
+                                   String resolvedFieldList) {
         writer.println(" static class " + className + " extends " + baseName + " {");
         writer.println("    " + className + "(" + fieldList + ") {");
 
@@ -100,6 +113,13 @@ public class GenerateAst {
             writer.println("    final " + field + ";");
         }
 
+        // Resolved fields stay mutable so the Resolver can fill them in after parsing.
+        if (resolvedFieldList != null) {
+            for (String field : resolvedFieldList.split(", ")) {
+                writer.println("    " + field + ";");
+            }
+        }
+
         writer.println("  }");
     }
 
@@ -0,0 +1,61 @@
+package com.nchhillar.tool;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import com.nchhillar.jlox.JavaTranspiler;
+
+// Ahead-of-time compiler: writes a Lox script out as a Java class (see JavaTranspiler) that runs
+// it without the interpreter. The class is in the jlox package and uses its runtime, so compile
+// and run it against the jlox classes:
+//   generate_java fib.lox gen
+//   javac -cp jlox.jar -d gen/classes gen/Fib.java
+//   jar cfe fib.jar com.nchhillar.jlox.Fib -C gen/classes .
+//   java -cp jlox.jar:fib.jar com.nchhillar.jlox.Fib
+public class GenerateJava {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.out.println("Usage: generate_java <script> <output directory> [class name]");
+            System.exit(64);
+        }
+        Path script = Paths.get(args[0]);
+        String className = args.length == 3 ? args[2] : className(script);
+        if (!isIdentifier(className)) {
+            System.out.println("Not a Java class name: " + className);
+            System.exit(64);
+        }
+
+        String source = new String(Files.readAllBytes(script), Charset.defaultCharset());
+        String java = JavaTranspiler.transpile(source, className);
+        if (java == null) System.exit(65);
+
+        Path outputDir = Paths.get(args[1]);
+        Files.createDirectories(outputDir);
+        Files.write(outputDir.resolve(className + ".java"), java.getBytes(Charset.forName("US-ASCII")));
+    }
+
+    // fib.lox -> Fib, binary_trees.lox -> Binary_trees.
+    private static String className(Path script) {
+        String name = script.getFileName().toString();
+        if (name.endsWith(".lox")) name = name.substring(0, name.length() - 4);
+
+        StringBuilder java = new StringBuilder();
+        for (char c : name.toCharArray()) {
+            java.append(Character.isJavaIdentifierPart(c) ? c : '_');
+        }
+        if (java.length() == 0 || !Character.isJavaIdentifierStart(java.charAt(0))) java.insert(0, "Lox");
+        java.setCharAt(0, Character.toUpperCase(java.charAt(0)));
+        return java.toString();
+    }
+
+    private static boolean isIdentifier(String name) {
+        if (name.isEmpty() || !Character.isJavaIdentifierStart(name.charAt(0))) return false;
+        for (char c : name.toCharArray()) {
+            if (!Character.isJavaIdentifierPart(c)) return false;
+        }
+        return true;
+    }
+}